@@ -0,0 +1,149 @@
+package ctxt.bench;
+
+import ctxt.db.Base128;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Base128Benchmark measures Base128's bulk methods, which pack 7 bytes into
+ *  a 64 bit word and split it into 8 septets, against the byte at a time
+ *  versions they replaced, kept here as Bytewise.
+ *
+ *  Both write into reused buffers, so neither allocates:
+ *    java -jar benchmarks.jar Base128Benchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base128Benchmark
+{
+  /**
+   *  Member Variables.
+   *
+   *  length number of bytes encoded: a plain RSA ciphertext, the most a text
+   *    sms holds, and a long hybrid envelope.
+   *  bytes random bytes to encode; also the buffer decoded into.
+   *  chars buffer encoded into.
+   *  encoded encoding of bytes, to decode. A String, as sms bodies are.
+   */
+  @Param({"133", "140", "1024"})
+  public int length;
+
+  private byte[] bytes;
+  private char[] chars;
+  private String encoded;
+
+  /**
+   *  setUp() generates the bytes and their encoding.
+   */
+  @Setup(Level.Trial)
+  public void setUp()
+  {
+    bytes = new byte[length];
+    (new Random(length)).nextBytes(bytes);
+    chars = new char[Base128.encodedLength(length)];
+    encoded = Base128.encode(bytes);
+  }
+
+  @Benchmark
+  public char[] encodeWord()
+  {
+    Base128.encodeInto(bytes, 0, length, chars, 0);
+    return chars;
+  }
+
+  @Benchmark
+  public char[] encodeByte()
+  {
+    Bytewise.encode(bytes, 0, length, chars, 0);
+    return chars;
+  }
+
+  @Benchmark
+  public byte[] decodeWord()
+  {
+    Base128.decodeInto(encoded, 0, encoded.length(), bytes, 0);
+    return bytes;
+  }
+
+  @Benchmark
+  public byte[] decodeByte()
+  {
+    Bytewise.decode(encoded, 0, encoded.length(), bytes, 0);
+    return bytes;
+  }
+
+  /**
+   *  Bytewise class holds Base128's bulk methods as they were before word
+   *  packing: a byte or a septet at a time through a bit accumulator. It
+   *  extends Base128 only to share its tables.
+   */
+  static class Bytewise extends Base128
+  {
+    static int encode(byte[] src, int off, int len, char[] dst,
+        int dstOff)
+    {
+      int d = dstOff;
+      int bits = 0; //number of bits in acc not yet written out
+      int acc = 0;
+      for(int i = off, end = off+len; i < end; i++)
+      {
+        acc = (acc<<8) | (src[i]&0xff);
+        bits += 8;
+        while(bits >= 7)
+        {
+          bits -= 7;
+          dst[d++] = map[(acc>>>bits)&0x7f];
+        }
+      }
+      //pad the last septet with zeros
+      if(bits > 0)
+      {
+        dst[d++] = map[(acc<<(7-bits))&0x7f];
+      }
+      return d-dstOff;
+    }
+
+    static int decode(CharSequence src, int off, int len, byte[] dst,
+        int dstOff)
+    {
+      int d = dstOff;
+      int bits = 0; //number of bits in acc not yet written out
+      int acc = 0;
+      for(int i = off, end = off+len; i < end; i++)
+      {
+        acc = (acc<<7) | findSeptet(src.charAt(i));
+        bits += 7;
+        if(bits >= 8)
+        {
+          bits -= 8;
+          dst[d++] = (byte)(acc>>>bits);
+        }
+      }
+      //any remaining bits are padding
+      return d-dstOff;
+    }
+
+    private static int findSeptet(char c)
+    {
+      return (c < reverseMap.length) ? reverseMap[c] : 0;
+    }
+  }
+}
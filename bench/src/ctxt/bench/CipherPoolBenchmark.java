@@ -0,0 +1,139 @@
+package ctxt.bench;
+
+import ctxt.key.CipherPool;
+import ctxt.key.Storer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+
+/**
+ *  CipherPoolBenchmark measures RSA encryption of a batch of messages three
+ *  ways: a new Cipher per message as Fetcher.encrypt() used to do, a pooled
+ *  Cipher per message as Fetcher.encrypt() does now, and one pooled Cipher
+ *  per recipient for the whole batch as the batch Fetcher.encrypt() does.
+ *
+ *  The pool is shared by every benchmark thread, so running with several
+ *  threads also measures contention on it:
+ *    java -jar benchmarks.jar CipherPoolBenchmark -t 4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherPoolBenchmark
+{
+  /**
+   *  Class Variables.
+   *
+   *  BATCH number of messages encrypted per operation.
+   */
+  private static final int BATCH = 16;
+
+  /**
+   *  Member Variables.
+   *
+   *  recipients number of distinct keys the batch is spread over.
+   *  keys keys[i] is the recipient of plainTexts[i].
+   *  plainTexts messages of Fetcher.LEN_MAX bytes to encrypt.
+   *  pool pool shared by every thread.
+   */
+  @Param({"1", "8"})
+  public int recipients;
+
+  private PublicKey[] keys;
+  private byte[][] plainTexts;
+  private CipherPool pool;
+
+  /**
+   *  setUp() generates the recipients' keys and a batch of messages.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception
+  {
+    KeyPairGenerator kgen = KeyPairGenerator.getInstance(Storer.ALGORITHM);
+    kgen.initialize(Storer.KEYBITS);
+    PublicKey[] distinct = new PublicKey[recipients];
+    for(int i = 0; i < recipients; i++)
+    {
+      distinct[i] = kgen.generateKeyPair().getPublic();
+    }
+
+    Random r = new Random(recipients);
+    keys = new PublicKey[BATCH];
+    plainTexts = new byte[BATCH][122];
+    for(int i = 0; i < BATCH; i++)
+    {
+      keys[i] = distinct[i % recipients];
+      r.nextBytes(plainTexts[i]);
+    }
+    pool = new CipherPool(Storer.ENCRYPTION_MODE, Cipher.ENCRYPT_MODE);
+  }
+
+  @Benchmark
+  public byte[][] perCall() throws Exception
+  {
+    byte[][] out = new byte[BATCH][];
+    for(int i = 0; i < BATCH; i++)
+    {
+      Cipher c = Cipher.getInstance(Storer.ENCRYPTION_MODE);
+      c.init(Cipher.ENCRYPT_MODE, keys[i]);
+      out[i] = c.doFinal(plainTexts[i]);
+    }
+    return out;
+  }
+
+  @Benchmark
+  public byte[][] pooled() throws Exception
+  {
+    byte[][] out = new byte[BATCH][];
+    for(int i = 0; i < BATCH; i++)
+    {
+      Cipher c = pool.acquire(keys[i]);
+      out[i] = c.doFinal(plainTexts[i]);
+      pool.release(keys[i], c);
+    }
+    return out;
+  }
+
+  @Benchmark
+  public byte[][] batch() throws Exception
+  {
+    byte[][] out = new byte[BATCH][];
+    HashMap<PublicKey, Cipher> held = new HashMap<PublicKey, Cipher>();
+    for(int i = 0; i < BATCH; i++)
+    {
+      Cipher c = held.get(keys[i]);
+      if(c == null)
+      {
+        c = pool.acquire(keys[i]);
+        held.put(keys[i], c);
+      }
+      out[i] = c.doFinal(plainTexts[i]);
+    }
+    for(Map.Entry<PublicKey, Cipher> e : held.entrySet())
+    {
+      pool.release(e.getKey(), e.getValue());
+    }
+    return out;
+  }
+}
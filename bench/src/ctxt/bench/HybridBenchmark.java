@@ -0,0 +1,87 @@
+package ctxt.bench;
+
+import ctxt.key.Envelope;
+import ctxt.key.Storer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+
+/**
+ *  HybridBenchmark measures sealing and opening hybrid Envelopes for a range
+ *  of plaintext lengths.
+ *
+ *  Dividing the average time per operation by length gives the cost per
+ *  plaintext byte; the difference between lengths shows how little the
+ *  symmetric body adds on top of the one RSA operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HybridBenchmark
+{
+  /**
+   *  Member Variables.
+   *
+   *  length number of plaintext bytes per message.
+   *  keyPair recipient's key pair.
+   *  unwrap Cipher initialized for decryption like Storer's.
+   *  plainText message body to seal.
+   *  envelope plainText sealed under keyPair.
+   */
+  @Param({"122", "1024", "16384"})
+  public int length;
+
+  private KeyPair keyPair;
+  private Cipher unwrap;
+  private byte[] plainText;
+  private byte[] envelope;
+
+  /**
+   *  setUp() generates a key pair and a sample envelope.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception
+  {
+    KeyPairGenerator kgen = KeyPairGenerator.getInstance(Storer.ALGORITHM);
+    kgen.initialize(Storer.KEYBITS);
+    keyPair = kgen.generateKeyPair();
+
+    unwrap = Cipher.getInstance(Storer.ENCRYPTION_MODE);
+    unwrap.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+
+    plainText = new byte[length];
+    (new Random(length)).nextBytes(plainText);
+    envelope = Envelope.seal(plainText, keyPair.getPublic());
+  }
+
+  @Benchmark
+  public byte[] seal() throws Exception
+  {
+    return Envelope.seal(plainText, keyPair.getPublic());
+  }
+
+  @Benchmark
+  public byte[] open() throws Exception
+  {
+    return Envelope.open(envelope, unwrap);
+  }
+}
@@ -0,0 +1,127 @@
+package ctxt.bench;
+
+import ctxt.key.Ecies;
+import ctxt.key.Storer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+
+/**
+ *  KeyTypeBenchmark compares the RSA key type with the elliptic curve one:
+ *  key generation, as done on first launch, and encrypting and decrypting a
+ *  message that fits into one RSA block.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyTypeBenchmark
+{
+  /**
+   *  Class Variables.
+   *
+   *  LENGTH number of plaintext bytes per message.
+   */
+  private static final int LENGTH = 90;
+
+  /**
+   *  Member Variables.
+   *
+   *  rsa, ec recipient key pairs of each type.
+   *  rsaDecrypt Cipher initialized for decryption like Storer's.
+   *  plainText message body to encrypt.
+   *  rsaCipherText, ecCipherText plainText encrypted under each key type.
+   */
+  private KeyPair rsa;
+  private KeyPair ec;
+  private Cipher rsaDecrypt;
+  private byte[] plainText;
+  private byte[] rsaCipherText;
+  private byte[] ecCipherText;
+
+  /**
+   *  setUp() generates a key pair of each type and a sample message.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception
+  {
+    rsa = generateRsa();
+    ec = Ecies.generateKeyPair();
+
+    rsaDecrypt = Cipher.getInstance(Storer.ENCRYPTION_MODE);
+    rsaDecrypt.init(Cipher.DECRYPT_MODE, rsa.getPrivate());
+
+    plainText = new byte[LENGTH];
+    (new Random(LENGTH)).nextBytes(plainText);
+    rsaCipherText = rsaEncrypt();
+    ecCipherText = Ecies.seal(plainText, ec.getPublic());
+  }
+
+  private static KeyPair generateRsa() throws Exception
+  {
+    KeyPairGenerator kgen = KeyPairGenerator.getInstance(Storer.ALGORITHM);
+    kgen.initialize(Storer.KEYBITS);
+    return kgen.generateKeyPair();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 20)
+  public KeyPair rsaGenerate() throws Exception
+  {
+    return generateRsa();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 20)
+  public KeyPair ecGenerate() throws Exception
+  {
+    return Ecies.generateKeyPair();
+  }
+
+  @Benchmark
+  public byte[] rsaEncrypt() throws Exception
+  {
+    Cipher c = Cipher.getInstance(Storer.ENCRYPTION_MODE);
+    c.init(Cipher.ENCRYPT_MODE, rsa.getPublic());
+    return c.doFinal(plainText);
+  }
+
+  @Benchmark
+  public byte[] ecEncrypt() throws Exception
+  {
+    return Ecies.seal(plainText, ec.getPublic());
+  }
+
+  @Benchmark
+  public byte[] rsaDecrypt() throws Exception
+  {
+    return rsaDecrypt.doFinal(rsaCipherText);
+  }
+
+  @Benchmark
+  public byte[] ecDecrypt() throws Exception
+  {
+    return Ecies.open(ecCipherText, ec.getPrivate());
+  }
+}
@@ -0,0 +1,128 @@
+package ctxt.bench;
+
+import ctxt.db.Base128;
+import ctxt.key.CipherPool;
+import ctxt.key.Fetcher;
+import ctxt.key.Storer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+
+/**
+ *  PipelineBenchmark measures each stage of sending and receiving a message:
+ *  encrypt -> encode -> decode -> decrypt, and the full round trip.
+ *
+ *  The stages are the application's own: Fetcher.encrypt(), Base128.encode(),
+ *  Base128.decode() and Storer.decrypt(), under a Storer.KEYBITS bit
+ *  Storer.ALGORITHM key. Plaintexts of at most Fetcher.LEN_MAX bytes are
+ *  encrypted directly under RSA; longer ones are sealed in an Envelope. The
+ *  static Storer.decrypt() is the instance method without its logging and
+ *  key file, so it runs off the device.
+ *
+ *  Run with the gc profiler to get allocations per operation:
+ *    java -jar benchmarks.jar PipelineBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark
+{
+  /**
+   *  Member Variables.
+   *
+   *  length number of plaintext bytes per message: two plain RSA lengths and
+   *    one hybrid Envelope.
+   *  publicKey recipient's public key for encryption.
+   *  privateKey recipient's private key for decryption.
+   *  ciphers pool of decryption ciphers, like Storer's.
+   *  plainText message body to encrypt.
+   *  cipherText plainText encrypted under publicKey.
+   *  encoded Base128 encoding of cipherText.
+   */
+  @Param({"16", "122", "1024"})
+  public int length;
+
+  private PublicKey publicKey;
+  private PrivateKey privateKey;
+  private CipherPool ciphers;
+  private byte[] plainText;
+  private byte[] cipherText;
+  private String encoded;
+
+  /**
+   *  setUp() generates a key pair and a sample message for every stage to
+   *  work on.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception
+  {
+    KeyPairGenerator kgen = KeyPairGenerator.getInstance(Storer.ALGORITHM);
+    kgen.initialize(Storer.KEYBITS);
+    KeyPair keyPair = kgen.generateKeyPair();
+    publicKey = keyPair.getPublic();
+    privateKey = keyPair.getPrivate();
+    ciphers = new CipherPool(Storer.ENCRYPTION_MODE, Cipher.DECRYPT_MODE);
+
+    plainText = new byte[length];
+    (new Random(length)).nextBytes(plainText);
+    cipherText = Fetcher.encrypt(plainText, publicKey);
+    encoded = Base128.encode(cipherText);
+    if(!Arrays.equals(plainText, decryptStage()))
+    {
+      throw new IllegalStateException("Round trip failed.");
+    }
+  }
+
+  @Benchmark
+  public byte[] encryptStage()
+  {
+    return Fetcher.encrypt(plainText, publicKey);
+  }
+
+  @Benchmark
+  public String encodeStage()
+  {
+    return Base128.encode(cipherText);
+  }
+
+  @Benchmark
+  public byte[] decodeStage()
+  {
+    return Base128.decode(encoded);
+  }
+
+  @Benchmark
+  public byte[] decryptStage() throws Exception
+  {
+    return Storer.decrypt(cipherText, privateKey, ciphers);
+  }
+
+  @Benchmark
+  public byte[] roundTrip() throws Exception
+  {
+    return Storer.decrypt(Base128.decode(Base128.encode(
+      Fetcher.encrypt(plainText, publicKey))), privateKey, ciphers);
+  }
+}
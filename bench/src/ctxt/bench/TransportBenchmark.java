@@ -0,0 +1,112 @@
+package ctxt.bench;
+
+import ctxt.db.Base128;
+import ctxt.db.Fragments;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  TransportBenchmark measures the CPU spent getting a ciphertext from the
+ *  sender's Sessions.encrypt() to the receiver's decrypt() over each
+ *  transport, leaving out the radio:
+ *    text: split into Base128 encoded text sms bodies, then each body checked
+ *      and decoded and the fragments reassembled.
+ *    data: split into raw data sms bodies, then the fragments reassembled.
+ *  133 bytes is a plain RSA ciphertext, which fits a single sms of either
+ *  kind; the longer ciphertexts are fragmented.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark
+{
+  /**
+   *  Class Variables.
+   *
+   *  SENDER phone number the fragments are reassembled under.
+   */
+  private static final String SENDER = "15555215554";
+
+  /**
+   *  Member Variables.
+   *
+   *  length number of bytes of ciphertext sent.
+   *  cipherText random bytes standing in for a ciphertext.
+   *  reassembler buffers fragments on the receiving end.
+   */
+  @Param({"133", "512", "2048"})
+  public int length;
+
+  private byte[] cipherText;
+  private Fragments.Reassembler reassembler;
+
+  /**
+   *  setUp() generates the ciphertext.
+   */
+  @Setup(Level.Trial)
+  public void setUp()
+  {
+    cipherText = new byte[length];
+    (new Random(length)).nextBytes(cipherText);
+    reassembler = new Fragments.Reassembler();
+  }
+
+  @Benchmark
+  public byte[] text()
+  {
+    String[] bodies = Fragments.split(cipherText);
+    byte[] received = null;
+    for(int i = 0; i < bodies.length; i++)
+    {
+      if(!Base128.isEncoded(bodies[i]))
+      {
+        throw new IllegalStateException();
+      }
+      received = receive(Base128.decode(bodies[i]), i);
+    }
+    return received;
+  }
+
+  @Benchmark
+  public byte[] data()
+  {
+    byte[][] bodies = Fragments.split(cipherText, Fragments.DATA_SMS_BYTES);
+    byte[] received = null;
+    for(int i = 0; i < bodies.length; i++)
+    {
+      received = receive(bodies[i], i);
+    }
+    return received;
+  }
+
+  /**
+   *  receive() given the body of an sms returns the ciphertext once all of
+   *  its fragments have been received.
+   */
+  private byte[] receive(byte[] body, long tag)
+  {
+    if(!Fragments.isFragment(body))
+    {
+      return body;
+    }
+    Fragments.Complete c = reassembler.add(SENDER, body, tag, 0);
+    return (c == null) ? null : c.cipherText;
+  }
+}
@@ -2,19 +2,23 @@ package ctxt.ctxt;
 
 import ctxt.ctxt.R;
 
+import ctxt.db.ConversationLoader;
 import ctxt.db.MessageReader;
 import ctxt.db.Inserter;
 import ctxt.db.MessageInserter;
 import ctxt.db.Message;
-import ctxt.db.Updateable;
-import ctxt.db.Base128;
-import ctxt.key.Key;
-import ctxt.key.Fetcher;
+import ctxt.key.Numbers;
 
 import android.app.Activity;
+import android.app.LoaderManager;
 import android.content.Context;
+import android.content.Loader;
+import android.database.Cursor;
 import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.TextView;
 import android.widget.EditText;
 import android.widget.ListView;
@@ -27,20 +31,24 @@ import android.content.IntentFilter;
 import android.widget.SimpleCursorAdapter;
 
 import android.util.Log;
-import android.telephony.SmsManager;
-import android.telephony.PhoneNumberUtils;
-
-import android.app.PendingIntent;
 
+/**
+ *  ConversationActivity class shows a conversation and sends messages to it.
+ *
+ *  The conversation's newest messages are loaded off the main thread by a
+ *  ConversationLoader, which appends the messages written to the
+ *  conversation. Scrolling to the top or the bottom reads a page of older
+ *  or newer messages, see ConversationLoader for the bounded window kept.
+ */
 public class ConversationActivity extends Activity implements
-    View.OnClickListener, Updateable
+    View.OnClickListener, LoaderManager.LoaderCallbacks<Cursor>
 {
   /**
    *  Class Variables.
    *
    *  NUMBER used as a key for intent passing.
    *  TAG used for debugging
-   *  PORT
+   *  PORT port data sms's are sent to and received on, see Transport.
    *  SENT
    *  RECEIVED
    */
@@ -53,16 +61,16 @@ public class ConversationActivity extends Activity implements
   /**
    *  Member Variables.
    *
-   *  m
-   *  recipient String for number of the other person the user is talking to.
-   *  reader
+   *  recipient String for number of the other person the user is talking to,
+   *    in canonical form, see Numbers. Resolved once so keys, messages and
+   *    transports are looked up by it without canonicalizing it again.
    *  writer
+   *  loading whether a page requested by scrolling has not loaded yet.
    */
-  private SmsManager m;
   private String recipient;
-  private MessageReader reader;
   private MessageInserter writer;
   private SimpleCursorAdapter adapter;
+  private boolean loading = false;
   private EditText messageBox;
   private TextView charsLeft;
 
@@ -75,11 +83,11 @@ public class ConversationActivity extends Activity implements
     super.onCreate(savedInstanceState);
     setContentView(R.layout.conversation);
 
-    reader = new MessageReader(getApplicationContext());
-    m = SmsManager.getDefault();
     //open a connection to the database
 
-    recipient = getIntent().getExtras().getString(ConversationActivity.NUMBER);
+    String number =
+      getIntent().getExtras().getString(ConversationActivity.NUMBER);
+    recipient = Numbers.canonical(number);
 
     this.messageBox = (EditText) findViewById(R.id.msg);
     charsLeft = (TextView) findViewById(R.id.charCount);
@@ -88,7 +96,8 @@ public class ConversationActivity extends Activity implements
       @Override
       public void afterTextChanged(Editable e)
       {
-        charsLeft.setText(String.valueOf(messageBox.length()));
+        //the plaintext is sent in as many sms's as its ciphertext takes
+        charsLeft.setText(String.valueOf(e.toString().getBytes().length));
       }
       @Override
       public void beforeTextChanged(CharSequence s, int st, int c, int a) { }
@@ -96,14 +105,38 @@ public class ConversationActivity extends Activity implements
       public void onTextChanged(CharSequence s, int st, int b, int c) { }
     });
     TextView no = (TextView) findViewById(R.id.recipientName);
-    no.setText(recipient);
+    no.setText(number);
     Button send = (Button) findViewById(R.id.send);
     send.setOnClickListener(this);
     ListView listView = (ListView) findViewById(R.id.messages);
-    this.adapter = reader.getAdapter(this, recipient);
+    this.adapter = MessageReader.newAdapter(this);
     listView.setAdapter(adapter);
+    //load a page when scrolled to either end, if there may be more there
+    listView.setOnScrollListener(new AbsListView.OnScrollListener()
+    {
+      @Override
+      public void onScroll(AbsListView v, int first, int visible, int total)
+      {
+        ConversationLoader loader = (ConversationLoader)
+          getLoaderManager().<Cursor>getLoader(0);
+        if(loader == null || loading || total == 0)
+        {
+          return;
+        }
+        if(first == 0)
+        {
+          loading = loader.loadOlder();
+        }
+        else if(first + visible >= total)
+        {
+          loading = loader.loadNewer();
+        }
+      }
+      @Override
+      public void onScrollStateChanged(AbsListView v, int state) { }
+    });
+    getLoaderManager().initLoader(0, null, this);
     writer = Inserter.getMessageInserter(getApplicationContext());
-    writer.registerNotification(this, recipient);
 
     //register received for sent&received broadcasts
     IntentFilter SMSintentFilter = new IntentFilter();
@@ -111,46 +144,123 @@ public class ConversationActivity extends Activity implements
     SMSintentFilter.addAction(RECEIVED);
   }
 
+  /**
+   *  onResume() marks the conversation read, as does onPause() for the
+   *  messages received while it was shown.
+   */
+  @Override
+  public void onResume()
+  {
+    super.onResume();
+    writer.markRead(recipient);
+  }
+
+  @Override
+  public void onPause()
+  {
+    super.onPause();
+    writer.markRead(recipient);
+  }
+
   @Override
   public void onDestroy()
   {
     super.onDestroy();
     //writer.close();
-    writer.unregisterNotification();
-    reader.close();
   }
 
-  public void update()
+  /**
+   *  onCreateOptionsMenu() inflates the options menu, checking the data sms
+   *  item if ciphertexts are sent to the recipient as data sms's.
+   *
+   *  @return true.
+   */
+  @Override
+  public boolean onCreateOptionsMenu(Menu menu)
   {
-    Log.d(TAG, "updateConversation() called.");
-    //do a check to make sure that the number is the same
-    reader.updateAdapter(adapter, recipient);
+    getMenuInflater().inflate(R.layout.conversation_menu, menu);
+    (menu.findItem(R.id.menu_data_sms)).setChecked(
+      Transport.get(getApplicationContext(), recipient) == Transport.DATA);
+    return true;
+  }
+
+  /**
+   *  onToggleDataSms() when the data sms item is clicked, switches the
+   *  recipient between text and data sms's.
+   *
+   *  @param item MenuItem that was clicked; this will always be data sms.
+   */
+  public void onToggleDataSms(MenuItem item)
+  {
+    item.setChecked(!item.isChecked());
+    Transport.set(getApplicationContext(), recipient,
+      item.isChecked() ? Transport.DATA : Transport.TEXT);
+  }
+
+  /**
+   *  onCreateLoader() returns a ConversationLoader of the recipient.
+   */
+  @Override
+  public Loader<Cursor> onCreateLoader(int id, Bundle args)
+  {
+    return new ConversationLoader(this, recipient);
+  }
+
+  /**
+   *  onLoadFinished() shows the messages loaded. The list follows new
+   *  messages if it was at the bottom; otherwise, or if a page was loaded by
+   *  scrolling, the rows shown stay where they are, however many rows were
+   *  loaded or dropped around them.
+   */
+  @Override
+  public void onLoadFinished(Loader<Cursor> loader, Cursor c)
+  {
+    Log.d(TAG, "onLoadFinished() called.");
+    ListView listView = (ListView) findViewById(R.id.messages);
+    int first = listView.getFirstVisiblePosition();
+    boolean atBottom =
+      listView.getLastVisiblePosition() >= listView.getCount() - 1;
+    long firstId = (adapter.getCount() > first) ? adapter.getItemId(first) : -1;
+    View top = listView.getChildAt(0);
+    //the loader closes the old cursor
+    adapter.swapCursor(c);
+    boolean paged = loading;
+    loading = false;
+    if(firstId < 0 && adapter.getCount() > 0)
+    {
+      //first load: start at the newest message
+      listView.setSelection(adapter.getCount() - 1);
+    }
+    else if(firstId >= 0 && (!atBottom || paged))
+    {
+      for(int i = 0; i < adapter.getCount(); i++)
+      {
+        if(adapter.getItemId(i) == firstId)
+        {
+          listView.setSelectionFromTop(i, (top == null) ? 0 : top.getTop());
+          break;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onLoaderReset(Loader<Cursor> loader)
+  {
+    adapter.swapCursor(null);
   }
 
   /**
    *  onClick() press a button, get a phone number, get the message, encrypt and
    *  send it to the recipient. Clear the message box too.
+   *
+   *  Encryption and sending are queued to Sender, off the main thread.
    */
   public void onClick(View view)
   {
     String msg = (messageBox.getText()).toString();
 
-    byte[] cipherText = Fetcher.encrypt(msg.getBytes(),
-      ((Key.getFetcher(getApplicationContext())).fetchKey(recipient))
-        .getKey());
-
-    String encodedMsg = Base128.encode(cipherText);
-    Log.d(TAG, encodedMsg);
-    Log.d(TAG, "string len:" + encodedMsg.length());
-
-    //let the unicode string get converted back into binary blob
-    this.m.sendTextMessage(PhoneNumberUtils.stripSeparators(recipient), null,
-      encodedMsg,
-      PendingIntent.getBroadcast(getApplicationContext(), 0, new Intent(SENT),
-        Intent.FILL_IN_ACTION),
-      PendingIntent.getBroadcast(getApplicationContext(), 0,
-        new Intent(RECEIVED), Intent.FILL_IN_ACTION)
-    );
+    Sender.send(getApplicationContext(), recipient, msg.getBytes());
     writer.insertMessage(recipient, msg);
     //Clear the message box
     messageBox.setText("");
@@ -1,6 +1,7 @@
 package ctxt.ctxt;
 
 import ctxt.ctxt.KeyGenerationDialogFragment;
+import ctxt.ctxt.ReceivePipeline;
 import ctxt.share.KeyShare;
 import ctxt.key.Key;
 import ctxt.key.Storer;
@@ -9,26 +10,30 @@ import ctxt.key.NumberKeyPair;
 import ctxt.key.KeyAlreadyExistsException;
 
 import ctxt.db.Base128;
+import ctxt.db.MessageReader;
+import ctxt.db.MessageProvider;
 
 import android.app.Activity;
+import android.app.LoaderManager;
 import android.os.Bundle;
 import android.content.*;
+import android.database.Cursor;
 import android.view.View;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MenuInflater;
 import android.widget.EditText;
 import android.widget.GridView;
-import android.widget.ArrayAdapter;
+import android.widget.SimpleCursorAdapter;
 import android.widget.AdapterView;
 import android.util.Log;
 
 public class MainActivity extends Activity implements
-  AdapterView.OnItemClickListener
+  AdapterView.OnItemClickListener, LoaderManager.LoaderCallbacks<Cursor>
 {
   private static String TAG = "MAIN_ACTIVITY:";
-  protected String[] numbers;
   private GridView gv;
+  private SimpleCursorAdapter adapter;
 
   /** Called when the activity is first created. */
   @Override
@@ -37,14 +42,24 @@ public class MainActivity extends Activity implements
     super.onCreate(savedInstanceState);
     setContentView(R.layout.main);
 
+    //decrypt anything a previous run left in the inbox
+    ReceivePipeline.start(getApplicationContext());
     gv = (GridView) findViewById(R.id.grid_main);
     //enumerate keys should be safe even if no key was generated yet
     gv.setOnItemClickListener(this);
+    adapter = new SimpleCursorAdapter(this,
+      android.R.layout.simple_list_item_2, null,
+      new String[] {MessageReader.SUMMARY_TITLE, MessageReader.SUMMARY_MESSAGE},
+      new int[] {android.R.id.text1, android.R.id.text2}, 0);
+    gv.setAdapter(adapter);
   }
 
   /**
    *  onResume() if no key pair has been generate will launch a dialog to
    *  generate a public+private key pair.
+   *
+   *  The conversations listed are loaded by a CursorLoader, see
+   *  onCreateLoader().
    */
   @Override
   public void onResume()
@@ -56,10 +71,34 @@ public class MainActivity extends Activity implements
       (new KeyGenerationDialogFragment()).show(getFragmentManager(), 
         KeyGenerationDialogFragment.FRAG_TAG);
     }
-    //set the adapter in onResume() incase any new numbers are added
-    this.numbers = Key.getFetcher(getApplicationContext()).enumerateKeys();
-    gv.setAdapter(new ArrayAdapter<String>(this,
-      android.R.layout.simple_list_item_1, numbers));
+    //the loader reloads the list whenever a conversation is written to, but
+    //reload in onResume() incase any new numbers are added
+    getLoaderManager().restartLoader(0, null, this);
+  }
+
+  /**
+   *  onCreateLoader() returns a CursorLoader listing the conversations, most
+   *  recent first, with their last message and unread count, followed by
+   *  the numbers with a key but no messages.
+   */
+  @Override
+  public Loader<Cursor> onCreateLoader(int id, Bundle args)
+  {
+    return new CursorLoader(this, MessageProvider.CONVERSATIONS, null, null,
+      null, null);
+  }
+
+  @Override
+  public void onLoadFinished(Loader<Cursor> loader, Cursor c)
+  {
+    //the loader closes the old cursor
+    adapter.swapCursor(c);
+  }
+
+  @Override
+  public void onLoaderReset(Loader<Cursor> loader)
+  {
+    adapter.swapCursor(null);
   }
 
   /**
@@ -96,7 +135,9 @@ public class MainActivity extends Activity implements
   public void onItemClick(AdapterView<?> parent, View view, int position,
       long id)
   {
-    enterConversation(this.numbers[position]);
+    Cursor c = (Cursor) adapter.getItem(position);
+    enterConversation(c.getString(
+      c.getColumnIndexOrThrow(MessageReader.SUMMARY_NUMBER)));
   }
 
   /**
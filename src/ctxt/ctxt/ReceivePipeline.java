@@ -0,0 +1,323 @@
+package ctxt.ctxt;
+
+import ctxt.db.CiphertextFilter;
+import ctxt.db.Inserter;
+import ctxt.db.MessageInserter;
+import ctxt.key.Numbers;
+
+import android.util.Log;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.telephony.SmsMessage;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  ReceivePipeline class decrypts and stores received sms's on background
+ *  threads so that SMSreceiver.onReceive() returns right away.
+ *
+ *  The messages of a broadcast are processed together as a batch. Batches
+ *  wait in an unbounded queue for one of the worker threads, one per core,
+ *  which are stopped after idling for KEEP_ALIVE seconds. Nothing but the
+ *  queueing is done on the thread that submits a batch, which is the main
+ *  thread, so it never waits for the disk or a cipher.
+ *
+ *  A worker first drops the messages that CiphertextFilter rejects; they
+ *  are ordinary sms's for the system's messaging application. It then
+ *  appends the rest to the inbox table in one transaction, and decrypts
+ *  them and inserts the messages in another. The broadcast is kept alive
+ *  with BroadcastReceiver.goAsync() until the batch has been appended, so
+ *  the process is not killed before the messages are stored. Decryption
+ *  that is cut short is resumed from the inbox by the drain queued when the
+ *  pipeline is first used. Messages that failed to decrypt are retried by
+ *  another drain once a later message succeeds, as it may have started the
+ *  session they are on.
+ *
+ *  Stage latencies are measured for every batch:
+ *    wait time from being queued until a worker picks it up.
+ *    append time the worker spends filtering it and appending it to the
+ *      inbox.
+ *    decrypt time the worker spends decrypting and inserting it.
+ *  getStats() reports them with the queue depth.
+ *
+ *  All methods are static; there is a single pipeline per process.
+ */
+public final class ReceivePipeline
+{
+  /**
+   *  Class Variables.
+   *
+   *  TAG constant string to tag debugging messages with.
+   *  KEEP_ALIVE seconds an idle worker lives.
+   *  WORKERS number of worker threads.
+   *  executor lazily created thread pool running the workers.
+   *  received, processed number of messages accepted by the filter and
+   *    fully processed.
+   *  batches number of batches fully processed.
+   *  failed number of messages that could not be decrypted.
+   *  retryPending whether a message failed since the last drain started.
+   *  waitNanos, appendNanos, decryptNanos total time spent in each stage.
+   *  maxWaitNanos, maxAppendNanos, maxDecryptNanos longest time spent in
+   *    each stage.
+   */
+  private static final String TAG = "RECEIVE";
+  static final int KEEP_ALIVE = 30;
+  static final int WORKERS = Runtime.getRuntime().availableProcessors();
+  private static volatile ThreadPoolExecutor executor = null;
+  private static final AtomicLong received = new AtomicLong();
+  private static final AtomicLong processed = new AtomicLong();
+  private static final AtomicLong batches = new AtomicLong();
+  private static final AtomicLong failed = new AtomicLong();
+  private static final AtomicBoolean retryPending = new AtomicBoolean();
+  private static final AtomicLong waitNanos = new AtomicLong();
+  private static final AtomicLong appendNanos = new AtomicLong();
+  private static final AtomicLong decryptNanos = new AtomicLong();
+  private static final AtomicLong maxWaitNanos = new AtomicLong();
+  private static final AtomicLong maxAppendNanos = new AtomicLong();
+  private static final AtomicLong maxDecryptNanos = new AtomicLong();
+
+  /**
+   *  ReceivePipeline() private constructor prevents instantiation; does
+   *  nothing.
+   */
+  private ReceivePipeline() {}
+
+  /**
+   *  submit() given the messages of a single broadcast queues them for
+   *  processing as one batch and finishes the broadcast once those that may
+   *  be ciphertexts are stored.
+   *
+   *  @param context Context under which the messages are stored.
+   *  @param messages messages received.
+   *  @param data whether the messages are data sms's rather than text sms's.
+   *  @param result PendingResult of the broadcast, from goAsync(); may be null.
+   */
+  public static void submit(Context context, final SmsMessage[] messages,
+      final boolean data, final BroadcastReceiver.PendingResult result)
+  {
+    final Context appContext = context.getApplicationContext();
+    final long queued = System.nanoTime();
+    getExecutor(appContext).execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        long started = System.nanoTime();
+        MessageInserter inserter = null;
+        MessageInserter.InboxItem[] items = null;
+        try
+        {
+          SmsMessage[] batch = accept(appContext, messages, data);
+          if(batch.length > 0)
+          {
+            received.addAndGet(batch.length);
+            inserter = Inserter.getMessageInserter(appContext);
+            items = inserter.appendToInbox(batch, data);
+          }
+        }
+        catch(RuntimeException e)
+        {
+          Log.e(TAG, "exception", e);
+        }
+        finally
+        {
+          //broadcasts without any ciphertext are not batches
+          if(inserter != null)
+          {
+            record(waitNanos, maxWaitNanos, started-queued);
+            record(appendNanos, maxAppendNanos, System.nanoTime()-started);
+          }
+          if(result != null)
+          {
+            result.finish();
+          }
+        }
+        if(items != null)
+        {
+          decrypt(appContext, inserter, items);
+        }
+      }
+    });
+  }
+
+  /**
+   *  accept() given the messages of a broadcast returns those that
+   *  CiphertextFilter accepts as possible ciphertexts.
+   */
+  private static SmsMessage[] accept(Context context, SmsMessage[] messages,
+      boolean data)
+  {
+    ArrayList<SmsMessage> accepted = new ArrayList<SmsMessage>();
+    for(SmsMessage m : messages)
+    {
+      String sender = Numbers.canonical(m.getOriginatingAddress());
+      int verdict = data
+        ? CiphertextFilter.classify(context, sender, m.getUserData())
+        : CiphertextFilter.classify(context, sender, m.getMessageBody());
+      if(verdict == CiphertextFilter.ACCEPTED)
+      {
+        accepted.add(m);
+      }
+    }
+    return accepted.toArray(new SmsMessage[accepted.size()]);
+  }
+
+  /**
+   *  start() creates the workers if they are not running yet, which queues a
+   *  drain of whatever a previous process left in the inbox. Calling it again
+   *  in the same process does nothing.
+   *
+   *  @param context Context under which the messages are stored.
+   */
+  public static void start(Context context)
+  {
+    getExecutor(context.getApplicationContext());
+  }
+
+  /**
+   *  resume() queues a drain of the inbox, decrypting messages left there by
+   *  a previous process or by earlier failures.
+   *
+   *  @param context Context under which the messages are stored.
+   */
+  public static void resume(Context context)
+  {
+    final Context appContext = context.getApplicationContext();
+    getExecutor(appContext).execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        retryPending.set(false);
+        try
+        {
+          (Inserter.getMessageInserter(appContext)).drainInbox();
+        }
+        catch(RuntimeException e)
+        {
+          Log.e(TAG, "exception", e);
+        }
+      }
+    });
+  }
+
+  /**
+   *  decrypt() is the second stage: decrypts an appended batch and, if any
+   *  of it succeeds while earlier messages are waiting for a retry, drains
+   *  them.
+   */
+  private static void decrypt(Context context, MessageInserter inserter,
+      MessageInserter.InboxItem[] items)
+  {
+    long started = System.nanoTime();
+    int failures = items.length;
+    try
+    {
+      failures = inserter.decryptInbox(items);
+    }
+    catch(RuntimeException e)
+    {
+      Log.e(TAG, "exception", e);
+    }
+    finally
+    {
+      record(decryptNanos, maxDecryptNanos, System.nanoTime()-started);
+      processed.addAndGet(items.length);
+      batches.incrementAndGet();
+    }
+    if(failures > 0)
+    {
+      failed.addAndGet(failures);
+      retryPending.set(true);
+    }
+    if(failures < items.length && retryPending.get())
+    {
+      resume(context);
+    }
+  }
+
+  /**
+   *  getQueueDepth() returns the number of batches waiting for a worker.
+   *
+   *  @return number of queued batches.
+   */
+  public static int getQueueDepth()
+  {
+    ThreadPoolExecutor e = executor;
+    return e == null ? 0 : e.getQueue().size();
+  }
+
+  /**
+   *  getStats() returns the queue depth, message counts and the average and
+   *  longest latency of each stage per batch in milliseconds.
+   *
+   *  @return String describing the pipeline.
+   */
+  public static String getStats()
+  {
+    long n = Math.max(batches.get(), 1);
+    return "ReceivePipeline[depth=" + getQueueDepth()
+      + ",received=" + received.get() + ",processed=" + processed.get()
+      + ",batches=" + batches.get()
+      + ",failed=" + failed.get()
+      + ",waitAvg=" + waitNanos.get()/n/1000000
+      + "ms,waitMax=" + maxWaitNanos.get()/1000000
+      + "ms,appendAvg=" + appendNanos.get()/n/1000000
+      + "ms,appendMax=" + maxAppendNanos.get()/1000000
+      + "ms,decryptAvg=" + decryptNanos.get()/n/1000000
+      + "ms,decryptMax=" + maxDecryptNanos.get()/1000000 + "ms]";
+  }
+
+  /**
+   *  getExecutor() returns the thread pool, creating it on first use
+   *  together with a drain of whatever a previous process left in the inbox.
+   */
+  private static synchronized ThreadPoolExecutor getExecutor(
+      Context context)
+  {
+    if(executor == null)
+    {
+      executor = new ThreadPoolExecutor(WORKERS, WORKERS, KEEP_ALIVE,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory()
+        {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(final Runnable r)
+          {
+            return new Thread(new Runnable()
+            {
+              @Override
+              public void run()
+              {
+                android.os.Process.setThreadPriority(
+                  android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+              }
+            }, "receive-" + count.incrementAndGet());
+          }
+        });
+      executor.allowCoreThreadTimeOut(true);
+      resume(context);
+    }
+    return executor;
+  }
+
+  /**
+   *  record() adds a stage latency to its total and raises its maximum.
+   */
+  private static void record(AtomicLong total, AtomicLong max, long nanos)
+  {
+    total.addAndGet(nanos);
+    long m;
+    while(nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {}
+  }
+}
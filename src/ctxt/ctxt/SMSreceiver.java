@@ -2,8 +2,7 @@ package ctxt.ctxt;
 
 import ctxt.key.Key;
 
-import ctxt.db.Inserter;
-import ctxt.db.MessageInserter;
+import ctxt.ctxt.ReceivePipeline;
 
 import android.util.Log;
 import android.os.Bundle;
@@ -13,6 +12,7 @@ import android.content.Intent;
 import android.telephony.SmsMessage;
 
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 
 /**
  *  SMSreceiver subclass of BroadcastReceiver for receiving SMS.
@@ -29,10 +29,14 @@ public class SMSreceiver extends BroadcastReceiver
    *  Class Variables.
    *
    *  ACTION_SMS_RECEIVED constant string to filter intents actions on.
+   *  ACTION_DATA_SMS_RECEIVED constant string for data sms's sent to a port;
+   *    only those to ConversationActivity.PORT are handled.
    *  TAG constant string to tag debugging messages with.
    */
   private static final String ACTION_SMS_RECEIVED =
     "android.provider.Telephony.SMS_RECEIVED";
+  private static final String ACTION_DATA_SMS_RECEIVED =
+    "android.intent.action.DATA_SMS_RECEIVED";
   private static String TAG = "smsSERVICE";
 
   /**
@@ -40,28 +44,38 @@ public class SMSreceiver extends BroadcastReceiver
    *  user's private key.
    *
    *  Check:
-   *    The intent action is for receiving an sms.
+   *    The intent action is for receiving an sms, or a data sms to
+   *      ConversationActivity.PORT.
    *    The intent data is not empty.
    *  If both conditions hold, attempt to decrypt the sms and push it to a
    *  database. If the sms cannot be decrypted, it was probably not encrypted
    *  under the user's public key.
    *
+   *  Only the pdus are parsed here; decryption and insertion are handed to
+   *  ReceivePipeline so that the main thread is not blocked. The broadcast
+   *  stays alive via goAsync() until the pipeline is done with it.
+   *
    *  @param context context in which the intent was received.
    *  @param intent data associated with the broadcast being processed.
    */
   @Override
   public void onReceive(Context context, Intent intent)
   {
-    //open a connection to database to insert new messages
-
-    MessageInserter inserter = Inserter.getMessageInserter(context);
     //abort if the intent is for not receiving an sms: some strange intent
     Log.d(TAG, "NEW MESSAGE: onReceive() was called");
-    if(!SMSreceiver.ACTION_SMS_RECEIVED.equals(intent.getAction()))
+    boolean data = SMSreceiver.ACTION_DATA_SMS_RECEIVED.equals(
+      intent.getAction());
+    if(!data && !SMSreceiver.ACTION_SMS_RECEIVED.equals(intent.getAction()))
     {
       Log.d(TAG, "Received a non-sms intent.");
       return;
     }
+    if(data && (intent.getData() == null ||
+        intent.getData().getPort() != ConversationActivity.PORT))
+    {
+      Log.d(TAG, "Received a data sms for another port.");
+      return;
+    }
     Bundle extras = intent.getExtras();
 
     if(extras == null)
@@ -70,21 +84,21 @@ public class SMSreceiver extends BroadcastReceiver
       return;
     }
 
-    SmsMessage m = null;
-    //byte[] decryptedBody = null;
-    //iterate through all pdus, constructs sms, decrypt contents, push plaintxt
-    for(Object pdu: ((Object[]) extras.get("pdus")))
+    Object[] pdus = (Object[]) extras.get("pdus");
+    ArrayList<SmsMessage> messages = new ArrayList<SmsMessage>(pdus.length);
+    //iterate through all pdus, constructs sms; decrypt and push in background
+    for(Object pdu: pdus)
     {
-      hexify((byte[])pdu);
-      m = SmsMessage.createFromPdu((byte[]) pdu);
+      if(BuildConfig.DEBUG)
+      {
+        hexify((byte[])pdu);
+      }
+      SmsMessage m = SmsMessage.createFromPdu((byte[]) pdu);
       if(m == null) { continue; }
-      inserter.insertMessage(m);
-      ////just log the sender & message body for now; store it later
-      //Log.d(TAG, "addr:"+m.getOriginatingAddress());
-      //decryptedBody = (Key.getStorer(context)).decrypt(m.getUserData());
-      //Log.d(TAG,("body:"+new String((byte[]) ((decryptedBody == null) ?
-      //  "".getBytes() : decryptedBody))));
+      messages.add(m);
     }
+    ReceivePipeline.submit(context,
+      messages.toArray(new SmsMessage[messages.size()]), data, goAsync());
   }
 
   private static void hexify(byte[] bytes)
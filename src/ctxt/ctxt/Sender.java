@@ -0,0 +1,151 @@
+package ctxt.ctxt;
+
+import ctxt.ctxt.SentReceiver;
+import ctxt.ctxt.Transport;
+import ctxt.key.Key;
+import ctxt.key.NumberKeyPair;
+import ctxt.key.Sessions;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.telephony.SmsManager;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Sender class encrypts and sends the user's messages on a background
+ *  thread, so that neither the session lock nor the session file written by
+ *  Sessions.encrypt() holds up the main thread.
+ *
+ *  A single thread sends every message, in the order they were queued, so
+ *  the messages of a session leave in the order of their message numbers.
+ *  It is stopped after idling for KEEP_ALIVE seconds.
+ *
+ *  The sms's of a message that starts a session report back to SentReceiver,
+ *  which has the session restarted if one of them could not be sent.
+ *
+ *  All methods are static; there is a single sender per process.
+ */
+public final class Sender
+{
+  /**
+   *  Class Variables.
+   *
+   *  TAG constant string to tag debugging messages with.
+   *  KEEP_ALIVE seconds the idle thread lives.
+   *  executor lazily created single thread running the sends.
+   */
+  private static final String TAG = "SENDER";
+  static final int KEEP_ALIVE = 30;
+  private static ThreadPoolExecutor executor = null;
+
+  /**
+   *  Sender() private constructor prevents instantiation; does nothing.
+   */
+  private Sender() {}
+
+  /**
+   *  send() given a recipient and a message queues the message to be
+   *  encrypted on the user's session with the recipient and sent.
+   *
+   *  @param context Context under which keys and sessions are stored.
+   *  @param recipient recipient's phone number, in canonical form.
+   *  @param plainText message to send.
+   */
+  public static void send(Context context, final String recipient,
+      final byte[] plainText)
+  {
+    final Context appContext = context.getApplicationContext();
+    getExecutor().execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        NumberKeyPair key = (Key.getFetcher(appContext)).fetchKey(recipient);
+        if(key == null)
+        {
+          Log.d(TAG, "No key to send to " + recipient);
+          return;
+        }
+        byte[] cipherText =
+          (Key.getSessions(appContext)).encrypt(key, plainText);
+        if(cipherText == null)
+        {
+          return;
+        }
+        Intent sent = new Intent(ConversationActivity.SENT);
+        if(Sessions.startsSession(cipherText))
+        {
+          sent = new Intent(SentReceiver.SESSION_START_SENT,
+            Uri.fromParts("sms", recipient, null), appContext,
+            SentReceiver.class);
+        }
+        //one sms per fragment if the ciphertext does not fit into a single sms
+        Transport.send(appContext, SmsManager.getDefault(), recipient,
+          cipherText,
+          PendingIntent.getBroadcast(appContext, 0, sent,
+            PendingIntent.FLAG_UPDATE_CURRENT),
+          PendingIntent.getBroadcast(appContext, 0,
+            new Intent(ConversationActivity.RECEIVED), Intent.FILL_IN_ACTION));
+      }
+    });
+  }
+
+  /**
+   *  restart() given a recipient queues a restart of the user's session with
+   *  them, see Sessions.restart(), behind the messages already queued.
+   *
+   *  @param context Context under which sessions are stored.
+   *  @param recipient recipient's phone number.
+   */
+  public static void restart(Context context, final String recipient)
+  {
+    final Context appContext = context.getApplicationContext();
+    getExecutor().execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        (Key.getSessions(appContext)).restart(recipient);
+      }
+    });
+  }
+
+  /**
+   *  getExecutor() returns the sending thread's executor, creating it on
+   *  first use.
+   */
+  private static synchronized ThreadPoolExecutor getExecutor()
+  {
+    if(executor == null)
+    {
+      executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory()
+        {
+          @Override
+          public Thread newThread(final Runnable r)
+          {
+            return new Thread(new Runnable()
+            {
+              @Override
+              public void run()
+              {
+                android.os.Process.setThreadPriority(
+                  android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+              }
+            }, "send");
+          }
+        });
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+}
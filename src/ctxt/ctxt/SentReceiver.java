@@ -0,0 +1,52 @@
+package ctxt.ctxt;
+
+import ctxt.ctxt.Sender;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ *  SentReceiver subclass of BroadcastReceiver learns whether the sms's of a
+ *  message starting a session were sent.
+ *
+ *  Every later message of a session can only be decrypted once the message
+ *  starting it has arrived, so if any of its sms's fails to send the session
+ *  is restarted and the next message starts a new one. The broadcast's data
+ *  is the recipient's number as an sms: uri, see Sender.
+ */
+public class SentReceiver extends BroadcastReceiver
+{
+  /**
+   *  Class Variables.
+   *
+   *  SESSION_START_SENT action broadcast once each sms of a message starting
+   *    a session has been sent or has failed.
+   *  TAG constant string to tag debugging messages with.
+   */
+  static final String SESSION_START_SENT = "ctxt.ctxt.SESSION_START_SENT";
+  private static final String TAG = "SENT";
+
+  /**
+   *  onReceive() given the result of sending an sms starting a session,
+   *  restarts the session if the sms was not sent.
+   *
+   *  @param context context in which the intent was received.
+   *  @param intent SESSION_START_SENT with the recipient's number as data.
+   */
+  @Override
+  public void onReceive(Context context, Intent intent)
+  {
+    if(!SESSION_START_SENT.equals(intent.getAction()) ||
+        intent.getData() == null || getResultCode() == Activity.RESULT_OK)
+    {
+      return;
+    }
+    String recipient = intent.getData().getSchemeSpecificPart();
+    Log.d(TAG, "Session start to " + recipient + " failed: "
+      + getResultCode());
+    Sender.restart(context, recipient);
+  }
+}
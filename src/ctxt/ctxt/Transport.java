@@ -0,0 +1,105 @@
+package ctxt.ctxt;
+
+import ctxt.ctxt.ConversationActivity;
+import ctxt.db.Fragments;
+import ctxt.key.Numbers;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.SmsManager;
+
+/**
+ *  Transport class sends ciphertexts to a recipient either as text sms's or
+ *  as data sms's, as chosen per recipient.
+ *
+ *  Text sms's carry Base128 encoded ciphertexts and can be received by any
+ *  phone. Data sms's carry raw ciphertexts to ConversationActivity.PORT,
+ *  skipping Base128 on both ends and the carriers' handling of text; some
+ *  carriers do not deliver them. Ciphertexts too long for one sms of either
+ *  kind are fragmented, see Fragments.
+ *
+ *  The choice is stored in SharedPreferences, keyed by number in canonical
+ *  form, see Numbers. Text is the default.
+ */
+public final class Transport
+{
+  /**
+   *  Class Variables.
+   *
+   *  TEXT, DATA kinds of sms to send ciphertexts in.
+   *  PREFERENCES name of the SharedPreferences holding the choices.
+   */
+  public static final int TEXT = 0;
+  public static final int DATA = 1;
+  private static final String PREFERENCES = "transport";
+
+  /**
+   *  Transport() private constructor prevents instantiation; does nothing.
+   */
+  private Transport() {}
+
+  /**
+   *  get() given a recipient returns the kind of sms to send to them.
+   *
+   *  @param context Context holding the preferences.
+   *  @param number recipient's phone number.
+   *  @return TEXT or DATA.
+   */
+  public static int get(Context context, String number)
+  {
+    return preferences(context).getInt(Numbers.canonical(number), TEXT);
+  }
+
+  /**
+   *  set() given a recipient and a kind of sms sends future ciphertexts to
+   *  them in sms's of that kind.
+   *
+   *  @param context Context holding the preferences.
+   *  @param number recipient's phone number.
+   *  @param transport TEXT or DATA.
+   */
+  public static void set(Context context, String number, int transport)
+  {
+    preferences(context).edit().putInt(Numbers.canonical(number),
+      transport).apply();
+  }
+
+  /**
+   *  send() given a recipient and a ciphertext sends the ciphertext in as
+   *  many sms's of the recipient's kind as it takes.
+   *
+   *  @param context Context holding the preferences.
+   *  @param m SmsManager to send with.
+   *  @param number recipient's phone number.
+   *  @param cipherText ciphertext to send.
+   *  @param sent PendingIntent broadcast when each sms is sent.
+   *  @param delivered PendingIntent broadcast when each sms is delivered.
+   */
+  public static void send(Context context, SmsManager m, String number,
+      byte[] cipherText, PendingIntent sent, PendingIntent delivered)
+  {
+    String destination = PhoneNumberUtils.stripSeparators(number);
+    if(get(context, number) == DATA)
+    {
+      for(byte[] fragment :
+          Fragments.split(cipherText, Fragments.DATA_SMS_BYTES))
+      {
+        m.sendDataMessage(destination, null, ConversationActivity.PORT,
+          fragment, sent, delivered);
+      }
+      return;
+    }
+    //let the unicode string get converted back into binary blob
+    for(String encoded : Fragments.split(cipherText))
+    {
+      m.sendTextMessage(destination, null, encoded, sent, delivered);
+    }
+  }
+
+  private static SharedPreferences preferences(Context context)
+  {
+    return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+  }
+}
@@ -1,12 +1,25 @@
 package ctxt.db;
 
-import android.util.SparseIntArray;
-import android.util.Log;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 
+/**
+ *  Base128 class encodes binary blobs into text that survives being sent as a
+ *  gsm 7-bit sms and decodes them back again.
+ *
+ *  Every 7 bytes of input are loaded into one 56 bit word, split into 8
+ *  septets and each septet is mapped to a character of the gsm alphabet.
+ *  Inputs that are not a multiple of 7 bytes long have their last septet
+ *  padded with zero bits.
+ *
+ *  encode() and decode() are conveniences that allocate their results. The
+ *  bulk methods, encodeInto() and decodeInto(), write into caller supplied
+ *  arrays and allocate nothing; use them on hot paths with reused buffers.
+ *  To work through a payload piecewise, for example one that is not held in
+ *  memory all at once, use the streaming Encoder and Decoder classes.
+ */
 public class Base128
 {
-  private static final String TAG = "BASE128";
   /**
    *  encode() given a blob in the form of a byte array, encode it to base128.
    *  Base128 consists of the set of characters common to the gsm alphabet.
@@ -21,14 +34,28 @@ public class Base128
    */
   public static String encode(byte[] buf)
   {
-    StringBuilder s = new StringBuilder();
-    for(byte b : new Septets(buf))
-    {
-      s.append(findChar(b));
-    }
-    return s.toString();
+    char[] s = new char[encodedLength(buf.length)];
+    encodeInto(buf, 0, buf.length, s, 0);
+    return new String(s);
   }
 
+  /**
+   *  decode() given a String produced from encode() will return the original
+   *  blob.
+   */
+  public static byte[] decode(String septets)
+  {
+    byte[] ret = new byte[decodedLength(septets.length())];
+    decodeInto(septets, 0, septets.length(), ret, 0);
+    return ret;
+  }
+
+  /**
+   *  ESCAPED septet whose char, '|', is not in the gsm basic character set
+   *  but in its extension table, and so takes two septets.
+   */
+  static final int ESCAPED = 0x1b;
+
   //septet -> utf16 char
   protected static char[] map =
   {
@@ -44,274 +71,373 @@ public class Base128
     'ä', 'ö', 'ñ', 'ü', 'à'
   };
 
-  protected static SparseIntArray reverseMap = new SparseIntArray();
+  /**
+   *  reverseMap flat table indexed by utf16 char that holds the septet for
+   *  that char. Chars outside of the gsm alphabet map to 0, the septet for '@'.
+   *  The table is only as long as the largest char in map.
+   */
+  protected static final byte[] reverseMap;
 
   //utf16 char -> septet
   static
   {
-    int i = 0;
-    reverseMap.put('@', i++);
-    reverseMap.put('\u00a3', i++);
-    reverseMap.put('$', i++);
-    reverseMap.put('\u00a5', i++);
-    reverseMap.put('\u00e8', i++);
-    reverseMap.put('\u00e9', i++);
-    reverseMap.put('\u00f9', i++);
-    reverseMap.put('\u00ec', i++);
-    reverseMap.put('\u00f2', i++);
-    reverseMap.put('\u00c7', i++);
-    reverseMap.put('\n', i++);
-    reverseMap.put('\u00d8', i++);
-    reverseMap.put('\u00f8', i++);
-    reverseMap.put('\r', i++);
-    reverseMap.put('\u00c5', i++);
-    reverseMap.put('\u00e5', i++);
-    reverseMap.put('\u0394', i++);
-    reverseMap.put('_', i++);
-    reverseMap.put('\u03a6', i++);
-    reverseMap.put('\u0393', i++);
-    reverseMap.put('\u039b', i++);
-    reverseMap.put('\u03a9', i++);
-    reverseMap.put('\u03a0', i++);
-    reverseMap.put('\u03a8', i++);
-    reverseMap.put('\u03a3', i++);
-    reverseMap.put('\u0398', i++);
-    reverseMap.put('\u039e', i++);
-    reverseMap.put('|', i++);
-    reverseMap.put('\u00c6', i++);
-    reverseMap.put('\u00e6', i++);
-    reverseMap.put('\u00df', i++);
-    reverseMap.put('\u00c9', i++);
-    reverseMap.put(' ', i++);
-    reverseMap.put('!', i++);
-    reverseMap.put('"', i++);
-    reverseMap.put('#', i++);
-    reverseMap.put('\u00a4', i++);
-    reverseMap.put('%', i++);
-    reverseMap.put('&', i++);
-    reverseMap.put('\'', i++);
-    reverseMap.put('(', i++);
-    reverseMap.put(')', i++);
-    reverseMap.put('*', i++);
-    reverseMap.put('+', i++);
-    reverseMap.put(',', i++);
-    reverseMap.put('-', i++);
-    reverseMap.put('.', i++);
-    reverseMap.put('/', i++);
-    reverseMap.put('0', i++);
-    reverseMap.put('1', i++);
-    reverseMap.put('2', i++);
-    reverseMap.put('3', i++);
-    reverseMap.put('4', i++);
-    reverseMap.put('5', i++);
-    reverseMap.put('6', i++);
-    reverseMap.put('7', i++);
-    reverseMap.put('8', i++);
-    reverseMap.put('9', i++);
-    reverseMap.put(':', i++);
-    reverseMap.put(';', i++);
-    reverseMap.put('<', i++);
-    reverseMap.put('=', i++);
-    reverseMap.put('>', i++);
-    reverseMap.put('?', i++);
-    reverseMap.put('\u00a1', i++);
-    reverseMap.put('A', i++);
-    reverseMap.put('B', i++);
-    reverseMap.put('C', i++);
-    reverseMap.put('D', i++);
-    reverseMap.put('E', i++);
-    reverseMap.put('F', i++);
-    reverseMap.put('G', i++);
-    reverseMap.put('H', i++);
-    reverseMap.put('I', i++);
-    reverseMap.put('J', i++);
-    reverseMap.put('K', i++);
-    reverseMap.put('L', i++);
-    reverseMap.put('M', i++);
-    reverseMap.put('N', i++);
-    reverseMap.put('O', i++);
-    reverseMap.put('P', i++);
-    reverseMap.put('Q', i++);
-    reverseMap.put('R', i++);
-    reverseMap.put('S', i++);
-    reverseMap.put('T', i++);
-    reverseMap.put('U', i++);
-    reverseMap.put('V', i++);
-    reverseMap.put('W', i++);
-    reverseMap.put('X', i++);
-    reverseMap.put('Y', i++);
-    reverseMap.put('Z', i++);
-    reverseMap.put('\u00c4', i++);
-    reverseMap.put('\u00d6', i++);
-    reverseMap.put('\u00d1', i++);
-    reverseMap.put('\u00dc', i++);
-    reverseMap.put('\u00a7', i++);
-    reverseMap.put('\u00bf', i++);
-    reverseMap.put('a', i++);
-    reverseMap.put('b', i++);
-    reverseMap.put('c', i++);
-    reverseMap.put('d', i++);
-    reverseMap.put('e', i++);
-    reverseMap.put('f', i++);
-    reverseMap.put('g', i++);
-    reverseMap.put('h', i++);
-    reverseMap.put('i', i++);
-    reverseMap.put('j', i++);
-    reverseMap.put('k', i++);
-    reverseMap.put('l', i++);
-    reverseMap.put('m', i++);
-    reverseMap.put('n', i++);
-    reverseMap.put('o', i++);
-    reverseMap.put('p', i++);
-    reverseMap.put('q', i++);
-    reverseMap.put('r', i++);
-    reverseMap.put('s', i++);
-    reverseMap.put('t', i++);
-    reverseMap.put('u', i++);
-    reverseMap.put('v', i++);
-    reverseMap.put('w', i++);
-    reverseMap.put('x', i++);
-    reverseMap.put('y', i++);
-    reverseMap.put('z', i++);
-    reverseMap.put('\u00e4', i++);
-    reverseMap.put('\u00f6', i++);
-    reverseMap.put('\u00f1', i++);
-    reverseMap.put('\u00fc', i++);
-    reverseMap.put('\u00e0', i++);
+    char max = 0;
+    for(char c : map)
+    {
+      max = (c > max) ? c : max;
+    }
+    reverseMap = new byte[max+1];
+    for(int i = 0; i < map.length; i++)
+    {
+      reverseMap[map[i]] = (byte) i;
+    }
   }
 
   /**
-   *  septet value to java char as dictated by the gsm alphabet
-   *  ESC is mapped to \uffff
+   *  isEncoded() given a string returns whether every char in it is in the
+   *  gsm alphabet, i.e. whether it could have been produced by encode().
    *
-   *  @param septet septet for which char value to lookup
-   *  @return char representation of the septet.
+   *  @param septets characters to check.
+   *  @return whether all chars are in map.
    */
-  private static char findChar(byte septet)
+  public static boolean isEncoded(CharSequence septets)
   {
-    return map[septet];
+    for(int i = 0, n = septets.length(); i < n; i++)
+    {
+      char c = septets.charAt(i);
+      if(c >= reverseMap.length || map[reverseMap[c]] != c)
+      {
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
-   *  java char to septet
+   *  encodedLength() given a number of bytes returns how many characters
+   *  encoding them produces.
+   *
+   *  @param len number of bytes to encode.
+   *  @return number of characters in the encoding.
    */
-  private static int findSeptet(char c)
+  public static int encodedLength(int len)
   {
-    return reverseMap.get(c);
+    return ((len<<3)+6)/7;
   }
 
-  //8 septets -> 7 bytes
-  private static void packSeptets(int i, int j, String s, byte[] o)
+  /**
+   *  decodedLength() given a number of characters returns how many bytes
+   *  decoding them produces. Padding bits in the last character are dropped.
+   *
+   *  @param len number of characters to decode.
+   *  @return number of bytes in the decoding.
+   */
+  public static int decodedLength(int len)
   {
-    o[0+j] = (byte)(((findSeptet(s.charAt(0+i))<<1) | ((findSeptet(s.charAt(1+i))&0x40)>>>6))&0xff);
-    o[1+j] = (byte)(((findSeptet(s.charAt(1+i))<<2) | ((findSeptet(s.charAt(2+i))&0x60)>>>5))&0xff);
-    o[2+j] = (byte)(((findSeptet(s.charAt(2+i))<<3) | ((findSeptet(s.charAt(3+i))&0x70)>>>4))&0xff);
-    o[3+j] = (byte)(((findSeptet(s.charAt(3+i))<<4) | ((findSeptet(s.charAt(4+i))&0x78)>>>3))&0xff);
-    o[4+j] = (byte)(((findSeptet(s.charAt(4+i))<<5) | ((findSeptet(s.charAt(5+i))&0x7c)>>>2))&0xff);
-    o[5+j] = (byte)(((findSeptet(s.charAt(5+i))<<6) | ((findSeptet(s.charAt(6+i))&0x7e)>>>1))&0xff);
-    o[6+j] = (byte)(((findSeptet(s.charAt(6+i))<<7) |  (findSeptet(s.charAt(7+i))&0x7f))&0xff);
+    return (len*7)>>3;
   }
 
   /**
-   *  decode() given a String produced from encode() will return the original
-   *  blob.
+   *  septetLength() given a range of characters produced by encode() returns
+   *  how many septets they take in a gsm 7-bit sms.
+   *
+   *  Septet ESCAPED is the escape code of the gsm alphabet; map puts '|' in
+   *  its place, which a gsm sms sends as the escape code followed by a second
+   *  septet. Every other character of map takes one septet.
+   *
+   *  @param chars characters to measure.
+   *  @param off index of the first character.
+   *  @param len number of characters.
+   *  @return number of septets the characters are sent as.
    */
-  public static byte[] decode(String septets)
+  public static int septetLength(char[] chars, int off, int len)
+  {
+    int septets = len;
+    for(int i = off, end = off+len; i < end; i++)
+    {
+      if(chars[i] == map[ESCAPED])
+      {
+        septets++;
+      }
+    }
+    return septets;
+  }
+
+  /**
+   *  encodeInto() given a range of a byte array will write its encoding into a
+   *  char array.
+   *
+   *  dst must have room for encodedLength(len) characters starting at dstOff.
+   *  Nothing is allocated.
+   *
+   *  @param src byte array to encode.
+   *  @param off index of the first byte in src to encode.
+   *  @param len number of bytes to encode.
+   *  @param dst char array to write the encoding into.
+   *  @param dstOff index in dst to write the first character to.
+   *  @return number of characters written.
+   */
+  public static int encodeInto(byte[] src, int off, int len, char[] dst,
+      int dstOff)
   {
-    byte[] ret = new byte[(septets.length()*7)>>3];
-    for(int i = 0, j = 0; j < ret.length; j+=7, i+=8)
+    int i = off;
+    int d = dstOff;
+    int end = off+len;
+    //whole groups: 7 bytes -> 1 word -> 8 septets
+    for(; end-i >= 7; i += 7, d += 8)
     {
-      packSeptets(i, j, septets, ret);
+      long w = ((src[i  ]&0xffL)<<48) | ((src[i+1]&0xffL)<<40) |
+               ((src[i+2]&0xffL)<<32) | ((src[i+3]&0xffL)<<24) |
+               ((src[i+4]&0xffL)<<16) | ((src[i+5]&0xffL)<< 8) |
+                (src[i+6]&0xffL);
+      dst[d  ] = map[(int)(w>>>49)&0x7f];
+      dst[d+1] = map[(int)(w>>>42)&0x7f];
+      dst[d+2] = map[(int)(w>>>35)&0x7f];
+      dst[d+3] = map[(int)(w>>>28)&0x7f];
+      dst[d+4] = map[(int)(w>>>21)&0x7f];
+      dst[d+5] = map[(int)(w>>>14)&0x7f];
+      dst[d+6] = map[(int)(w>>> 7)&0x7f];
+      dst[d+7] = map[(int) w      &0x7f];
     }
-    return ret;
+    //tail of less than 7 bytes
+    int bits = 0; //number of bits in acc not yet written out
+    int acc = 0;
+    for(; i < end; i++)
+    {
+      acc = (acc<<8) | (src[i]&0xff);
+      bits += 8;
+      while(bits >= 7)
+      {
+        bits -= 7;
+        dst[d++] = map[(acc>>>bits)&0x7f];
+      }
+    }
+    //pad the last septet with zeros
+    if(bits > 0)
+    {
+      dst[d++] = map[(acc<<(7-bits))&0x7f];
+    }
+    return d-dstOff;
   }
 
   /**
-   *  Septets class provides a way to iterate over the packed septets in a byte
-   *  array.
+   *  decodeInto() given a range of characters produced by encode() will write
+   *  the original bytes into a byte array.
+   *
+   *  dst must have room for decodedLength(len) bytes starting at dstOff.
+   *  Characters outside of the gsm alphabet decode as the septet 0. Nothing
+   *  is allocated.
+   *
+   *  @param src characters to decode.
+   *  @param off index of the first character in src to decode.
+   *  @param len number of characters to decode.
+   *  @param dst byte array to write the decoding into.
+   *  @param dstOff index in dst to write the first byte to.
+   *  @return number of bytes written.
+   */
+  public static int decodeInto(CharSequence src, int off, int len, byte[] dst,
+      int dstOff)
+  {
+    int i = off;
+    int d = dstOff;
+    int end = off+len;
+    //whole groups: 8 septets -> 1 word -> 7 bytes
+    for(; end-i >= 8; i += 8, d += 7)
+    {
+      long w = ((long)findSeptet(src.charAt(i  ))<<49) |
+               ((long)findSeptet(src.charAt(i+1))<<42) |
+               ((long)findSeptet(src.charAt(i+2))<<35) |
+               ((long)findSeptet(src.charAt(i+3))<<28) |
+               ((long)findSeptet(src.charAt(i+4))<<21) |
+               ((long)findSeptet(src.charAt(i+5))<<14) |
+               ((long)findSeptet(src.charAt(i+6))<< 7) |
+                (long)findSeptet(src.charAt(i+7));
+      dst[d  ] = (byte)(w>>>48);
+      dst[d+1] = (byte)(w>>>40);
+      dst[d+2] = (byte)(w>>>32);
+      dst[d+3] = (byte)(w>>>24);
+      dst[d+4] = (byte)(w>>>16);
+      dst[d+5] = (byte)(w>>> 8);
+      dst[d+6] = (byte) w;
+    }
+    //tail of less than 8 characters
+    int bits = 0; //number of bits in acc not yet written out
+    int acc = 0;
+    for(; i < end; i++)
+    {
+      acc = (acc<<7) | findSeptet(src.charAt(i));
+      bits += 7;
+      if(bits >= 8)
+      {
+        bits -= 8;
+        dst[d++] = (byte)(acc>>>bits);
+      }
+    }
+    //any remaining bits are padding
+    return d-dstOff;
+  }
+
+  /**
+   *  java char to septet
+   */
+  private static int findSeptet(char c)
+  {
+    return (c < reverseMap.length) ? reverseMap[c] : 0;
+  }
+
+  /**
+   *  Encoder class incrementally encodes bytes from ByteBuffers into
+   *  CharBuffers.
+   *
+   *  Bits that do not yet make up a whole septet are carried over between
+   *  calls to encode(), so a payload can be fed in pieces of any length. Call
+   *  finish() once the whole payload has been fed to write out the padded
+   *  last septet.
    *
-   *  This class is both Iterable and an Iterator.
-   *  for(byte b : new Septets({0x7f, ..., 0x48}))
+   *  Encoder e = new Base128.Encoder();
+   *  while(--more input--) { e.encode(in, out); --drain out-- }
+   *  e.finish(out);
    */
-  static class Septets implements Iterable<Byte>, Iterator<Byte>
+  public static class Encoder
   {
     /**
      *  Member Variables.
      *
-     *  i for memory access
-     *  j for shifting
+     *  acc int holding bits read, but not yet written out.
+     *  bits number of bits in acc not yet written out; always less than 7
+     *    between calls.
      */
-    private int septetCount;
-    private int i = 0;
-    private int j = 8;
-    private int prev = 0;
-    private byte[] b;
-    private int[] buf;
+    private int acc = 0;
+    private int bits = 0;
 
     /**
-     *  Septets constructs a new iterator over the septets in given byte array.
+     *  encode() encodes as many bytes from in into out as will fit.
      *
-     *  @param b byte array to iterate over.
+     *  Upon return either in has no bytes remaining or out does not have room
+     *  for the next byte's characters. The positions of both buffers are
+     *  advanced past what was consumed and produced.
+     *
+     *  @param in ByteBuffer to read bytes from.
+     *  @param out CharBuffer to write characters to.
      */
-    Septets(byte[] b)
+    public void encode(ByteBuffer in, CharBuffer out)
     {
-      this.b = b;
-      septetCount = (b.length<<3)/7;
-      buf = new int[8];
+      //whole groups straight from the backing arrays
+      if(bits == 0 && in.hasArray() && out.hasArray())
+      {
+        int groups = Math.min(in.remaining()/7, out.remaining()>>3);
+        int n = Base128.encodeInto(in.array(), in.arrayOffset()+in.position(),
+          groups*7, out.array(), out.arrayOffset()+out.position());
+        in.position(in.position()+groups*7);
+        out.position(out.position()+n);
+      }
+      //one byte yields one or two characters
+      while(in.hasRemaining() && out.remaining() >= (bits+8)/7)
+      {
+        acc = (acc<<8) | (in.get()&0xff);
+        bits += 8;
+        while(bits >= 7)
+        {
+          bits -= 7;
+          out.put(map[(acc>>>bits)&0x7f]);
+        }
+      }
     }
 
     /**
-     *  iterator() returns an iterator over the septets in a given byte array.
+     *  finish() writes out the last septet, padded with zeros, and resets this
+     *  Encoder for a new payload.
+     *
+     *  @param out CharBuffer to write the last character to.
+     *  @return false if out has no room for the last character; nothing is
+     *    written and finish() should be called again.
      */
-    @Override
-    public Septets iterator()
+    public boolean finish(CharBuffer out)
     {
-      return this;
+      if(bits > 0)
+      {
+        if(!out.hasRemaining())
+        {
+          return false;
+        }
+        out.put(map[(acc<<(7-bits))&0x7f]);
+      }
+      reset();
+      return true;
     }
 
     /**
-     *  hasNext() returns whether this iterator can produce another septet.
+     *  reset() drops any carried over bits.
      */
-    @Override
-    public boolean hasNext()
+    public void reset()
     {
-      return (septetCount > 0);
+      acc = 0;
+      bits = 0;
     }
+  }
 
-    private void loadBuffer(int i)
-    {
-      buf[0] = b[i+0]>>>1;
-      buf[1] = (b[i+0]<<6) | ((b[i+1]&0xff)>>>2);
-      buf[2] = (b[i+1]<<5) | ((b[i+2]&0xff)>>>3);
-      buf[3] = (b[i+2]<<4) | ((b[i+3]&0xff)>>>4);
-      buf[4] = (b[i+3]<<3) | ((b[i+4]&0xff)>>>5);
-      buf[5] = (b[i+4]<<2) | ((b[i+5]&0xff)>>>6);
-      buf[6] = (b[i+5]<<1) | ((b[i+6]&0xff)>>>7);
-      buf[7] = b[i+6];
-    }
+  /**
+   *  Decoder class incrementally decodes characters from CharBuffers into
+   *  ByteBuffers.
+   *
+   *  Septets that do not yet make up a whole byte are carried over between
+   *  calls to decode(), so an encoding can be fed in pieces of any length.
+   *  Once the whole encoding has been fed, the carried over bits are the
+   *  padding of the last septet; call reset() before decoding another one.
+   */
+  public static class Decoder
+  {
+    /**
+     *  Member Variables.
+     *
+     *  acc int holding bits read, but not yet written out.
+     *  bits number of bits in acc not yet written out; always less than 8
+     *    between calls.
+     */
+    private int acc = 0;
+    private int bits = 0;
 
     /**
-     *  next() produces the next septet in the sequence.
+     *  decode() decodes as many characters from in into out as will fit.
+     *
+     *  Upon return either in has no characters remaining or out is full. The
+     *  positions of both buffers are advanced past what was consumed and
+     *  produced.
      *
-     *  @return next septet in the byte array.
+     *  @param in CharBuffer to read characters from.
+     *  @param out ByteBuffer to write bytes to.
      */
-    @Override
-    public Byte next()
+    public void decode(CharBuffer in, ByteBuffer out)
     {
-      if(j == 8)
+      //whole groups straight into the backing array
+      if(bits == 0 && out.hasArray())
+      {
+        int groups = Math.min(in.remaining()>>3, out.remaining()/7);
+        int n = Base128.decodeInto(in, 0, groups<<3, out.array(),
+          out.arrayOffset()+out.position());
+        in.position(in.position()+(groups<<3));
+        out.position(out.position()+n);
+      }
+      //one character yields at most one byte
+      while(in.hasRemaining() && (bits == 0 || out.hasRemaining()))
       {
-        loadBuffer(i);
-        i += 7;
-        j = 0;
+        acc = (acc<<7) | findSeptet(in.get());
+        bits += 7;
+        if(bits >= 8)
+        {
+          bits -= 8;
+          out.put((byte)(acc>>>bits));
+        }
       }
-      --septetCount;
-      return (byte)(buf[j++]&0x7f);
     }
 
-    @Override
     /**
-     *  remove() does nothing.
+     *  reset() drops any carried over bits.
      */
-    public void remove() { }
+    public void reset()
+    {
+      acc = 0;
+      bits = 0;
+    }
   }
 }
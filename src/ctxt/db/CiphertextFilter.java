@@ -0,0 +1,195 @@
+package ctxt.db;
+
+import ctxt.db.Base128;
+import ctxt.db.Fragments;
+
+import ctxt.key.Envelope;
+import ctxt.key.Key;
+import ctxt.key.Sessions;
+
+import android.content.Context;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  CiphertextFilter class tells ciphertexts apart from ordinary sms's before
+ *  any decryption is attempted.
+ *
+ *  Every sms received passes through the filter; most are plaintexts from
+ *  other people. The checks, cheapest first:
+ *    version: the first byte is a known version byte, or the body is exactly
+ *      the encoding of a plain RSA ciphertext.
+ *    length: the body is long enough for its version. Fragments of longer
+ *      ciphertexts, see Fragments, may be short.
+ *    alphabet: every char is in Base128's alphabet.
+ *    sender: a public key is stored for the sender, so the user has exchanged
+ *      keys with them.
+ *  Only the first two chars are decoded; no crypto is done. Bodies of data
+ *  sms's are not encoded, so the alphabet check does not apply to them.
+ *
+ *  Counters of accepted sms's and of rejections by check are kept for the
+ *  lifetime of the process.
+ */
+public final class CiphertextFilter
+{
+  /**
+   *  Class Variables.
+   *
+   *  ACCEPTED, REJECTED_LENGTH, REJECTED_VERSION, REJECTED_ALPHABET,
+   *    REJECTED_SENDER results of classify().
+   *  RSA_LENGTH number of chars in the encoding of a plain RSA ciphertext.
+   *  counts number of sms's classified by result.
+   */
+  public static final int ACCEPTED = 0;
+  public static final int REJECTED_LENGTH = 1;
+  public static final int REJECTED_VERSION = 2;
+  public static final int REJECTED_ALPHABET = 3;
+  public static final int REJECTED_SENDER = 4;
+  static final int RSA_LENGTH = Base128.encodedLength(Envelope.RSA_BYTES);
+  private static final AtomicLong[] counts = {new AtomicLong(),
+    new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong()};
+
+  /**
+   *  CiphertextFilter() private constructor prevents instantiation; does
+   *  nothing.
+   */
+  private CiphertextFilter() {}
+
+  /**
+   *  accept() given the sender and body of an sms returns whether it should
+   *  be decrypted.
+   *
+   *  @param context Context under which keys are stored.
+   *  @param sender phone number the sms is from.
+   *  @param body body of the sms.
+   *  @return whether the sms may be a ciphertext for the user.
+   */
+  public static boolean accept(Context context, String sender, String body)
+  {
+    return classify(context, sender, body) == ACCEPTED;
+  }
+
+  /**
+   *  classify() given the sender and body of an sms returns ACCEPTED or the
+   *  first check it fails, and counts the result.
+   *
+   *  @param context Context under which keys are stored.
+   *  @param sender phone number the sms is from.
+   *  @param body body of the sms.
+   *  @return ACCEPTED or one of the REJECTED_ results.
+   */
+  public static int classify(Context context, String sender, String body)
+  {
+    int result = check(context, sender, body);
+    counts[result].incrementAndGet();
+    return result;
+  }
+
+  /**
+   *  classify() given the sender and body of a data sms returns ACCEPTED or
+   *  the first check it fails, and counts the result.
+   *
+   *  @param context Context under which keys are stored.
+   *  @param sender phone number the sms is from.
+   *  @param body user data of the sms.
+   *  @return ACCEPTED or one of the REJECTED_ results.
+   */
+  public static int classify(Context context, String sender, byte[] body)
+  {
+    int result = check(context, sender, body);
+    counts[result].incrementAndGet();
+    return result;
+  }
+
+  private static int check(Context context, String sender, String body)
+  {
+    if(body == null || body.length() < 2)
+    {
+      return REJECTED_LENGTH;
+    }
+    if(body.length() != RSA_LENGTH)
+    {
+      //the version byte is the first septet and a bit of the second
+      byte[] version = new byte[1];
+      Base128.decodeInto(body, 0, 2, version, 0);
+      int result = checkVersion(version[0],
+        Base128.decodedLength(body.length()));
+      if(result != ACCEPTED)
+      {
+        return result;
+      }
+    }
+    if(!Base128.isEncoded(body))
+    {
+      return REJECTED_ALPHABET;
+    }
+    return checkSender(context, sender);
+  }
+
+  private static int check(Context context, String sender, byte[] body)
+  {
+    if(body == null || body.length == 0)
+    {
+      return REJECTED_LENGTH;
+    }
+    if(body.length != Envelope.RSA_BYTES)
+    {
+      int result = checkVersion(body[0], body.length);
+      if(result != ACCEPTED)
+      {
+        return result;
+      }
+    }
+    return checkSender(context, sender);
+  }
+
+  /**
+   *  checkVersion() given the first byte and length of a ciphertext checks
+   *  that the byte is a version byte and the ciphertext long enough for it.
+   */
+  private static int checkVersion(byte version, int length)
+  {
+    int min = (version == Fragments.VERSION_FRAGMENT)
+      ? Fragments.HEADER_BYTES+1 : Sessions.minimumLength(version);
+    if(min < 0)
+    {
+      return REJECTED_VERSION;
+    }
+    return (length < min) ? REJECTED_LENGTH : ACCEPTED;
+  }
+
+  private static int checkSender(Context context, String sender)
+  {
+    if(sender == null || !(Key.getFetcher(context)).hasKey(sender))
+    {
+      return REJECTED_SENDER;
+    }
+    return ACCEPTED;
+  }
+
+  /**
+   *  getCount() given a result of classify() returns how many sms's got it.
+   *
+   *  @param result ACCEPTED or one of the REJECTED_ results.
+   *  @return number of sms's classified as result.
+   */
+  public static long getCount(int result)
+  {
+    return counts[result].get();
+  }
+
+  /**
+   *  getStats() returns the number of sms's accepted and rejected by each
+   *  check.
+   *
+   *  @return String describing the filter's counters.
+   */
+  public static String getStats()
+  {
+    return "CiphertextFilter[accepted=" + counts[ACCEPTED].get()
+      + ",length=" + counts[REJECTED_LENGTH].get()
+      + ",version=" + counts[REJECTED_VERSION].get()
+      + ",alphabet=" + counts[REJECTED_ALPHABET].get()
+      + ",sender=" + counts[REJECTED_SENDER].get() + "]";
+  }
+}
@@ -0,0 +1,84 @@
+package ctxt.db;
+
+import ctxt.db.Names;
+import ctxt.key.Numbers;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ *  Contacts class maps canonical phone numbers, see Numbers, to the integer
+ *  contact ids messages reference them by.
+ *
+ *  Each number is stored once in the contact table. intern() does not cache
+ *  the ids it sees: an id may be rolled back with its write.
+ */
+final class Contacts
+{
+  /**
+   *  Member Variables.
+   *
+   *  findStatement prepared statement looking up a number's id. Guards
+   *    itself.
+   *  internStatement prepared statement adding a number; writer thread only.
+   */
+  private final SQLiteStatement findStatement;
+  private final SQLiteStatement internStatement;
+
+  /**
+   *  Contacts() given a database compiles the statements looking numbers up
+   *  in it.
+   *
+   *  @param db SQLiteDatabase holding the contact table.
+   */
+  Contacts(SQLiteDatabase db)
+  {
+    findStatement = db.compileStatement(
+      "SELECT "+Names.CONTACT_NO+" FROM "+Names.CONTACT_TABLE_NAME+" WHERE "+
+      Names.CONTACT_NUMBER+"=?;");
+    internStatement = db.compileStatement(
+      "INSERT OR IGNORE INTO "+Names.CONTACT_TABLE_NAME+"("+
+      Names.CONTACT_NUMBER+") VALUES (?);");
+  }
+
+  /**
+   *  intern() given a phone number returns its contact id, adding it to the
+   *  contact table if it is new. Only call this on the writer thread, see
+   *  WriteQueue, inside a write.
+   *
+   *  @param number phone number in any format.
+   *  @return contact id.
+   */
+  long intern(String number)
+  {
+    String canonical = Numbers.canonical(number);
+    long id = query(canonical);
+    if(id >= 0)
+    {
+      return id;
+    }
+    internStatement.bindString(1, canonical);
+    return internStatement.executeInsert();
+  }
+
+  /**
+   *  query() given a canonical number returns its contact id as the
+   *  connection sees it, or -1.
+   */
+  private long query(String canonical)
+  {
+    synchronized(findStatement)
+    {
+      findStatement.bindString(1, canonical);
+      try
+      {
+        return findStatement.simpleQueryForLong();
+      }
+      catch(SQLiteDoneException e)
+      {
+        return -1;
+      }
+    }
+  }
+}
@@ -0,0 +1,307 @@
+package ctxt.db;
+
+import ctxt.db.MessageProvider;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.util.LinkedList;
+
+/**
+ *  ConversationLoader class loads a window of a conversation's messages
+ *  through MessageProvider, off the main thread.
+ *
+ *  The window starts at the newest page of messages. loadOlder() and
+ *  loadNewer() read a page before or after it, each by a keyset query, see
+ *  MessageProvider.BEFORE and AFTER; the messages already in the window are
+ *  not read again. At most MAX_ROWS messages are kept: a page read at one
+ *  end drops as many messages at the other, so memory stays bounded however
+ *  long the conversation is scrolled.
+ *
+ *  When a message is written to the conversation, only the messages after
+ *  the newest in the window are read and appended, and only if the window
+ *  reaches the newest message; otherwise loadNewer() reads them once the
+ *  list is scrolled there. Messages are never changed once written, so the
+ *  rows in the window stay valid.
+ *
+ *  Each Cursor delivered is an in memory copy of the window; the loader
+ *  closes the previous one once a new one is delivered.
+ */
+public class ConversationLoader extends AsyncTaskLoader<Cursor>
+{
+  /**
+   *  Class Variables.
+   *
+   *  COLUMNS columns of the cursors delivered, as MessageProvider returns
+   *    them.
+   *  MAX_ROWS maximum number of messages kept.
+   */
+  private static final String[] COLUMNS = {Names.MESSAGE_NO,
+    Names.SENDER_NAME, Names.RECEIPT_DATE, Names.MESSAGE};
+  public static final int MAX_ROWS = MessageProvider.MAX_LIMIT;
+
+  /**
+   *  Member Variables.
+   *
+   *  number canonical number of the conversation.
+   *  observer ContentObserver of the conversation's URI while started.
+   *  rows messages in the window, oldest first, as COLUMNS; only touched
+   *    by loadInBackground().
+   *  older, newer, changed pages requested by loadOlder(), loadNewer() and
+   *    writes to the conversation, not yet read. Guarded by the loader.
+   *  hasOlder, atNewest whether there may be messages before the window and
+   *    whether the window reaches the newest message. Guarded by the loader.
+   *  cursor Cursor last delivered.
+   */
+  private final String number;
+  private final ContentObserver observer;
+  private final LinkedList<Object[]> rows = new LinkedList<Object[]>();
+  private boolean older = false;
+  private boolean newer = false;
+  private boolean changed = false;
+  private boolean hasOlder = true;
+  private boolean atNewest = true;
+  private Cursor cursor;
+
+  /**
+   *  ConversationLoader() given a context and a phone number constructs a
+   *  loader of that number's conversation.
+   *
+   *  @param context Context of the provider.
+   *  @param number phone number in any format.
+   */
+  public ConversationLoader(Context context, String number)
+  {
+    super(context);
+    this.number = number;
+    this.observer = new ForceLoadContentObserver();
+  }
+
+  /**
+   *  loadOlder() reads the page before the window, if there may be one and
+   *  it is not being read already.
+   *
+   *  @return whether a page is read.
+   */
+  public boolean loadOlder()
+  {
+    synchronized(this)
+    {
+      if(!hasOlder || older)
+      {
+        return false;
+      }
+      older = true;
+    }
+    forceLoad();
+    return true;
+  }
+
+  /**
+   *  loadNewer() reads the page after the window, if the window does not
+   *  reach the newest message and the page is not being read already.
+   *
+   *  @return whether a page is read.
+   */
+  public boolean loadNewer()
+  {
+    synchronized(this)
+    {
+      if(atNewest || newer)
+      {
+        return false;
+      }
+      newer = true;
+    }
+    forceLoad();
+    return true;
+  }
+
+  /**
+   *  onContentChanged() when the conversation is written to reads the
+   *  messages after the window.
+   */
+  @Override
+  public void onContentChanged()
+  {
+    synchronized(this)
+    {
+      changed = true;
+    }
+    super.onContentChanged();
+  }
+
+  /**
+   *  loadInBackground() reads the pages requested, drops the messages that
+   *  no longer fit and returns a copy of the window. Loads are serialized,
+   *  as a cancelled load may still be running when the next one starts.
+   */
+  @Override
+  public synchronized Cursor loadInBackground()
+  {
+    boolean readOlder = older;
+    boolean readNewer = newer || (changed && atNewest);
+    older = newer = changed = false;
+    if(rows.isEmpty())
+    {
+      int read = read(MessageProvider.conversation(number,
+        MessageProvider.PAGE_SIZE), false);
+      hasOlder = (read == MessageProvider.PAGE_SIZE);
+      atNewest = true;
+    }
+    else
+    {
+      if(readOlder)
+      {
+        long first = (Long) rows.getFirst()[0];
+        int read = read(MessageProvider.conversation(number, first, true,
+          MessageProvider.PAGE_SIZE), true);
+        hasOlder = (read == MessageProvider.PAGE_SIZE);
+        while(rows.size() > MAX_ROWS)
+        {
+          rows.removeLast();
+          atNewest = false;
+        }
+      }
+      if(readNewer)
+      {
+        long last = (Long) rows.getLast()[0];
+        int read = read(MessageProvider.conversation(number, last, false,
+          MessageProvider.PAGE_SIZE), false);
+        atNewest = (read < MessageProvider.PAGE_SIZE);
+        while(rows.size() > MAX_ROWS)
+        {
+          rows.removeFirst();
+          hasOlder = true;
+        }
+      }
+    }
+    MatrixCursor window = new MatrixCursor(COLUMNS, rows.size());
+    for(Object[] row : rows)
+    {
+      window.addRow(row);
+    }
+    return window;
+  }
+
+  /**
+   *  read() given the URI of a page copies its messages to either end of
+   *  the window.
+   *
+   *  @param uri URI of a page of the conversation, see MessageProvider.
+   *  @param first whether the page goes before the window rather than after.
+   *  @return number of messages read.
+   */
+  private int read(Uri uri, boolean first)
+  {
+    Cursor c = getContext().getContentResolver().query(uri, null, null, null,
+      null);
+    if(c == null)
+    {
+      return 0;
+    }
+    try
+    {
+      LinkedList<Object[]> page = new LinkedList<Object[]>();
+      while(c.moveToNext())
+      {
+        page.add(new Object[] {c.getLong(0), c.getShort(1), c.getLong(2),
+          c.getString(3)});
+      }
+      if(first)
+      {
+        rows.addAll(0, page);
+      }
+      else
+      {
+        rows.addAll(page);
+      }
+      return page.size();
+    }
+    finally
+    {
+      c.close();
+    }
+  }
+
+  /**
+   *  deliverResult() hands a new window to the client and closes the one it
+   *  replaces.
+   */
+  @Override
+  public void deliverResult(Cursor c)
+  {
+    if(isReset())
+    {
+      if(c != null)
+      {
+        c.close();
+      }
+      return;
+    }
+    Cursor old = cursor;
+    cursor = c;
+    if(isStarted())
+    {
+      super.deliverResult(c);
+    }
+    if(old != null && old != c && !old.isClosed())
+    {
+      old.close();
+    }
+  }
+
+  /**
+   *  onStartLoading() watches the conversation and delivers the window,
+   *  loading it first if it has not been or the conversation changed.
+   */
+  @Override
+  protected void onStartLoading()
+  {
+    getContext().getContentResolver().registerContentObserver(
+      MessageProvider.conversation(number), false, observer);
+    if(cursor != null)
+    {
+      deliverResult(cursor);
+    }
+    if(takeContentChanged() || cursor == null)
+    {
+      forceLoad();
+    }
+  }
+
+  @Override
+  protected void onStopLoading()
+  {
+    cancelLoad();
+  }
+
+  @Override
+  public void onCanceled(Cursor c)
+  {
+    if(c != null && !c.isClosed())
+    {
+      c.close();
+    }
+  }
+
+  /**
+   *  onReset() stops watching the conversation and closes the window.
+   */
+  @Override
+  protected void onReset()
+  {
+    super.onReset();
+    onStopLoading();
+    getContext().getContentResolver().unregisterContentObserver(observer);
+    if(cursor != null && !cursor.isClosed())
+    {
+      cursor.close();
+    }
+    cursor = null;
+  }
+}
@@ -0,0 +1,438 @@
+package ctxt.db;
+
+import ctxt.db.Base128;
+
+import ctxt.key.Envelope;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Fragments class splits ciphertexts that do not fit into a single sms into
+ *  numbered fragments and reassembles them on the receiving end.
+ *
+ *  A text sms carries SMS_SEPTETS septets. Base128 encodes SMS_BYTES into
+ *  160 characters, but one of its characters, '|', takes two septets, see
+ *  Base128.septetLength(), so a text sms holds at most SMS_BYTES and fewer
+ *  the more '|'s their encoding has. A data sms to a port carries at most
+ *  DATA_SMS_BYTES. A ciphertext that fits is sent as is. A longer ciphertext
+ *  is cut into fragments, each laid out as:
+ *    VERSION_FRAGMENT byte
+ *    2 byte message id, chosen by the sender
+ *    1 byte index of the fragment
+ *    1 byte number of fragments
+ *    the rest of the sms filled with the ciphertext
+ *  Fragments of a text sms are cut as long as their encoding fits, so they
+ *  differ in length; the receiver only relies on the index and count.
+ *  No ciphertext starts with VERSION_FRAGMENT, so the receiver tells the two
+ *  apart by the first byte. The exception is a plain RSA ciphertext, which
+ *  has no version byte and may start with any byte; it is exactly
+ *  Envelope.RSA_BYTES long, so no fragment is made that long.
+ *
+ *  Fragments may arrive in separate broadcasts and in any order. The
+ *  Reassembler buffers them by sender and message id until all have arrived.
+ *  The fragments themselves are not authenticated; the reassembled ciphertext
+ *  is.
+ */
+public final class Fragments
+{
+  /**
+   *  Class Variables.
+   *
+   *  VERSION_FRAGMENT first byte of a fragment.
+   *  SMS_SEPTETS number of septets a text sms holds.
+   *  SMS_BYTES number of bytes whose encoding fills a text sms if it has no
+   *    '|'.
+   *  DATA_SMS_BYTES number of bytes a data sms holds after the 7 bytes of
+   *    header addressing its port.
+   *  HEADER_BYTES length of the header of a fragment.
+   *  HEADER_CHARS number of characters of the encoding of a fragment holding
+   *    bits of its header.
+   *  MAX_FRAGMENTS maximum number of fragments per ciphertext.
+   *  nextId message id of the next fragmented ciphertext.
+   */
+  public static final byte VERSION_FRAGMENT = 0x06;
+  public static final int SMS_SEPTETS = 160;
+  public static final int SMS_BYTES = 140;
+  public static final int DATA_SMS_BYTES = 133;
+  public static final int HEADER_BYTES = 5;
+  static final int HEADER_CHARS = (HEADER_BYTES*8+6)/7;
+  static final int MAX_FRAGMENTS = 255;
+  private static final AtomicInteger nextId =
+    new AtomicInteger((new Random()).nextInt());
+
+  /**
+   *  Fragments() private constructor prevents instantiation; does nothing.
+   */
+  private Fragments() {}
+
+  /**
+   *  isFragment() given the decoded body of an sms returns whether it is a
+   *  fragment.
+   */
+  public static boolean isFragment(byte[] body)
+  {
+    return body.length > HEADER_BYTES && body[0] == VERSION_FRAGMENT &&
+      body.length != Envelope.RSA_BYTES;
+  }
+
+  /**
+   *  split() given a ciphertext returns the Base128 encoded bodies of the
+   *  text sms's to send it in, none longer than SMS_SEPTETS septets.
+   *
+   *  Each fragment takes as much of the ciphertext as fits. Its header is
+   *  counted as HEADER_CHARS characters that all take two septets, so the
+   *  cut does not depend on the header, which holds the number of fragments.
+   *
+   *  @param cipherText ciphertext to send.
+   *  @return sms bodies; a single body holding the ciphertext if it fits.
+   *  @throws IllegalArgumentException if cipherText needs more than
+   *    MAX_FRAGMENTS fragments.
+   */
+  public static String[] split(byte[] cipherText)
+  {
+    char[] chars = new char[Base128.encodedLength(
+      Math.max(cipherText.length, SMS_BYTES))];
+    int n = Base128.encodeInto(cipherText, 0, cipherText.length, chars, 0);
+    if(Base128.septetLength(chars, 0, n) <= SMS_SEPTETS)
+    {
+      return new String[] {new String(chars, 0, n)};
+    }
+    byte[] fragment = new byte[SMS_BYTES];
+    int[] payloads = new int[MAX_FRAGMENTS];
+    int count = 0;
+    for(int off = 0; off < cipherText.length; off += payloads[count++])
+    {
+      if(count == MAX_FRAGMENTS)
+      {
+        throw new IllegalArgumentException("Ciphertext too long to fragment.");
+      }
+      int payload = Math.min(SMS_BYTES - HEADER_BYTES,
+        cipherText.length - off);
+      System.arraycopy(cipherText, off, fragment, HEADER_BYTES, payload);
+      //no fragment may be as long as an RSA ciphertext either
+      while(HEADER_BYTES + payload == Envelope.RSA_BYTES ||
+          septets(fragment, HEADER_BYTES + payload, chars) > SMS_SEPTETS)
+      {
+        --payload;
+      }
+      payloads[count] = payload;
+    }
+    byte[][] fragments = join(cipherText, payloads, count);
+    String[] bodies = new String[count];
+    for(int i = 0; i < count; i++)
+    {
+      bodies[i] = Base128.encode(fragments[i]);
+    }
+    return bodies;
+  }
+
+  /**
+   *  septets() given a fragment returns an upper bound of the septets its
+   *  encoding takes whatever its header: the characters after HEADER_CHARS
+   *  only hold bits of the payload.
+   *
+   *  @param fragment fragment, of which the header is ignored.
+   *  @param len length of the fragment.
+   *  @param chars room for the encoding of len bytes.
+   *  @return septets the fragment takes at most.
+   */
+  private static int septets(byte[] fragment, int len, char[] chars)
+  {
+    int n = Base128.encodeInto(fragment, 0, len, chars, 0);
+    return 2*HEADER_CHARS +
+      Base128.septetLength(chars, HEADER_CHARS, n - HEADER_CHARS);
+  }
+
+  /**
+   *  split() given a ciphertext and the capacity of an sms returns the bodies
+   *  of the sms's to send it in, unencoded.
+   *
+   *  @param cipherText ciphertext to send.
+   *  @param smsBytes number of bytes an sms holds, e.g. DATA_SMS_BYTES.
+   *  @return sms bodies; the ciphertext itself if it fits.
+   *  @throws IllegalArgumentException if cipherText needs more than
+   *    MAX_FRAGMENTS fragments.
+   */
+  public static byte[][] split(byte[] cipherText, int smsBytes)
+  {
+    if(cipherText.length <= smsBytes)
+    {
+      return new byte[][] {cipherText};
+    }
+    int payload = smsBytes - HEADER_BYTES;
+    //no fragment, not even the last, may be as long as an RSA ciphertext
+    while(HEADER_BYTES + payload == Envelope.RSA_BYTES ||
+        HEADER_BYTES + (cipherText.length - 1) % payload + 1 ==
+        Envelope.RSA_BYTES)
+    {
+      --payload;
+    }
+    int count = (cipherText.length + payload - 1) / payload;
+    if(count > MAX_FRAGMENTS)
+    {
+      throw new IllegalArgumentException("Ciphertext too long to fragment.");
+    }
+    int[] payloads = new int[count];
+    for(int i = 0; i < count; i++)
+    {
+      payloads[i] = Math.min(payload, cipherText.length - i * payload);
+    }
+    return join(cipherText, payloads, count);
+  }
+
+  /**
+   *  join() given a ciphertext and the length of each fragment's share of it
+   *  returns the fragments, headed by a new message id.
+   *
+   *  @param cipherText ciphertext to send.
+   *  @param payloads number of bytes of cipherText in each fragment, in order.
+   *  @param count number of fragments.
+   *  @return fragments.
+   */
+  private static byte[][] join(byte[] cipherText, int[] payloads, int count)
+  {
+    int id = nextId.getAndIncrement();
+    byte[][] fragments = new byte[count][];
+    for(int i = 0, off = 0; i < count; off += payloads[i++])
+    {
+      int len = payloads[i];
+      byte[] fragment = new byte[HEADER_BYTES + len];
+      fragment[0] = VERSION_FRAGMENT;
+      fragment[1] = (byte)(id >>> 8);
+      fragment[2] = (byte) id;
+      fragment[3] = (byte) i;
+      fragment[4] = (byte) count;
+      System.arraycopy(cipherText, off, fragment, HEADER_BYTES, len);
+      fragments[i] = fragment;
+    }
+    return fragments;
+  }
+
+  /**
+   *  Reassembler class buffers fragments until every fragment of a ciphertext
+   *  has arrived.
+   *
+   *  Each fragment is added with a tag, e.g. the id of the row it is stored
+   *  in, and a complete ciphertext is returned with the tags of its fragments.
+   *
+   *  Memory is bounded: at most MAX_PENDING partial ciphertexts of at most
+   *  MAX_PENDING_BYTES in total are kept, oldest dropped first, and a partial
+   *  ciphertext is dropped TIMEOUT milliseconds after its first fragment
+   *  arrived. Dropped fragments can be added again later; takeDropped()
+   *  returns their tags so the caller can give up on them eventually.
+   *
+   *  A fragment added again under the tag it is kept with is still waiting;
+   *  one added under another tag is a duplicate and DUPLICATE is returned.
+   *
+   *  All methods are synchronized.
+   */
+  public static class Reassembler
+  {
+    /**
+     *  Class Variables.
+     *
+     *  MAX_PENDING maximum number of partial ciphertexts kept.
+     *  MAX_PENDING_BYTES maximum number of fragment bytes kept.
+     *  TIMEOUT milliseconds a partial ciphertext is kept for.
+     *  DUPLICATE returned by add() for a fragment that was already added
+     *    under another tag.
+     */
+    static final int MAX_PENDING = 32;
+    static final int MAX_PENDING_BYTES = 64 * 1024;
+    static final long TIMEOUT = 30 * 60 * 1000;
+    public static final Complete DUPLICATE = new Complete(null, new long[0]);
+
+    /**
+     *  Member Variables.
+     *
+     *  pending partial ciphertexts by sender and message id, oldest first.
+     *  pendingBytes number of fragment bytes in pending.
+     *  dropped tags of the fragments dropped since takeDropped() was last
+     *    called.
+     */
+    private final LinkedHashMap<String, Partial> pending =
+      new LinkedHashMap<String, Partial>();
+    private int pendingBytes = 0;
+    private final ArrayList<Long> dropped = new ArrayList<Long>();
+
+    /**
+     *  add() given a fragment from a sender returns the reassembled ciphertext
+     *  once it is complete.
+     *
+     *  @param sender phone number the fragment is from.
+     *  @param fragment decoded body of the sms; isFragment() must hold.
+     *  @param tag long identifying the fragment to the caller.
+     *  @param now current time in milliseconds.
+     *  @return complete ciphertext with the tags of its fragments, DUPLICATE
+     *    if the fragment was already added under another tag, or null.
+     */
+    public synchronized Complete add(String sender, byte[] fragment, long tag,
+        long now)
+    {
+      expire(now);
+      int index = fragment[3] & 0xFF;
+      int count = fragment[4] & 0xFF;
+      if(index >= count)
+      {
+        return null;
+      }
+      String key = sender + "/" + (((fragment[1] & 0xFF) << 8) |
+        (fragment[2] & 0xFF)) + "/" + count;
+      Partial p = pending.get(key);
+      if(p == null)
+      {
+        p = new Partial(count, now);
+        pending.put(key, p);
+      }
+      if(p.fragments[index] != null)
+      {
+        //the same sms added again is still waiting; another sms is a duplicate
+        return (p.tags[index] == tag) ? null : DUPLICATE;
+      }
+      p.fragments[index] = fragment;
+      p.tags[index] = tag;
+      p.bytes += fragment.length;
+      pendingBytes += fragment.length;
+      if(++p.received < count)
+      {
+        trim();
+        return null;
+      }
+      pending.remove(key);
+      pendingBytes -= p.bytes;
+      return p.join();
+    }
+
+    /**
+     *  expire() drops the partial ciphertexts older than TIMEOUT.
+     *
+     *  @param now current time in milliseconds.
+     */
+    public synchronized void expire(long now)
+    {
+      Iterator<Partial> i = pending.values().iterator();
+      while(i.hasNext())
+      {
+        Partial p = i.next();
+        if(now - p.started < TIMEOUT)
+        {
+          break;
+        }
+        drop(p);
+        i.remove();
+      }
+    }
+
+    /**
+     *  takeDropped() returns the tags of the fragments dropped, by expire()
+     *  or to stay within bounds, since it was last called.
+     *
+     *  @return tags of the fragments dropped.
+     */
+    public synchronized long[] takeDropped()
+    {
+      long[] tags = new long[dropped.size()];
+      for(int i = 0; i < tags.length; i++)
+      {
+        tags[i] = dropped.get(i);
+      }
+      dropped.clear();
+      return tags;
+    }
+
+    /**
+     *  size() returns the number of partial ciphertexts kept.
+     */
+    public synchronized int size()
+    {
+      return pending.size();
+    }
+
+    /**
+     *  trim() drops the oldest partial ciphertexts until within bounds.
+     */
+    private void trim()
+    {
+      Iterator<Partial> i = pending.values().iterator();
+      while(i.hasNext() &&
+          (pending.size() > MAX_PENDING || pendingBytes > MAX_PENDING_BYTES))
+      {
+        drop(i.next());
+        i.remove();
+      }
+    }
+
+    /**
+     *  drop() forgets the bytes of a partial ciphertext removed from pending
+     *  and remembers the tags of its fragments.
+     */
+    private void drop(Partial p)
+    {
+      pendingBytes -= p.bytes;
+      for(int i = 0; i < p.fragments.length; i++)
+      {
+        if(p.fragments[i] != null)
+        {
+          dropped.add(p.tags[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   *  Complete class is a reassembled ciphertext and the tags of the fragments
+   *  it was reassembled from.
+   */
+  public static class Complete
+  {
+    public final byte[] cipherText;
+    public final long[] tags;
+
+    Complete(byte[] cipherText, long[] tags)
+    {
+      this.cipherText = cipherText;
+      this.tags = tags;
+    }
+  }
+
+  /**
+   *  Partial class is the fragments of a ciphertext received so far.
+   */
+  private static class Partial
+  {
+    final byte[][] fragments;
+    final long[] tags;
+    final long started;
+    int received = 0;
+    int bytes = 0;
+
+    Partial(int count, long started)
+    {
+      this.fragments = new byte[count][];
+      this.tags = new long[count];
+      this.started = started;
+    }
+
+    Complete join()
+    {
+      int len = 0;
+      for(byte[] f : fragments)
+      {
+        len += f.length - HEADER_BYTES;
+      }
+      byte[] cipherText = new byte[len];
+      int off = 0;
+      for(byte[] f : fragments)
+      {
+        System.arraycopy(f, HEADER_BYTES, cipherText, off,
+          f.length - HEADER_BYTES);
+        off += f.length - HEADER_BYTES;
+      }
+      return new Complete(cipherText, tags);
+    }
+  }
+}
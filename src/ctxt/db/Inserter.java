@@ -28,12 +28,13 @@ public class Inserter
    *  getMessageInserter() returns a static reference to a MessageInserter
    *  instance.
    *
-   *  The MessageInserter instance is lazily loaded upon first used.
+   *  The MessageInserter instance is lazily loaded upon first used. Loading is
+   *  synchronized because messages are inserted from background threads.
    *
    *  @param context Context under which to construct the MessageInserter.
    *  @return static MessageInserter instance.
    */
-  public static MessageInserter getMessageInserter(Context context)
+  public static synchronized MessageInserter getMessageInserter(Context context)
   {
     if(_INSERTER == null)
     {
@@ -1,8 +1,10 @@
 package ctxt.db;
 
 import ctxt.db.Names;
+import ctxt.key.Numbers;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
@@ -15,10 +17,89 @@ import android.util.Log;
  *  All sms's are stored unencrypted.
  *
  *  The database uses the schema:
- *  (message number, conversation, sender's number, send time, message body).
+ *  (message number, contact, sender's number, send time, message body).
+ *  Contacts number the phone numbers: (contact id, number).
+ *  Message bodies are indexed for full-text search in an FTS4 table.
+ *  Received ciphertexts wait in an inbox table until they are decrypted:
+ *  (inbox number, sender, send time, encoded body, attempts).
+ *
+ *  The schema is versioned. onCreate() creates the first version and both
+ *  it and onUpgrade() then apply the migrations from there to
+ *  Names.VERSION, in order, so a new database and an upgraded one always
+ *  end up alike. A change to the schema is a new Migration at the end of
+ *  MIGRATIONS together with an increment of Names.VERSION.
  */
 class MessageDatabaseHelper extends SQLiteOpenHelper
 {
+  /**
+   *  Migration class upgrades the schema from one version to the next.
+   */
+  private abstract static class Migration
+  {
+    /**
+     *  apply() upgrades db, which is in a transaction, by one version.
+     */
+    abstract void apply(SQLiteDatabase db);
+  }
+
+  /**
+   *  Class Variables.
+   *
+   *  MIGRATIONS MIGRATIONS[i] upgrades version i+1 to version i+2.
+   */
+  private static final Migration[] MIGRATIONS =
+  {
+    //2: received ciphertexts wait in the inbox table
+    new Migration()
+    {
+      @Override
+      void apply(SQLiteDatabase db)
+      {
+        createInbox(db);
+      }
+    },
+    //3: conversations are read by conv in _id order, without a table scan
+    new Migration()
+    {
+      @Override
+      void apply(SQLiteDatabase db)
+      {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Names.CONVERSATION_INDEX +
+          " ON " + Names.TABLE_NAME + "(" + Names.CONVERSATION_ID + ", " +
+          Names.MESSAGE_NO + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Names.RECEIPT_INDEX +
+          " ON " + Names.TABLE_NAME + "(" + Names.RECEIPT_DATE + ");");
+      }
+    },
+    //4: conversations are summarized in the conversation table
+    new Migration()
+    {
+      @Override
+      void apply(SQLiteDatabase db)
+      {
+        createSummary(db);
+      }
+    },
+    //5: conversations are referenced by contact id rather than number
+    new Migration()
+    {
+      @Override
+      void apply(SQLiteDatabase db)
+      {
+        createContacts(db);
+      }
+    },
+    //6: message bodies are indexed for full-text search
+    new Migration()
+    {
+      @Override
+      void apply(SQLiteDatabase db)
+      {
+        createSearch(db);
+      }
+    },
+  };
+
   /**
    *  MessageDatabaseHelper() constructs a new MessageDatabaseHelper
    *  instance.
@@ -38,6 +119,8 @@ class MessageDatabaseHelper extends SQLiteOpenHelper
   /**
    *  onCreate() creates the database for the first time. The database
    *  constructed is based on constants Strings found in the Names class.
+   *  The first version of the schema is created, then migrated to the
+   *  current one.
    *
    *  @param db SQLiteDatabase for which to create the new database.
    */
@@ -51,13 +134,274 @@ class MessageDatabaseHelper extends SQLiteOpenHelper
       Names.SENDER_NAME + " " + Names.SENDER_TYPE + ", " +
       Names.RECEIPT_DATE + " " + Names.RECEIPT_TYPE + ", " +
       Names.MESSAGE + " " + Names.MESSAGE_TYPE+");");
+    migrate(db, 1);
 
     Log.d(Names.TAG, "Database created for the first time.");
   }
 
   /**
-   *  Do nothing; no upgrading this database.
+   *  onOpen() switches the database to write-ahead logging, so that readers
+   *  do not wait on MessageInserter's transactions, and commits append to the
+   *  log instead of rewriting a rollback journal.
+   *
+   *  With the log, synchronous=NORMAL syncs at checkpoints rather than on
+   *  every commit. A commit survives the process being killed, though not
+   *  necessarily the phone losing power.
+   *
+   *  @param db SQLiteDatabase that was opened.
+   */
+  @Override
+  public void onOpen(SQLiteDatabase db)
+  {
+    super.onOpen(db);
+    if(!db.isReadOnly() && db.enableWriteAheadLogging())
+    {
+      db.execSQL("PRAGMA synchronous=NORMAL;");
+    }
+  }
+
+  /**
+   *  onUpgrade() applies the migrations from oldVersion to the current
+   *  version.
    */
   @Override
-  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) { }
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+  {
+    migrate(db, oldVersion);
+  }
+
+  /**
+   *  migrate() given the version of a database applies every migration from
+   *  that version to Names.VERSION.
+   *
+   *  @param db SQLiteDatabase to migrate, in a transaction.
+   *  @param version version the schema of db is at.
+   */
+  private static void migrate(SQLiteDatabase db, int version)
+  {
+    for(int v = version; v < Names.VERSION; v++)
+    {
+      Log.d(Names.TAG, "Migrating database to version " + (v+1) + ".");
+      MIGRATIONS[v-1].apply(db);
+    }
+  }
+
+  /**
+   *  createSummary() creates the conversation table of version 4, fills it
+   *  from the messages stored so far, all of which count as read, and creates
+   *  the trigger keeping it up to date.
+   */
+  private static void createSummary(SQLiteDatabase db)
+  {
+    db.execSQL(
+      "CREATE TABLE " + Names.SUMMARY_TABLE_NAME + "(" +
+      Names.SUMMARY_NO + " " + Names.MESSAGE_NO_TYPE + ", " +
+      Names.SUMMARY_CONV + " " + Names.SUMMARY_CONV_TYPE + ", " +
+      Names.SUMMARY_LAST_NO + " " + Names.RECEIPT_TYPE + ", " +
+      Names.SUMMARY_LAST_DATE + " " + Names.RECEIPT_TYPE + ", " +
+      Names.SUMMARY_UNREAD + " " + Names.SUMMARY_COUNT_TYPE + ", " +
+      Names.SUMMARY_COUNT + " " + Names.SUMMARY_COUNT_TYPE + ");");
+    db.execSQL("CREATE INDEX " + Names.SUMMARY_RECENT_INDEX + " ON " +
+      Names.SUMMARY_TABLE_NAME + "(" + Names.SUMMARY_LAST_NO + ");");
+    db.execSQL(
+      "INSERT INTO " + Names.SUMMARY_TABLE_NAME + "(" + Names.SUMMARY_CONV +
+      ", " + Names.SUMMARY_LAST_NO + ", " + Names.SUMMARY_COUNT + ") " +
+      "SELECT " + Names.CONVERSATION_ID + ", max(" + Names.MESSAGE_NO +
+      "), count(*) FROM " + Names.TABLE_NAME + " GROUP BY " +
+      Names.CONVERSATION_ID + ";");
+    db.execSQL(
+      "UPDATE " + Names.SUMMARY_TABLE_NAME + " SET " +
+      Names.SUMMARY_LAST_DATE + "=(SELECT " + Names.RECEIPT_DATE + " FROM " +
+      Names.TABLE_NAME + " WHERE " + Names.TABLE_NAME + "." +
+      Names.MESSAGE_NO + "=" + Names.SUMMARY_TABLE_NAME + "." +
+      Names.SUMMARY_LAST_NO + ");");
+    //received messages have a sender of 0
+    db.execSQL(
+      "CREATE TRIGGER " + Names.SUMMARY_TRIGGER + " AFTER INSERT ON " +
+      Names.TABLE_NAME + " BEGIN " +
+      "INSERT OR IGNORE INTO " + Names.SUMMARY_TABLE_NAME + "(" +
+      Names.SUMMARY_CONV + ") VALUES (NEW." + Names.CONVERSATION_ID + "); " +
+      "UPDATE " + Names.SUMMARY_TABLE_NAME + " SET " +
+      Names.SUMMARY_LAST_NO + "=NEW." + Names.MESSAGE_NO + ", " +
+      Names.SUMMARY_LAST_DATE + "=NEW." + Names.RECEIPT_DATE + ", " +
+      Names.SUMMARY_UNREAD + "=" + Names.SUMMARY_UNREAD + "+(NEW." +
+      Names.SENDER_NAME + "=0), " +
+      Names.SUMMARY_COUNT + "=" + Names.SUMMARY_COUNT + "+1 WHERE " +
+      Names.SUMMARY_CONV + "=NEW." + Names.CONVERSATION_ID + "; END;");
+  }
+
+  /**
+   *  createContacts() creates the contact table, numbering every number the
+   *  messages and summaries refer to in canonical form, and rebuilds the
+   *  message and conversation tables on contact ids. Numbers differing only
+   *  in format, such as with and without a '+', are one conversation after.
+   *  Messages and summaries without a number are kept under a placeholder
+   *  contact whose number is empty, rather than dropped.
+   */
+  private static void createContacts(SQLiteDatabase db)
+  {
+    db.execSQL(
+      "CREATE TABLE " + Names.CONTACT_TABLE_NAME + "(" +
+      Names.CONTACT_NO + " " + Names.MESSAGE_NO_TYPE + ", " +
+      Names.CONTACT_NUMBER + " " + Names.CONTACT_NUMBER_TYPE + ");");
+    //conv_map maps each old conv to its contact and carries the unread count
+    db.execSQL("CREATE TEMP TABLE conv_map(conv PRIMARY KEY, " +
+      Names.CONTACT_ID + " INTEGER, " + Names.SUMMARY_UNREAD + " INTEGER);");
+    SQLiteStatement intern = db.compileStatement(
+      "INSERT OR IGNORE INTO " + Names.CONTACT_TABLE_NAME + "(" +
+      Names.CONTACT_NUMBER + ") VALUES (?);");
+    SQLiteStatement find = db.compileStatement(
+      "SELECT " + Names.CONTACT_NO + " FROM " + Names.CONTACT_TABLE_NAME +
+      " WHERE " + Names.CONTACT_NUMBER + "=?;");
+    SQLiteStatement map = db.compileStatement(
+      "INSERT INTO conv_map VALUES (?, ?, (SELECT " + Names.SUMMARY_UNREAD +
+      " FROM " + Names.SUMMARY_TABLE_NAME + " WHERE ifnull(" +
+      Names.SUMMARY_CONV + ", '')=?1));");
+    //a NULL conv becomes '', the number of the placeholder contact
+    Cursor c = db.rawQuery(
+      "SELECT ifnull(" + Names.CONVERSATION_ID + ", '') FROM " +
+      Names.TABLE_NAME + " UNION SELECT ifnull(" + Names.SUMMARY_CONV +
+      ", '') FROM " + Names.SUMMARY_TABLE_NAME + ";", null);
+    try
+    {
+      while(c.moveToNext())
+      {
+        String conv = c.getString(0);
+        if(conv.length() == 0)
+        {
+          Log.d(Names.TAG, "Messages without a number kept under an empty " +
+            "one.");
+        }
+        String number = Numbers.canonical(conv);
+        intern.bindString(1, number);
+        intern.execute();
+        find.bindString(1, number);
+        map.bindString(1, conv);
+        map.bindLong(2, find.simpleQueryForLong());
+        map.execute();
+      }
+    }
+    finally
+    {
+      c.close();
+      intern.close();
+      find.close();
+      map.close();
+    }
+
+    //dropping the old tables drops their indexes and trigger
+    db.execSQL("DROP TABLE " + Names.SUMMARY_TABLE_NAME + ";");
+    db.execSQL(
+      "CREATE TABLE message_new(" +
+      Names.MESSAGE_NO + " " + Names.MESSAGE_NO_TYPE + ", " +
+      Names.CONTACT_ID + " " + Names.CONTACT_ID_TYPE + ", " +
+      Names.SENDER_NAME + " " + Names.SENDER_TYPE + ", " +
+      Names.RECEIPT_DATE + " " + Names.RECEIPT_TYPE + ", " +
+      Names.MESSAGE + " " + Names.MESSAGE_TYPE + ");");
+    db.execSQL(
+      "INSERT INTO message_new SELECT m." + Names.MESSAGE_NO + ", conv_map." +
+      Names.CONTACT_ID + ", m." + Names.SENDER_NAME + ", m." +
+      Names.RECEIPT_DATE + ", m." + Names.MESSAGE + " FROM " +
+      Names.TABLE_NAME + " m JOIN conv_map ON ifnull(m." +
+      Names.CONVERSATION_ID + ", '')=conv_map.conv;");
+    db.execSQL("DROP TABLE " + Names.TABLE_NAME + ";");
+    db.execSQL("ALTER TABLE message_new RENAME TO " + Names.TABLE_NAME + ";");
+    db.execSQL("CREATE INDEX " + Names.CONTACT_INDEX + " ON " +
+      Names.TABLE_NAME + "(" + Names.CONTACT_ID + ", " + Names.MESSAGE_NO +
+      ");");
+    db.execSQL("CREATE INDEX " + Names.RECEIPT_INDEX + " ON " +
+      Names.TABLE_NAME + "(" + Names.RECEIPT_DATE + ");");
+
+    createContactSummary(db);
+    db.execSQL(
+      "UPDATE " + Names.SUMMARY_TABLE_NAME + " SET " + Names.SUMMARY_UNREAD +
+      "=(SELECT ifnull(sum(" + Names.SUMMARY_UNREAD + "), 0) FROM conv_map " +
+      "WHERE conv_map." + Names.CONTACT_ID + "=" + Names.SUMMARY_TABLE_NAME +
+      "." + Names.SUMMARY_CONTACT + ");");
+    db.execSQL("DROP TABLE conv_map;");
+  }
+
+  /**
+   *  createContactSummary() creates the conversation table of version 5,
+   *  keyed by contact id, fills it from the messages stored so far, all of
+   *  which count as read, and creates the trigger keeping it up to date.
+   */
+  private static void createContactSummary(SQLiteDatabase db)
+  {
+    db.execSQL(
+      "CREATE TABLE " + Names.SUMMARY_TABLE_NAME + "(" +
+      Names.SUMMARY_NO + " " + Names.MESSAGE_NO_TYPE + ", " +
+      Names.SUMMARY_CONTACT + " " + Names.SUMMARY_CONTACT_TYPE + ", " +
+      Names.SUMMARY_LAST_NO + " " + Names.RECEIPT_TYPE + ", " +
+      Names.SUMMARY_LAST_DATE + " " + Names.RECEIPT_TYPE + ", " +
+      Names.SUMMARY_UNREAD + " " + Names.SUMMARY_COUNT_TYPE + ", " +
+      Names.SUMMARY_COUNT + " " + Names.SUMMARY_COUNT_TYPE + ");");
+    db.execSQL("CREATE INDEX " + Names.SUMMARY_RECENT_INDEX + " ON " +
+      Names.SUMMARY_TABLE_NAME + "(" + Names.SUMMARY_LAST_NO + ");");
+    db.execSQL(
+      "INSERT INTO " + Names.SUMMARY_TABLE_NAME + "(" +
+      Names.SUMMARY_CONTACT + ", " + Names.SUMMARY_LAST_NO + ", " +
+      Names.SUMMARY_COUNT + ") SELECT " + Names.CONTACT_ID + ", max(" +
+      Names.MESSAGE_NO + "), count(*) FROM " + Names.TABLE_NAME +
+      " GROUP BY " + Names.CONTACT_ID + ";");
+    db.execSQL(
+      "UPDATE " + Names.SUMMARY_TABLE_NAME + " SET " +
+      Names.SUMMARY_LAST_DATE + "=(SELECT " + Names.RECEIPT_DATE + " FROM " +
+      Names.TABLE_NAME + " WHERE " + Names.TABLE_NAME + "." +
+      Names.MESSAGE_NO + "=" + Names.SUMMARY_TABLE_NAME + "." +
+      Names.SUMMARY_LAST_NO + ");");
+    //received messages have a sender of 0
+    db.execSQL(
+      "CREATE TRIGGER " + Names.SUMMARY_TRIGGER + " AFTER INSERT ON " +
+      Names.TABLE_NAME + " BEGIN " +
+      "INSERT OR IGNORE INTO " + Names.SUMMARY_TABLE_NAME + "(" +
+      Names.SUMMARY_CONTACT + ") VALUES (NEW." + Names.CONTACT_ID + "); " +
+      "UPDATE " + Names.SUMMARY_TABLE_NAME + " SET " +
+      Names.SUMMARY_LAST_NO + "=NEW." + Names.MESSAGE_NO + ", " +
+      Names.SUMMARY_LAST_DATE + "=NEW." + Names.RECEIPT_DATE + ", " +
+      Names.SUMMARY_UNREAD + "=" + Names.SUMMARY_UNREAD + "+(NEW." +
+      Names.SENDER_NAME + "=0), " +
+      Names.SUMMARY_COUNT + "=" + Names.SUMMARY_COUNT + "+1 WHERE " +
+      Names.SUMMARY_CONTACT + "=NEW." + Names.CONTACT_ID + "; END;");
+  }
+
+  /**
+   *  createSearch() creates the full-text index of message bodies, fills it
+   *  from the messages stored so far and creates the triggers keeping it up
+   *  to date.
+   */
+  private static void createSearch(SQLiteDatabase db)
+  {
+    db.execSQL("CREATE VIRTUAL TABLE " + Names.FTS_TABLE_NAME +
+      " USING fts4(" + Names.MESSAGE + ");");
+    db.execSQL(
+      "INSERT INTO " + Names.FTS_TABLE_NAME + "(" + Names.FTS_DOCID + ", " +
+      Names.MESSAGE + ") SELECT " + Names.MESSAGE_NO + ", " + Names.MESSAGE +
+      " FROM " + Names.TABLE_NAME + ";");
+    db.execSQL(
+      "CREATE TRIGGER " + Names.FTS_INSERT_TRIGGER + " AFTER INSERT ON " +
+      Names.TABLE_NAME + " BEGIN " +
+      "INSERT INTO " + Names.FTS_TABLE_NAME + "(" + Names.FTS_DOCID + ", " +
+      Names.MESSAGE + ") VALUES (NEW." + Names.MESSAGE_NO + ", NEW." +
+      Names.MESSAGE + "); END;");
+    db.execSQL(
+      "CREATE TRIGGER " + Names.FTS_DELETE_TRIGGER + " AFTER DELETE ON " +
+      Names.TABLE_NAME + " BEGIN " +
+      "DELETE FROM " + Names.FTS_TABLE_NAME + " WHERE " + Names.FTS_DOCID +
+      "=OLD." + Names.MESSAGE_NO + "; END;");
+  }
+
+  /**
+   *  createInbox() creates the inbox table.
+   */
+  private static void createInbox(SQLiteDatabase db)
+  {
+    db.execSQL(
+      "CREATE TABLE " + Names.INBOX_TABLE_NAME + "(" +
+      Names.INBOX_NO + " " + Names.MESSAGE_NO_TYPE + ", " +
+      Names.INBOX_SENDER + " " + Names.CONVERSATION_ID_TYPE + ", " +
+      Names.RECEIPT_DATE + " " + Names.RECEIPT_TYPE + ", " +
+      Names.INBOX_BODY + " " + Names.MESSAGE_TYPE + ", " +
+      Names.INBOX_ATTEMPTS + " " + Names.INBOX_ATTEMPTS_TYPE + ");");
+  }
 }
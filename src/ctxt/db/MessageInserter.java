@@ -1,29 +1,57 @@
 package ctxt.db;
 
 import ctxt.ctxt.BuildConfig;
-import ctxt.db.Updateable;
 import ctxt.db.Names;
+import ctxt.db.Fragments;
 import ctxt.db.MessageDatabaseHelper;
+import ctxt.db.WriteQueue;
+import ctxt.db.Contacts;
+import ctxt.db.MessageProvider;
 
 import ctxt.key.Key;
-import ctxt.key.Storer;
+import ctxt.key.Numbers;
+import ctxt.key.Sessions;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import android.telephony.SmsMessage;
-import android.telephony.PhoneNumberUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 /**
  *  MessageInserter provides a writeonly database for storing incoming sms's.
  *
- *  This class still inserts sms's even when their bodies could not be
+ *  Received sms's are appended to an inbox table before they are decrypted,
+ *  so that a message is never lost if the process dies or its ciphertext
+ *  cannot be decrypted yet. Decrypted messages move from the inbox to the
+ *  message table; items that fail stay in the inbox to be retried.
+ *
+ *  In debug builds, this class still inserts sms's whose bodies could not be
  *  decrypted. This feature is present for debugging purposes because the
  *  emulators appear to truncate and modify the binary sms's they receive.
  *
+ *  Writes are batched: the sms's of a broadcast are appended to the inbox
+ *  in one transaction, and the messages decrypted from them, or from a
+ *  chunk of a drain, are inserted in another. The observers of
+ *  MessageProvider are notified once per batch.
+ *
+ *  insertMessage() may be called from several threads at once: decryption
+ *  runs concurrently and the writes themselves all run on a single writer
+ *  thread, see WriteQueue, which also commits the writes of concurrent
+ *  callers together.
+ *
  *  This class is used through a singleton, Inserter. To get a static
  *  MessageInserter instance, call Inserter.getMessageInserter().
  */
@@ -34,25 +62,105 @@ public class MessageInserter
    *
    *  DECRYPT_FAILED constant String to use in place of a message body that
    *    could not be decrypted.
+   *  MAX_ATTEMPTS number of failed decryptions after which an inbox item is
+   *    no longer retried.
+   *  INBOX_COLUMNS columns of the inbox table in InboxItem order.
+   *  DRAIN_BATCH maximum number of inbox items drainInbox() decrypts per
+   *    transaction.
+   *  AWAIT_SECONDS longest a caller waits for its write to be committed.
    */
   private static final String DECRYPT_FAILED = "decrypt_failed";
+  static final int MAX_ATTEMPTS = 5;
+  private static final String[] INBOX_COLUMNS = {Names.INBOX_NO,
+    Names.INBOX_SENDER, Names.RECEIPT_DATE, Names.INBOX_BODY,
+    Names.INBOX_ATTEMPTS};
+  static final int DRAIN_BATCH = 64;
+  static final int AWAIT_SECONDS = 30;
+
+  /**
+   *  InboxItem class is a received message waiting in the inbox table. The
+   *  body of a text sms is Base128 encoded; that of a data sms is stored as
+   *  a blob, as received, in data.
+   */
+  public static class InboxItem
+  {
+    long id;
+    final String sender;
+    final long time;
+    final String body;
+    final byte[] data;
+    int attempts;
+
+    InboxItem(long id, String sender, long time, String body, byte[] data,
+        int attempts)
+    {
+      this.id = id;
+      this.sender = sender;
+      this.time = time;
+      this.body = body;
+      this.data = data;
+      this.attempts = attempts;
+    }
+  }
+
+  /**
+   *  Decrypted class is a message decrypted from the inbox, waiting to be
+   *  inserted, the ids of the inbox items it was decrypted from and what
+   *  Sessions returned for it, to commit once it is inserted; null for the
+   *  messages of failures.
+   */
+  private static class Decrypted
+  {
+    final String sender;
+    final long time;
+    final String body;
+    final long[] ids;
+    final Sessions.Received received;
+
+    Decrypted(String sender, long time, String body, long[] ids,
+        Sessions.Received received)
+    {
+      this.sender = sender;
+      this.time = time;
+      this.body = body;
+      this.ids = ids;
+      this.received = received;
+    }
+  }
 
   /**
    *  Member Variables.
    *
    *  db SQLiteDatabase connection used for inserting into the database.
    *  newMessageStatement prepared statement for insertion.
+   *  contacts Contacts numbering the numbers of db; messages are inserted
+   *    with the id of their number.
+   *  inboxStatement, findInboxStatement, deleteInboxStatement,
+   *    failInboxStatement prepared statements appending to, looking up,
+   *    deleting from and counting failures in the inbox. All but
+   *    findInboxStatement are used on the writer thread only.
+   *  markReadStatement prepared statement clearing a conversation's unread
+   *    count; writer thread only.
+   *  writes WriteQueue running every write to db.
+   *  inFlight ids of inbox items being decrypted. Guards itself.
+   *  reassembler buffer of fragments whose ciphertext is incomplete, tagged
+   *    with their inbox ids.
    *  context Context under which the application operates and under which the
    *    database is opened.
-   *  call Updateable object to call when a new message is inserter.
-   *  callNumber phone number indicating for what conversation to callback.
    */
   private SQLiteDatabase db;
   private SQLiteStatement newMessageStatement;
+  private final Contacts contacts;
+  private SQLiteStatement inboxStatement;
+  private SQLiteStatement findInboxStatement;
+  private SQLiteStatement deleteInboxStatement;
+  private SQLiteStatement failInboxStatement;
+  private SQLiteStatement markReadStatement;
+  private final WriteQueue writes;
+  private final HashSet<Long> inFlight = new HashSet<Long>();
+  private final Fragments.Reassembler reassembler =
+    new Fragments.Reassembler();
   private Context context;
-  private Updateable call;
-  private String callNumber;
-  private static final int EXPECTED_LENGTH = (Storer.KEYBITS/7);
 
   /**
    *  MessageInserter() constructs a new MessageInserter purposed for inserting
@@ -64,9 +172,25 @@ public class MessageInserter
   {
     this.context = context;
     db = (new MessageDatabaseHelper(context)).getWritableDatabase();
+    contacts = new Contacts(db);
     //compile the prepared statement
     newMessageStatement = db.compileStatement(
       "INSERT into "+Names.TABLE_NAME+" VALUES (NULL, ?, ?, ?, ?);");
+    inboxStatement = db.compileStatement(
+      "INSERT into "+Names.INBOX_TABLE_NAME+" VALUES (NULL, ?, ?, ?, 0);");
+    findInboxStatement = db.compileStatement(
+      "SELECT count(*) FROM "+Names.INBOX_TABLE_NAME+" WHERE "+Names.INBOX_NO+
+      "=?;");
+    deleteInboxStatement = db.compileStatement(
+      "DELETE FROM "+Names.INBOX_TABLE_NAME+" WHERE "+Names.INBOX_NO+"=?;");
+    failInboxStatement = db.compileStatement(
+      "UPDATE "+Names.INBOX_TABLE_NAME+" SET "+Names.INBOX_ATTEMPTS+"="+
+      Names.INBOX_ATTEMPTS+"+1 WHERE "+Names.INBOX_NO+"=?;");
+    markReadStatement = db.compileStatement(
+      "UPDATE "+Names.SUMMARY_TABLE_NAME+" SET "+Names.SUMMARY_UNREAD+
+      "=0 WHERE "+Names.SUMMARY_CONTACT+"=(SELECT "+Names.CONTACT_NO+" FROM "+
+      Names.CONTACT_TABLE_NAME+" WHERE "+Names.CONTACT_NUMBER+"=?);");
+    writes = new WriteQueue(db, "message-writer");
   }
 
   /**
@@ -78,96 +202,373 @@ public class MessageInserter
   }
 
   /**
-   *  registerNotification() given an Updateable object and phone number will
-   *  register that object to receive an update whenever a new message for that
-   *  number in inserted via this MessageInserter.
+   *  insertMessage() given an SmsMessage object will extract relevant data and
+   *  insert a new message into the database.
    *
-   *  Only one Updateable can be registered at a time.
-   *  Call unregisterNotification() to disable.
+   *  Use this method for messages(SmsMessage objects) that have been received.
+   *  Use the other overloaded method for messages sent. If this method is used
+   *  for an sms sent by the user, its entry in the database will be incorrect
+   *  in that it will indicate the user received it instead.
    *
-   *  number must be in an international format with country code and area
-   *  code. Delimiters present in the number do not matter
+   *  Same as appendToInbox() followed by decryptInbox().
    *
-   *  @param m Updateable to call when a new message is inserted.
-   *  @param number phone number indicating for which conversations updated to
-   *    callback m.
+   *  @param m SmSMessage representing the message received.
    */
-  public void registerNotification(Updateable m, String number)
+  public void insertMessage(SmsMessage m)
   {
-    this.call = m;
-    this.callNumber = PhoneNumberUtils.stripSeparators(number);
+    insertMessages(new SmsMessage[] {m}, false);
   }
 
   /**
-   *  unregisterNotification() will signal this MessageInserter stop calling
-   *  the registered Updateable.
+   *  insertMessages() given the SmsMessages of a broadcast inserts them in
+   *  two transactions, one appending them to the inbox and one inserting the
+   *  messages decrypted from them.
+   *
+   *  Same as appendToInbox() followed by decryptInbox().
    *
-   *  If no Updateable was ever registered via registerNotification() nothing
-   *  exceptional happens. This method should be called to allow for garbage
-   *  collection when the Updateable is no longer needed, but this
-   *  MessageInserter still is.
+   *  @param messages SmsMessages received in the same broadcast.
+   *  @param data whether messages are data sms's rather than text sms's.
+   *  @return number of messages that could not be decrypted.
    */
-  public void unregisterNotification()
+  public int insertMessages(SmsMessage[] messages, boolean data)
   {
-    this.call = null;
-    this.callNumber = null;
+    return decryptInbox(appendToInbox(messages, data));
   }
 
   /**
-   *  insertMessage() given an SmsMessage object will extract relevant data and
-   *  insert a new message into the database.
+   *  appendToInbox() given an SmsMessage that has been received stores it,
+   *  still encrypted, in the inbox table. This is a single insert; once it
+   *  returns, the message survives the process being killed.
    *
-   *  Use this method for messages(SmsMessage objects) that have been received.
-   *  Use the other overloaded method for messages sent. If this method is used
-   *  for an sms sent by the user, its entry in the database will be incorrect
-   *  in that it will indicate the user received it instead.
+   *  @param m SmsMessage representing the message received.
+   *  @param data whether m is a data sms rather than a text sms.
+   *  @return InboxItem to pass to decryptInbox().
+   */
+  public InboxItem appendToInbox(SmsMessage m, boolean data)
+  {
+    return appendToInbox(new SmsMessage[] {m}, data)[0];
+  }
+
+  /**
+   *  appendToInbox() given the SmsMessages of a broadcast stores them, still
+   *  encrypted, in the inbox table in a single transaction. Once it returns,
+   *  the messages survive the process being killed.
+   *
+   *  @param messages SmsMessages received in the same broadcast.
+   *  @param data whether messages are data sms's rather than text sms's.
+   *  @return InboxItems to pass to decryptInbox(), in the order of messages.
+   */
+  public InboxItem[] appendToInbox(SmsMessage[] messages,
+      final boolean data)
+  {
+    final InboxItem[] items = new InboxItem[messages.length];
+    for(int i = 0; i < messages.length; i++)
+    {
+      SmsMessage m = messages[i];
+      String senderNumber = Numbers.canonical(m.getOriginatingAddress());
+      items[i] = new InboxItem(0, senderNumber, m.getTimestampMillis(),
+        data ? null : m.getMessageBody(), data ? m.getUserData() : null, 0);
+    }
+    await(writes.submit(new Callable<Void>()
+    {
+      @Override
+      public Void call()
+      {
+        for(InboxItem item : items)
+        {
+          inboxStatement.bindString(1, item.sender);
+          inboxStatement.bindLong(2, item.time);
+          if(data)
+          {
+            inboxStatement.bindBlob(3, item.data);
+          }
+          else
+          {
+            inboxStatement.bindString(3, item.body);
+          }
+          item.id = inboxStatement.executeInsert();
+        }
+        return null;
+      }
+    }));
+    return items;
+  }
+
+  /**
+   *  decryptInbox() given an item of the inbox table attempts to decrypt it
+   *  on the sender's session, which falls back to the user's private key.
    *
-   *  Attempt to decrypt the message body. If decryption is unsuccessful, the
-   *  current implementation still inserts the message with
-   *  MessageInserter.DECRYPT_FAILED as its message body.
+   *  If the item is a fragment, it waits in the inbox until the other
+   *  fragments of its ciphertext have arrived; the fragment completing the
+   *  ciphertext decrypts it on behalf of all of them. A fragment received
+   *  twice is deleted from the inbox. Fragments the Reassembler drops, when
+   *  the rest of their ciphertext does not arrive in time, count an attempt,
+   *  so one whose ciphertext never completes stops being retried.
    *
-   *  @param m SmSMessage representing the message received.
+   *  If decryption is successful, the message is inserted and the item is
+   *  deleted from the inbox in one transaction. Only once it has committed
+   *  is the key of the message forgotten, see Sessions.commit(), so an item
+   *  left in the inbox can always be decrypted again. Otherwise the item is
+   *  kept for drainInbox() to retry and its attempts are counted; after
+   *  MAX_ATTEMPTS failures it is no longer retried but still kept. Debug
+   *  builds then insert a message with MessageInserter.DECRYPT_FAILED as its
+   *  body.
+   *
+   *  An item already being decrypted by another thread, or already moved out
+   *  of the inbox, is skipped.
+   *
+   *  @param item InboxItem returned by appendToInbox() or read from the inbox.
+   *  @return false if the item could not be decrypted, true otherwise.
    */
-  public void insertMessage(SmsMessage m)
+  public boolean decryptInbox(InboxItem item)
   {
-    //decrypt the sms body
-    Log.d(Names.TAG, m.getMessageBody());
-    Log.d(Names.TAG, "len:"+(m.getMessageBody()).length());
+    return decryptInbox(new InboxItem[] {item}) == 0;
+  }
 
-    //only decode if its a proper length
-    byte[] encryptedBody = (m.getMessageBody().length() == (EXPECTED_LENGTH))
-      ? (Base128.decode(m.getMessageBody())) : null;
-    //byte[] encryptedBody = (Base128.decode(m.getMessageBody()));
-    hexify(encryptedBody);
+  /**
+   *  decryptInbox() given items of the inbox table decrypts each of them as
+   *  the single item version does, then inserts every message decrypted,
+   *  deletes their items and duplicate fragments from the inbox and counts
+   *  the failures in one write.
+   *
+   *  @param items InboxItems returned by appendToInbox() or read from the
+   *    inbox.
+   *  @return number of items that could not be decrypted.
+   */
+  public int decryptInbox(InboxItem[] items)
+  {
+    ArrayList<InboxItem> claimed = new ArrayList<InboxItem>(items.length);
+    synchronized(inFlight)
+    {
+      for(InboxItem item : items)
+      {
+        if(inFlight.add(item.id))
+        {
+          claimed.add(item);
+        }
+      }
+    }
+    int failures = 0;
+    try
+    {
+      ArrayList<Decrypted> decrypted =
+        new ArrayList<Decrypted>(claimed.size());
+      ArrayList<Long> failed = new ArrayList<Long>();
+      ArrayList<Long> duplicates = new ArrayList<Long>();
+      for(InboxItem item : claimed)
+      {
+        try
+        {
+          if(!decrypt(item, decrypted, failed, duplicates))
+          {
+            ++failures;
+          }
+        }
+        catch(RuntimeException e)
+        {
+          //left in the inbox; the rest of the batch goes on
+          Log.e(Names.TAG, "exception", e);
+          ++failures;
+        }
+      }
+      for(long id : reassembler.takeDropped())
+      {
+        failed.add(id);
+      }
+      //wait for the commit so no other thread decrypts these items again
+      if(!decrypted.isEmpty() || !failed.isEmpty() || !duplicates.isEmpty())
+      {
+        await(writes.submit(commit(decrypted, failed, duplicates)));
+        (Key.getSessions(this.context)).commit(received(decrypted));
+        notifyProvider(numbers(decrypted));
+      }
+    }
+    finally
+    {
+      synchronized(inFlight)
+      {
+        for(InboxItem item : claimed)
+        {
+          inFlight.remove(item.id);
+        }
+      }
+    }
+    return failures;
+  }
 
-    byte[] decryptedBody =
-      (Key.getStorer(this.context)).decrypt(encryptedBody);
-    //check if decryption failed
-    if(decryptedBody == null)
+  /**
+   *  decrypt() given a claimed inbox item decrypts it, adding the message to
+   *  decrypted unless the item is skipped or waits for other fragments. If
+   *  it cannot be decrypted, the ids of its items are added to failed
+   *  instead, and if it is a duplicate fragment its id is added to
+   *  duplicates.
+   *
+   *  @return false if the item could not be decrypted, true otherwise.
+   */
+  private boolean decrypt(InboxItem item, ArrayList<Decrypted> decrypted,
+      ArrayList<Long> failed, ArrayList<Long> duplicates)
+  {
+    synchronized(findInboxStatement)
+    {
+      findInboxStatement.bindLong(1, item.id);
+      if(findInboxStatement.simpleQueryForLong() == 0)
+      {
+        return true;
+      }
+    }
+    byte[] encryptedBody = (item.data != null) ? item.data
+      : Base128.decode(item.body);
+    Log.d(Names.TAG, "len:"+encryptedBody.length);
+    long[] ids = {item.id};
+    if(Fragments.isFragment(encryptedBody))
+    {
+      Fragments.Complete whole = reassembler.add(item.sender, encryptedBody,
+        item.id, System.currentTimeMillis());
+      if(whole == Fragments.Reassembler.DUPLICATE)
+      {
+        duplicates.add(item.id);
+        return true;
+      }
+      if(whole == null)
+      {
+        //wait in the inbox for the other fragments
+        return true;
+      }
+      encryptedBody = whole.cipherText;
+      ids = whole.tags;
+    }
+    Sessions.Received received =
+      (Key.getSessions(this.context)).decrypt(item.sender, encryptedBody);
+    if(received == null)
     {
-      Log.d(Names.TAG, "Could not decrypt ciphertext: aborting push");
-      //if not debugging, dont add the message
-      if(!BuildConfig.DEBUG)
+      Log.d(Names.TAG, "Could not decrypt ciphertext: kept in inbox");
+      for(long id : ids)
+      {
+        failed.add(id);
+      }
+      if(++item.attempts == MAX_ATTEMPTS && BuildConfig.DEBUG)
       {
-        return;
+        decrypted.add(new Decrypted(item.sender, item.time,
+          MessageInserter.DECRYPT_FAILED, new long[0], null));
       }
-      decryptedBody = MessageInserter.DECRYPT_FAILED.getBytes();
+      return false;
     }
     //decode decrypted bytes into a string
-    String body = new String(decryptedBody);
-    String recipientNumber = (m.getOriginatingAddress()).replaceAll("\\+", "");
+    Log.d(Names.TAG, "addr:"+ item.sender +";time:"+item.time);
+    decrypted.add(new Decrypted(item.sender, item.time,
+      new String(received.plainText), ids, received));
+    return true;
+  }
 
-    Log.d(Names.TAG, "addr:"+ recipientNumber +";time:"+
-      m.getTimestampMillis()+";msg:"+body);
-    //bind the prepared statement
-    newMessageStatement.bindString(1, recipientNumber);
-    newMessageStatement.bindLong(2, (long)0); //false: this wasn't sent by user
-    newMessageStatement.bindLong(3, m.getTimestampMillis());
-    newMessageStatement.bindString(4, body);
-    //push data to database
-    newMessageStatement.execute();
-    //call callback
-    notifyChanged(recipientNumber);
+  /**
+   *  commit() returns the write inserting decrypted messages, deleting the
+   *  inbox items they were decrypted from and those in duplicates, and
+   *  counting a failure for each inbox item in failed.
+   */
+  private Callable<Void> commit(final ArrayList<Decrypted> decrypted,
+      final ArrayList<Long> failed, final ArrayList<Long> duplicates)
+  {
+    return new Callable<Void>()
+    {
+      @Override
+      public Void call()
+      {
+        for(Decrypted d : decrypted)
+        {
+          //false: this wasn't sent by user
+          insert(d.sender, 0, d.time, d.body);
+          for(long id : d.ids)
+          {
+            deleteInboxStatement.bindLong(1, id);
+            deleteInboxStatement.execute();
+          }
+        }
+        for(long id : duplicates)
+        {
+          deleteInboxStatement.bindLong(1, id);
+          deleteInboxStatement.execute();
+        }
+        for(long id : failed)
+        {
+          failInboxStatement.bindLong(1, id);
+          failInboxStatement.execute();
+        }
+        return null;
+      }
+    };
+  }
+
+  /**
+   *  received() returns what Sessions returned for decrypted messages.
+   */
+  private static ArrayList<Sessions.Received> received(
+      ArrayList<Decrypted> decrypted)
+  {
+    ArrayList<Sessions.Received> received =
+      new ArrayList<Sessions.Received>(decrypted.size());
+    for(Decrypted d : decrypted)
+    {
+      if(d.received != null)
+      {
+        received.add(d.received);
+      }
+    }
+    return received;
+  }
+
+  /**
+   *  numbers() returns the senders of decrypted messages.
+   */
+  private static HashSet<String> numbers(ArrayList<Decrypted> decrypted)
+  {
+    HashSet<String> numbers = new HashSet<String>();
+    for(Decrypted d : decrypted)
+    {
+      numbers.add(Numbers.canonical(d.sender));
+    }
+    return numbers;
+  }
+
+  /**
+   *  drainInbox() retries every item of the inbox that has failed fewer than
+   *  MAX_ATTEMPTS times, oldest first. Call it after a restart to resume
+   *  decryption that was interrupted, or once a failed item might succeed,
+   *  e.g. after the start of its session arrived.
+   *
+   *  Items are decrypted DRAIN_BATCH at a time, each batch inserted in one
+   *  transaction. This runs on the calling thread, which should not be the
+   *  main thread.
+   *
+   *  @return number of items decrypted.
+   */
+  public int drainInbox()
+  {
+    ArrayList<InboxItem> items = new ArrayList<InboxItem>();
+    Cursor c = db.query(Names.INBOX_TABLE_NAME, INBOX_COLUMNS,
+      Names.INBOX_ATTEMPTS + " < " + MAX_ATTEMPTS, null, null, null,
+      Names.INBOX_NO);
+    try
+    {
+      while(c.moveToNext())
+      {
+        boolean data = (c.getType(3) == Cursor.FIELD_TYPE_BLOB);
+        items.add(new InboxItem(c.getLong(0), c.getString(1), c.getLong(2),
+          data ? null : c.getString(3), data ? c.getBlob(3) : null,
+          c.getInt(4)));
+      }
+    }
+    finally
+    {
+      c.close();
+    }
+    int decrypted = 0;
+    for(int i = 0; i < items.size(); i += DRAIN_BATCH)
+    {
+      InboxItem[] batch = (items.subList(i,
+        Math.min(i + DRAIN_BATCH, items.size()))).toArray(new InboxItem[0]);
+      decrypted += batch.length - decryptInbox(batch);
+    }
+    return decrypted;
   }
 
   /**
@@ -182,58 +583,128 @@ public class MessageInserter
    *  @param recipientNumber String representing the phone number of the
    *    message's recipient.
    *  @param messageBody String representing the unencrypted message body.
+   *  @return Future of the message's row id; the insert is queued and this
+   *    returns right away.
    */
-  public void insertMessage(String recipientNumber, String messageBody)
+  public Future<Long> insertMessage(String recipientNumber,
+      final String messageBody)
   {
-    String number = PhoneNumberUtils.stripSeparators(recipientNumber);
-    newMessageStatement.bindString(1, number);
-    newMessageStatement.bindLong(2, (long)1); //true: The user did send this
-    newMessageStatement.bindLong(3, System.currentTimeMillis()); //sent now
-    newMessageStatement.bindString(4, messageBody);
-    //push data to database
-    newMessageStatement.execute();
-    //call callback
-    notifyChanged(number);
+    final String number = Numbers.canonical(recipientNumber);
+    final long time = System.currentTimeMillis();
+    return writes.submit(new WriteQueue.Write<Long>(new Callable<Long>()
+    {
+      @Override
+      public Long call()
+      {
+        //true: The user did send this; sent now
+        return insert(number, 1, time, messageBody);
+      }
+    })
+    {
+      @Override
+      protected void done()
+      {
+        //the conversation and the conversation list
+        notifyProvider(Collections.singleton(number));
+      }
+    });
   }
 
   /**
-   *  Callback for when the database is inserted into.
+   *  markRead() given a phone number marks every message of its
+   *  conversation as read, clearing its unread count.
    *
-   *  Updateable call's update() method is called. If no callee was set via 
-   *  registerNotification(), nothing happens. Only callback if the number
-   *  received matches the one registered.
+   *  @param number phone number of the conversation; delimiters optional.
+   *  @return Future completing once marked.
+   */
+  public Future<Void> markRead(String number)
+  {
+    final String conversation = Numbers.canonical(number);
+    return writes.submit(new WriteQueue.Write<Void>(new Callable<Void>()
+    {
+      @Override
+      public Void call()
+      {
+        markReadStatement.bindString(1, conversation);
+        markReadStatement.execute();
+        return null;
+      }
+    })
+    {
+      @Override
+      protected void done()
+      {
+        //the unread count shown in the conversation list
+        notifyProvider(Collections.singleton(conversation));
+      }
+    });
+  }
+
+  /**
+   *  insert() binds and executes the prepared statement, numbering the
+   *  number first if it is new. The statement is shared, so this is only
+   *  called on the writer thread.
    *
-   *  Given phone number must be in an international format with a country code
-   *  and area code and without any delimiters. "1555215554" is a valid input.
+   *  @return row id of the message inserted.
+   */
+  private long insert(String number, long sent, long time, String body)
+  {
+    //bind the prepared statement
+    newMessageStatement.bindLong(1, contacts.intern(number));
+    newMessageStatement.bindLong(2, sent);
+    newMessageStatement.bindLong(3, time);
+    newMessageStatement.bindString(4, body);
+    //push data to database
+    return newMessageStatement.executeInsert();
+  }
+
+  /**
+   *  await() given the Future of a write waits for it to be committed, at
+   *  most AWAIT_SECONDS.
    *
-   *  @param number String representing the conversation updated without
-   *    delimiters.
+   *  @throws RuntimeException if the write failed, did not complete in time
+   *    or the wait was interrupted.
    */
-  private void notifyChanged(String number)
+  private static <V> V await(Future<V> write)
   {
-    if(call != null && number.equals(this.callNumber))
+    try
     {
-      this.call.update();
+      return write.get(AWAIT_SECONDS, TimeUnit.SECONDS);
+    }
+    catch(TimeoutException e)
+    {
+      throw new RuntimeException("Write not committed in time.", e);
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    catch(ExecutionException e)
+    {
+      if(e.getCause() instanceof RuntimeException)
+      {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
     }
   }
 
-  private static void hexify(byte[] bytes)
+  /**
+   *  notifyProvider() given the conversations written to notifies the
+   *  observers of their MessageProvider URIs, and with them those of the
+   *  conversation list, so that their Loaders reload.
+   *
+   *  @param numbers Strings representing the conversations updated, in
+   *    canonical form.
+   */
+  private void notifyProvider(Collection<String> numbers)
   {
-    if(bytes == null)
-    {
-      return;
-    }
-    char[] HEX_CHARS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A',
-           'B', 'C', 'D', 'E', 'F' };
-    char[] hexChars = new char[bytes.length * 2];
-    int v;
-    for(int j = 0; j < bytes.length; j++)
+    for(String number : numbers)
     {
-      v = bytes[j] & 0xFF;
-      hexChars[j * 2] = HEX_CHARS[v >>> 4];
-      hexChars[j * 2 + 1] = HEX_CHARS[v & 0x0F];
+      context.getContentResolver().notifyChange(
+        MessageProvider.conversation(number), null);
     }
-    Log.d(Names.TAG, new String(hexChars));
   }
 
   /**
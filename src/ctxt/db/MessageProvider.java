@@ -0,0 +1,232 @@
+package ctxt.db;
+
+import ctxt.db.MessageReader;
+import ctxt.key.Key;
+import ctxt.key.Numbers;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ *  MessageProvider class exposes the message database to Loaders.
+ *
+ *  Two kinds of URI are served, both read only:
+ *
+ *  CONVERSATIONS lists every conversation, as MessageReader's
+ *    getSummaryCursor() does for the numbers with a key.
+ *  CONVERSATIONS/number lists a page of a conversation's messages, oldest
+ *    first. The LIMIT query parameter is how many, PAGE_SIZE by default and
+ *    at most MAX_LIMIT. By default the page is the newest messages; with
+ *    BEFORE=id it is the newest messages before message id, and with
+ *    AFTER=id the oldest messages after it. Pages are read by keyset
+ *    queries, see MessageReader.getOlderCursor(), so reading a page costs
+ *    the same however far back it is.
+ *
+ *  Queries run on the caller's thread, for a CursorLoader a background one.
+ *  Each Cursor returned watches its conversation's URI. MessageInserter
+ *  notifies that URI once a write to the conversation is committed, which
+ *  also notifies CONVERSATIONS, so every screen showing the conversation
+ *  reloads.
+ *
+ *  Messages are written only by MessageInserter. The provider is not
+ *  exported; the messages are stored unencrypted.
+ */
+public class MessageProvider extends ContentProvider
+{
+  /**
+   *  Class Variables.
+   *
+   *  AUTHORITY authority of the provider's URIs, as in the manifest.
+   *  CONVERSATIONS URI of the conversation list.
+   *  LIMIT query parameter of a conversation's URI: number of messages.
+   *  BEFORE, AFTER query parameters of a conversation's URI: message number
+   *    the page is older or newer than.
+   *  PAGE_SIZE default LIMIT, and how many messages ConversationLoader reads
+   *    each time the conversation is scrolled to either end.
+   *  MAX_LIMIT largest LIMIT served.
+   *  MATCH_CONVERSATIONS, MATCH_CONVERSATION codes of the URIs matched.
+   *  URIS UriMatcher of the URIs served.
+   */
+  public static final String AUTHORITY = "ctxt.ctxt.messages";
+  public static final Uri CONVERSATIONS =
+    Uri.parse("content://" + AUTHORITY + "/conversations");
+  public static final String LIMIT = "limit";
+  public static final String BEFORE = "before";
+  public static final String AFTER = "after";
+  public static final int PAGE_SIZE = 50;
+  public static final int MAX_LIMIT = 8 * PAGE_SIZE;
+  private static final int MATCH_CONVERSATIONS = 1;
+  private static final int MATCH_CONVERSATION = 2;
+  private static final UriMatcher URIS = new UriMatcher(UriMatcher.NO_MATCH);
+  static
+  {
+    URIS.addURI(AUTHORITY, "conversations", MATCH_CONVERSATIONS);
+    URIS.addURI(AUTHORITY, "conversations/*", MATCH_CONVERSATION);
+  }
+
+  /**
+   *  Member Variables.
+   *
+   *  reader MessageReader queried, opened by the first query.
+   */
+  private MessageReader reader;
+
+  /**
+   *  conversation() given a phone number returns its conversation's URI, to
+   *  observe.
+   *
+   *  @param number phone number in any format.
+   *  @return URI of the conversation.
+   */
+  public static Uri conversation(String number)
+  {
+    return Uri.withAppendedPath(CONVERSATIONS, Numbers.canonical(number));
+  }
+
+  /**
+   *  conversation() given a phone number and a number of messages returns
+   *  the URI of that many of its newest messages, to query.
+   *
+   *  @param number phone number in any format.
+   *  @param limit number of messages.
+   *  @return URI of the conversation with a LIMIT.
+   */
+  public static Uri conversation(String number, int limit)
+  {
+    return Uri.parse(conversation(number) + "?" + LIMIT + "=" + limit);
+  }
+
+  /**
+   *  conversation() given a phone number, a message number, whether to page
+   *  back or forth from it and a number of messages returns the URI of that
+   *  many of its messages before or after the message, to query.
+   *
+   *  @param number phone number in any format.
+   *  @param id message number the page is older or newer than.
+   *  @param older whether the page is before id rather than after it.
+   *  @param limit number of messages.
+   *  @return URI of the conversation with a LIMIT and BEFORE or AFTER.
+   */
+  public static Uri conversation(String number, long id, boolean older,
+      int limit)
+  {
+    return Uri.parse(conversation(number, limit) + "&" +
+      (older ? BEFORE : AFTER) + "=" + id);
+  }
+
+  /**
+   *  onCreate() does nothing; it runs on the main thread as the application
+   *  starts, so the database is opened by the first query instead.
+   *
+   *  @return true.
+   */
+  @Override
+  public boolean onCreate()
+  {
+    return true;
+  }
+
+  /**
+   *  query() given a URI returns a Cursor over the conversations or over a
+   *  conversation's newest messages, watching the URI for changes.
+   *
+   *  The columns, selection and order are those of the URI; projection,
+   *  selection and sortOrder are ignored.
+   *
+   *  @throws IllegalArgumentException if the URI is not served.
+   */
+  @Override
+  public Cursor query(Uri uri, String[] projection, String selection,
+      String[] selectionArgs, String sortOrder)
+  {
+    Cursor c;
+    Uri watched;
+    switch(URIS.match(uri))
+    {
+      case MATCH_CONVERSATIONS:
+        c = reader().getSummaryCursor(
+          Key.getFetcher(getContext()).enumerateKeys());
+        watched = CONVERSATIONS;
+        break;
+      case MATCH_CONVERSATION:
+        String number = uri.getLastPathSegment();
+        String limit = uri.getQueryParameter(LIMIT);
+        String before = uri.getQueryParameter(BEFORE);
+        String after = uri.getQueryParameter(AFTER);
+        int n = Math.min((limit == null) ? PAGE_SIZE : Integer.parseInt(limit),
+          MAX_LIMIT);
+        if(before != null)
+        {
+          c = reader().getOlderCursor(number, Long.parseLong(before), n);
+        }
+        else if(after != null)
+        {
+          c = reader().getNewerCursor(number, Long.parseLong(after), n);
+        }
+        else
+        {
+          c = reader().getNewestCursor(number, n);
+        }
+        watched = conversation(number);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown uri " + uri);
+    }
+    c.setNotificationUri(getContext().getContentResolver(), watched);
+    return c;
+  }
+
+  @Override
+  public String getType(Uri uri)
+  {
+    switch(URIS.match(uri))
+    {
+      case MATCH_CONVERSATIONS:
+        return "vnd.android.cursor.dir/vnd.ctxt.conversation";
+      case MATCH_CONVERSATION:
+        return "vnd.android.cursor.dir/vnd.ctxt.message";
+      default:
+        return null;
+    }
+  }
+
+  /**
+   *  insert(), delete() and update() are not supported; messages are written
+   *  through MessageInserter.
+   *
+   *  @throws UnsupportedOperationException always.
+   */
+  @Override
+  public Uri insert(Uri uri, ContentValues values)
+  {
+    throw new UnsupportedOperationException("Read only uri " + uri);
+  }
+
+  @Override
+  public int delete(Uri uri, String selection, String[] selectionArgs)
+  {
+    throw new UnsupportedOperationException("Read only uri " + uri);
+  }
+
+  @Override
+  public int update(Uri uri, ContentValues values, String selection,
+      String[] selectionArgs)
+  {
+    throw new UnsupportedOperationException("Read only uri " + uri);
+  }
+
+  /**
+   *  reader() returns the MessageReader queried, opening it the first time.
+   */
+  private synchronized MessageReader reader()
+  {
+    if(reader == null)
+    {
+      reader = new MessageReader(getContext());
+    }
+    return reader;
+  }
+}
@@ -6,11 +6,16 @@ import ctxt.db.Names;
 import ctxt.db.MessageDatabaseHelper;
 import ctxt.db.Message;
 
+import ctxt.key.Numbers;
+
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.ContentObserver;
+import android.database.sqlite.SQLiteException;
 import android.util.Log;
 
 import android.view.View;
@@ -22,15 +27,26 @@ import android.widget.BaseAdapter;
 import android.widget.ListAdapter;
 import android.widget.TextView;
 
-import android.telephony.PhoneNumberUtils;
-
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.PriorityQueue;
 
 /**
  *  MessageReader provides a readonly interface for sms's stored in the
  *  database.
  *
  *  All data stored in the database is unencrypted.
+ *
+ *  Conversations are shown through newAdapter(), fed by a
+ *  ConversationLoader over MessageProvider, which reads pages of messages
+ *  with the keyset queries getNewestCursor(), getOlderCursor() and
+ *  getNewerCursor().
  */
 public class MessageReader
 {
@@ -39,9 +55,68 @@ public class MessageReader
    *
    *  fromColumns
    *  toView
+   *  SUMMARY_NUMBER, SUMMARY_TITLE, SUMMARY_MESSAGE, SUMMARY_DATE,
+   *    SUMMARY_UNREAD columns of getSummaryCursor(): the conversation's
+   *    number, the number followed by the unread count if any, the last
+   *    message, its send time and the unread count.
+   *  SUMMARY_COLUMNS columns of getSummaryCursor() in order.
+   *  SEARCH_MESSAGE, SEARCH_CONTACT, SEARCH_NUMBER, SEARCH_SNIPPET,
+   *    SEARCH_DATE, SEARCH_SENDER columns of search(): the message number,
+   *    the conversation's contact id and number, the matching part of the
+   *    message with the matches in brackets, its send time and sender.
+   *  SEARCH_COLUMNS columns of search() in order.
+   *  SNIPPET_TOKENS number of words in a snippet.
+   *  BY_SCORE orders search hits from the worst to the best ranked; of equal
+   *    scores, the newer message ranks better.
    */
   protected static final String[] fromColumns = { Names.MESSAGE };
   protected static final int[] toViews = { R.id.message_text };
+  public static final String SUMMARY_NUMBER = Names.CONTACT_NUMBER;
+  public static final String SUMMARY_TITLE = "title";
+  public static final String SUMMARY_MESSAGE = Names.MESSAGE;
+  public static final String SUMMARY_DATE = Names.SUMMARY_LAST_DATE;
+  public static final String SUMMARY_UNREAD = Names.SUMMARY_UNREAD;
+  private static final String[] SUMMARY_COLUMNS = {Names.SUMMARY_NO,
+    SUMMARY_NUMBER, SUMMARY_TITLE, SUMMARY_MESSAGE, SUMMARY_DATE,
+    SUMMARY_UNREAD};
+  public static final String SEARCH_MESSAGE = Names.MESSAGE_NO;
+  public static final String SEARCH_CONTACT = Names.CONTACT_ID;
+  public static final String SEARCH_NUMBER = Names.CONTACT_NUMBER;
+  public static final String SEARCH_SNIPPET = "snippet";
+  public static final String SEARCH_DATE = Names.RECEIPT_DATE;
+  public static final String SEARCH_SENDER = Names.SENDER_NAME;
+  private static final String[] SEARCH_COLUMNS = {SEARCH_MESSAGE,
+    SEARCH_CONTACT, SEARCH_NUMBER, SEARCH_SNIPPET, SEARCH_DATE,
+    SEARCH_SENDER};
+  private static final int SNIPPET_TOKENS = 12;
+  private static final Comparator<SearchHit> BY_SCORE =
+    new Comparator<SearchHit>()
+    {
+      @Override
+      public int compare(SearchHit a, SearchHit b)
+      {
+        if(a.score != b.score)
+        {
+          return a.score < b.score ? -1 : 1;
+        }
+        return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+      }
+    };
+
+  /**
+   *  SearchHit class is a message matching a search and its score.
+   */
+  private static class SearchHit
+  {
+    final long id;
+    final double score;
+
+    SearchHit(long id, double score)
+    {
+      this.id = id;
+      this.score = score;
+    }
+  }
 
   /**
    *  Member Variables.
@@ -94,10 +169,11 @@ public class MessageReader
         Names.MESSAGE_NO, Names.SENDER_NAME, Names.RECEIPT_DATE, Names.MESSAGE
         //message_no NOT necessary for iterator; only for list view
       },
-      Names.CONVERSATION_ID+"=?",
+      Names.CONTACT_ID+"=(SELECT "+Names.CONTACT_NO+" FROM "+
+        Names.CONTACT_TABLE_NAME+" WHERE "+Names.CONTACT_NUMBER+"=?)",
       new String[]
       {
-        PhoneNumberUtils.stripSeparators(number)
+        Numbers.canonical(number)
       },
       null, //no grouping
       null, //no having
@@ -107,42 +183,267 @@ public class MessageReader
   }
 
   /**
-   *  getAdapter() given a context will return a SimpleCursorAdapter over the
-   *  data for displaying the coversation.
+   *  getNewestCursor() given a phone number returns a cursor over the newest
+   *  messages of its conversation, oldest first, read through the (contact,
+   *  message number) index.
    *
-   *  The given phone number must be an international number including country
-   *  code and area code. For example, "5215554" is *not* acceptable, but
-   *  "15555215554" is. It does not matter if the given number contains
-   *  delimiters or not, getConversationCursor() removes them regardless.
+   *  @param number phone number of the conversation; delimiters optional.
+   *  @param limit maximum number of messages.
+   *  @return Cursor with the message number, sender, receipt date and
+   *    message columns.
+   */
+  public Cursor getNewestCursor(String number, int limit)
+  {
+    return getOlderCursor(number, Long.MAX_VALUE, limit);
+  }
+
+  /**
+   *  getOlderCursor() given a phone number and a message number returns a
+   *  cursor over the newest messages of its conversation before that one,
+   *  oldest first. This is a keyset query: the (contact, message number)
+   *  index seeks to the message, so the rows after it are never read.
    *
-   *  @param context for cursor adapter.
-   *  @param number String for phone number.
-   *  @return SimpleCursorAdapter for conversation data.
+   *  @param number phone number of the conversation; delimiters optional.
+   *  @param before message number the messages are older than.
+   *  @param limit maximum number of messages.
+   *  @return Cursor with the message number, sender, receipt date and
+   *    message columns.
+   */
+  public Cursor getOlderCursor(String number, long before, int limit)
+  {
+    return db.rawQuery(
+      "SELECT * FROM (SELECT " + Names.MESSAGE_NO + ", " + Names.SENDER_NAME +
+      ", " + Names.RECEIPT_DATE + ", " + Names.MESSAGE + " FROM " +
+      Names.TABLE_NAME + " WHERE " + Names.CONTACT_ID + "=(SELECT " +
+      Names.CONTACT_NO + " FROM " + Names.CONTACT_TABLE_NAME + " WHERE " +
+      Names.CONTACT_NUMBER + "=?) AND " + Names.MESSAGE_NO + "<? ORDER BY " +
+      Names.MESSAGE_NO + " DESC LIMIT " + limit + ") ORDER BY " +
+      Names.MESSAGE_NO + ";",
+      new String[] {Numbers.canonical(number), String.valueOf(before)});
+  }
+
+  /**
+   *  getNewerCursor() given a phone number and a message number returns a
+   *  cursor over the oldest messages of its conversation after that one,
+   *  oldest first, by a keyset query as getOlderCursor() does.
+   *
+   *  @param number phone number of the conversation; delimiters optional.
+   *  @param after message number the messages are newer than.
+   *  @param limit maximum number of messages.
+   *  @return Cursor with the message number, sender, receipt date and
+   *    message columns.
    */
-  public SimpleCursorAdapter getAdapter(Context context, String number)
+  public Cursor getNewerCursor(String number, long after, int limit)
   {
-    return new MessageCursorAdapter(context, R.layout.message,
-      getConversationCursor(number), fromColumns, toViews, 0);
+    return db.rawQuery(
+      "SELECT " + Names.MESSAGE_NO + ", " + Names.SENDER_NAME + ", " +
+      Names.RECEIPT_DATE + ", " + Names.MESSAGE + " FROM " +
+      Names.TABLE_NAME + " WHERE " + Names.CONTACT_ID + "=(SELECT " +
+      Names.CONTACT_NO + " FROM " + Names.CONTACT_TABLE_NAME + " WHERE " +
+      Names.CONTACT_NUMBER + "=?) AND " + Names.MESSAGE_NO + ">? ORDER BY " +
+      Names.MESSAGE_NO + " LIMIT " + limit + ";",
+      new String[] {Numbers.canonical(number), String.valueOf(after)});
   }
 
   /**
-   *  updateAdapter() given an adapter will swap its cursor for a new one and
-   *  notify the adapter that its dataset has changed.
+   *  getSummaryCursor() returns a cursor over every conversation, the most
+   *  recent first, followed by the numbers with a key but no messages yet.
    *
-   *  This method should be called when the database has changed and the user
-   *  of the Adapter needs fresh data.
+   *  The conversations are read from the conversation table in one query,
+   *  walking the index on its last message number and joining each row to
+   *  its number by contact id and to its last message by message number.
    *
-   *  @param a SimpleCursorAdapter with an old cursor, this will be mutated.
-   *  @param number phone number for which to get a new cursor.
+   *  @param numbers phone numbers for which a key is stored, from
+   *    Fetcher.enumerateKeys().
+   *  @return Cursor with SUMMARY_COLUMNS.
    */
-  public void updateAdapter(SimpleCursorAdapter a, String number)
+  public Cursor getSummaryCursor(String[] numbers)
   {
-    a.swapCursor(getConversationCursor(number)).close();
-    a.notifyDataSetChanged();
+    String s = Names.SUMMARY_TABLE_NAME + ".";
+    String c = Names.CONTACT_TABLE_NAME + ".";
+    Cursor conversations = db.rawQuery(
+      "SELECT " + s + Names.SUMMARY_NO + ", " + Names.CONTACT_NUMBER +
+      ", " + Names.CONTACT_NUMBER + " || CASE WHEN " + Names.SUMMARY_UNREAD +
+      " > 0 THEN ' (' || " + Names.SUMMARY_UNREAD + " || ')' ELSE '' END AS " +
+      SUMMARY_TITLE + ", " + Names.MESSAGE + ", " + Names.SUMMARY_LAST_DATE +
+      ", " + Names.SUMMARY_UNREAD + " FROM " + Names.SUMMARY_TABLE_NAME +
+      " JOIN " + Names.CONTACT_TABLE_NAME + " ON " + c + Names.CONTACT_NO +
+      "=" + s + Names.SUMMARY_CONTACT +
+      " LEFT JOIN " + Names.TABLE_NAME + " ON " + Names.TABLE_NAME + "." +
+      Names.MESSAGE_NO + "=" + s + Names.SUMMARY_LAST_NO + " ORDER BY " +
+      s + Names.SUMMARY_LAST_NO + " DESC;", null);
+    HashSet<String> listed = new HashSet<String>();
+    while(conversations.moveToNext())
+    {
+      listed.add(conversations.getString(1));
+    }
+    MatrixCursor keys = new MatrixCursor(SUMMARY_COLUMNS);
+    long id = 0;
+    for(String number : numbers)
+    {
+      String canonical = Numbers.canonical(number);
+      if(listed.add(canonical))
+      {
+        //negative ids cannot clash with the conversation table's
+        keys.addRow(new Object[] {--id, canonical, canonical, "", 0, 0});
+      }
+    }
+    return new MergeCursor(new Cursor[] {conversations, keys});
   }
 
   /**
-   *  This method is deprecated, use getAdapter() instead to get a cursor.
+   *  search() given a full-text query returns the best matching messages,
+   *  best first, each with a snippet of its body and its conversation.
+   *
+   *  The query has the syntax of an FTS4 MATCH: words, "quoted phrases",
+   *  prefixes such as "hel*", and OR. Matching is case insensitive for
+   *  ASCII letters.
+   *
+   *  Messages are ranked in two queries. The first reads only the full-text
+   *  index: the id of every match and its matchinfo(), from which a score is
+   *  computed, the sum over the query's terms of the term's occurrences in
+   *  the message divided by its occurrences in all messages, so rarer terms
+   *  weigh more. The best limit matches are kept in a heap. The second query
+   *  reads the messages, snippets and numbers of those only.
+   *
+   *  @param query full-text query.
+   *  @param limit maximum number of messages returned.
+   *  @return Cursor with SEARCH_COLUMNS; empty if nothing matched or the
+   *    query is malformed.
+   */
+  public Cursor search(String query, int limit)
+  {
+    MatrixCursor results = new MatrixCursor(SEARCH_COLUMNS);
+    if(limit <= 0)
+    {
+      return results;
+    }
+    String[] args = new String[] {query};
+    PriorityQueue<SearchHit> best = new PriorityQueue<SearchHit>(limit,
+      BY_SCORE);
+    try
+    {
+      Cursor matches = db.rawQuery(
+        "SELECT " + Names.FTS_DOCID + ", matchinfo(" + Names.FTS_TABLE_NAME +
+        ") FROM " + Names.FTS_TABLE_NAME + " WHERE " + Names.FTS_TABLE_NAME +
+        " MATCH ?;", args);
+      try
+      {
+        while(matches.moveToNext())
+        {
+          best.add(new SearchHit(matches.getLong(0),
+            score(matches.getBlob(1))));
+          if(best.size() > limit)
+          {
+            best.poll();
+          }
+        }
+      }
+      finally
+      {
+        matches.close();
+      }
+      if(best.isEmpty())
+      {
+        return results;
+      }
+
+      StringBuilder ids = new StringBuilder();
+      for(SearchHit hit : best)
+      {
+        ids.append(ids.length() == 0 ? "" : ",").append(hit.id);
+      }
+      String f = Names.FTS_TABLE_NAME + ".";
+      String m = Names.TABLE_NAME + ".";
+      Cursor rows = db.rawQuery(
+        "SELECT " + m + Names.MESSAGE_NO + ", " + m + Names.CONTACT_ID +
+        ", " + Names.CONTACT_NUMBER + ", snippet(" + Names.FTS_TABLE_NAME +
+        ", '[', ']', '...', -1, " + SNIPPET_TOKENS + "), " +
+        Names.RECEIPT_DATE + ", " + Names.SENDER_NAME + " FROM " +
+        Names.FTS_TABLE_NAME + " JOIN " + Names.TABLE_NAME + " ON " + m +
+        Names.MESSAGE_NO + "=" + f + Names.FTS_DOCID + " JOIN " +
+        Names.CONTACT_TABLE_NAME + " ON " + Names.CONTACT_TABLE_NAME + "." +
+        Names.CONTACT_NO + "=" + m + Names.CONTACT_ID + " WHERE " +
+        Names.FTS_TABLE_NAME + " MATCH ? AND " + f + Names.FTS_DOCID +
+        " IN (" + ids + ");", args);
+      HashMap<Long, Object[]> found = new HashMap<Long, Object[]>();
+      try
+      {
+        while(rows.moveToNext())
+        {
+          found.put(rows.getLong(0), new Object[] {rows.getLong(0),
+            rows.getLong(1), rows.getString(2), rows.getString(3),
+            rows.getLong(4), rows.getShort(5)});
+        }
+      }
+      finally
+      {
+        rows.close();
+      }
+
+      ArrayList<SearchHit> ranked = new ArrayList<SearchHit>(best);
+      Collections.sort(ranked, Collections.reverseOrder(BY_SCORE));
+      for(SearchHit hit : ranked)
+      {
+        Object[] row = found.get(hit.id);
+        if(row != null)
+        {
+          results.addRow(row);
+        }
+      }
+    }
+    catch(SQLiteException e)
+    {
+      //malformed MATCH expression
+      Log.e(Names.TAG, "exception", e);
+    }
+    return results;
+  }
+
+  /**
+   *  score() given the matchinfo() of a match, in its default "pcx" format,
+   *  returns the sum over every term and column of the term's occurrences
+   *  in the match divided by its occurrences in every row.
+   *
+   *  @param matchinfo blob of native order 32 bit unsigned integers: the
+   *    number of terms p, of columns c, then for each term and column the
+   *    occurrences in this row, in every row and the rows with any.
+   *  @return score, higher is better.
+   */
+  static double score(byte[] matchinfo)
+  {
+    ByteBuffer b = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+    int terms = b.getInt(0);
+    int columns = b.getInt(4);
+    double score = 0;
+    for(int i = 0; i < terms * columns; i++)
+    {
+      int inRow = b.getInt(8 + 12*i);
+      int inAll = b.getInt(12 + 12*i);
+      if(inRow > 0)
+      {
+        score += (double) inRow / inAll;
+      }
+    }
+    return score;
+  }
+
+  /**
+   *  newAdapter() given a context returns an adapter showing messages, with
+   *  no cursor, for the cursors of a Loader over MessageProvider.
+   *
+   *  @param context for cursor adapter.
+   *  @return SimpleCursorAdapter for conversation data.
+   */
+  public static SimpleCursorAdapter newAdapter(Context context)
+  {
+    return new MessageCursorAdapter(context, R.layout.message, null,
+      fromColumns, toViews, 0);
+  }
+
+  /**
+   *  This method is deprecated, load MessageProvider.conversation() instead
+   *  to get a cursor.
    *
    *  getConversationIterator() given a phone number will return an iterator
    *  over a conversation held between the user and that phone number.
@@ -161,17 +462,52 @@ public class MessageReader
   /**
    *  MessageCursorAdapter class extends SimpleCursorAdapter to conditionally
    *  provide different views based upon the results of the query.
+   *
+   *  Binding a row does no lookups: the cursor's column indices are resolved
+   *  once per cursor, in the constructor and swapCursor(), and each row's
+   *  TextView once, in newView(). A row's gravity and background are only
+   *  set when it changes between a sent and a received message.
    */
-  private class MessageCursorAdapter extends SimpleCursorAdapter
+  private static class MessageCursorAdapter extends SimpleCursorAdapter
   {
     /**
      *  Class Variables.
      *
      *  COLOR_SENT int representing the color to set the view of a sent sms to.
      *  COLOR_RECEIVED color to set the view of a received sms to.
+     *  SENT, RECEIVED styles of a sent and of a received sms.
      */
     private static final int COLOR_SENT = android.R.color.black;
     private static final int COLOR_RECEIVED = android.R.color.holo_orange_dark;
+    private static final Style SENT = new Style(Gravity.LEFT, COLOR_SENT);
+    private static final Style RECEIVED =
+      new Style(Gravity.RIGHT, COLOR_RECEIVED);
+
+    /**
+     *  Style class is the gravity and background of a row's text.
+     */
+    private static final class Style
+    {
+      final int gravity;
+      final int background;
+
+      Style(int gravity, int background)
+      {
+        this.gravity = gravity;
+        this.background = background;
+      }
+    }
+
+    /**
+     *  Member Variables.
+     *
+     *  inflater LayoutInflater of the adapter's context.
+     *  senderIndex, messageIndex indices of the cursor's SENDER_NAME and
+     *    MESSAGE columns, or -1 without a cursor.
+     */
+    private final LayoutInflater inflater;
+    private int senderIndex = -1;
+    private int messageIndex = -1;
 
     /**
      *  MessageCursorAdapter() calls the super constructor.
@@ -182,52 +518,54 @@ public class MessageReader
         int k)
     {
       super(co, i, c, s, j, k);
+      inflater = LayoutInflater.from(co);
+      //the super constructor does not go through swapCursor()
+      resolveColumns(c);
     }
 
     /**
-     *  ViewWrapper container class to be passed around from calls to newView()
-     *  and bindView().
+     *  swapCursor() given a new cursor resolves its column indices before
+     *  swapping it in.
      *
-     *  This class has no getter for member variable base, but use getLabel()
-     *  to get the label field.
+     *  @return the old cursor, not closed.
      */
-    private class ViewWrapper
+    @Override
+    public Cursor swapCursor(Cursor c)
     {
-      /**
-       *  Member Variables.
-       *
-       *  base View object representing the base View in a conversation.
-       *  label TextView for an actual text box in a conversation.
-       */
-      View base;
-      TextView label = null;
+      resolveColumns(c);
+      return super.swapCursor(c);
+    }
 
-      /**
-       *  ViewWrapper() given a base constructs a new ViewWrapper. The label
-       *  field will be lazily created.
-       *
-       *  @param base View object to store.
-       */
-      ViewWrapper(View base)
+    private void resolveColumns(Cursor c)
+    {
+      if(c == null)
       {
-        this.base = base;
+        senderIndex = -1;
+        messageIndex = -1;
+        return;
       }
+      senderIndex = c.getColumnIndexOrThrow(Names.SENDER_NAME);
+      messageIndex = c.getColumnIndexOrThrow(Names.MESSAGE);
+    }
 
+    /**
+     *  ViewHolder container class to be passed around from calls to newView()
+     *  and bindView() as a row's tag.
+     */
+    private static final class ViewHolder
+    {
       /**
-       *  getLabel() returns the label TextView object stored in this
-       *  ViewWrapper.
-       *
-       *  label is lazily created upon calling this method for the first time.
+       *  Member Variables.
        *
-       *  @return label TextView object.
+       *  label TextView for an actual text box in a conversation.
+       *  style Style label has, or null before it is first bound.
        */
-      TextView getLabel()
+      final TextView label;
+      Style style = null;
+
+      ViewHolder(TextView label)
       {
-        if(label == null)
-        {
-          label = (TextView) base.findViewById(R.id.message_text);
-        }
-        return this.label;
+        this.label = label;
       }
     }
 
@@ -238,6 +576,10 @@ public class MessageReader
      *  data. This is because doing so would be pointless because the super
      *  class immediately calls bindView() after this method.
      *
+     *  The row is inflated with the list as its parent, without being
+     *  attached to it, so that its layout parameters are those of a list
+     *  row. R.layout.message is the TextView alone, one view to measure.
+     *
      *  @param context Context under which the View is created.
      *  @param cursor cursor that contains data to create the View with.
      *  @param parent ViewGroup that will be a parent to the new View.
@@ -246,11 +588,10 @@ public class MessageReader
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent)
     {
-      LayoutInflater inflater = LayoutInflater.from(context);
-      View row = inflater.inflate(R.layout.message, null);
-      ViewWrapper w = new ViewWrapper(row);
+      View row = inflater.inflate(R.layout.message, parent, false);
       //set tag to pass data to the View for use in bindView()
-      row.setTag(w);
+      row.setTag(new ViewHolder(
+        (TextView) row.findViewById(R.id.message_text)));
       return row;
     }
 
@@ -268,23 +609,16 @@ public class MessageReader
     @Override
     public void bindView(View row, Context context, Cursor c)
     {
-      ViewWrapper w = (ViewWrapper) row.getTag();
-      TextView t = w.getLabel();
-
-      //This is where the actual logic goes for picking the view
-      if(c.getShort(c.getColumnIndex(Names.SENDER_NAME)) > 0) //user sent it
-      {
-        t.setGravity(Gravity.LEFT);
-        t.setBackgroundResource(COLOR_SENT);
-      }
-      else //user received it
+      ViewHolder h = (ViewHolder) row.getTag();
+      //a sender greater than 0 means the user sent it
+      Style style = (c.getShort(senderIndex) > 0) ? SENT : RECEIVED;
+      if(h.style != style)
       {
-        t.setGravity(Gravity.RIGHT);
-        t.setBackgroundResource(COLOR_RECEIVED);
-        //row.setBackgroundResource(COLOR_RECEIVED);
-        //t.setTextColor(android.R.color.primary_text_dark);
+        h.label.setGravity(style.gravity);
+        h.label.setBackgroundResource(style.background);
+        h.style = style;
       }
-      t.setText(c.getString(c.getColumnIndex(Names.MESSAGE)));
+      h.label.setText(c.getString(messageIndex));
     }
   }
 
@@ -5,10 +5,10 @@ package ctxt.db;
  *
  *  All sms's are stored unencrypted.
  *
- *  Schema: message number, conversation, sender, send time, message body.
+ *  Schema: message number, contact, sender, send time, message body.
  *
  *  Message number: A means to order who sent what message in which order.
- *  Conversation: Identifies with whom the user is communicating with; a
+ *  Contact: Identifies with whom the user is communicating with; a
  *    particular conversation thread.
  *  Sender: Identifies who sent the message.
  *  Send time: When the message was sent.
@@ -22,12 +22,34 @@ package ctxt.db;
  *
  *  A sequence of messages exchanged between the user and another individual is
  *  referred to as a conversation. In this database, the value held in the
- *  conversation field is the other individual's phone number. This is true
- *  regardless of whether or not the message was sent by the user or by the
- *  other individual; to determine this, the sender field is used. The way in
- *  which the conversation field is formatted as a string is in an
- *  international format without any delimiters. For example, "15555215556" is
- *  an example of a conversation number that would be in the database.
+ *  contact field is the id of the other individual's phone number in the
+ *  contact table. This is true regardless of whether or not the message was
+ *  sent by the user or by the other individual; to determine this, the sender
+ *  field is used. The contact table holds each number once, in the canonical
+ *  form of Numbers.canonical(): digits only, without any delimiters or a
+ *  leading '+'. For example, "15555215556" is an example of a number that
+ *  would be in the database. Comparing small integers rather than strings
+ *  keeps the message rows and their indexes small.
+ *
+ *  Before version 5, messages and summaries held the number itself in a conv
+ *  field, formatted only by PhoneNumberUtils.stripSeparators().
+ *
+ *  Received sms's are first appended to the inbox table exactly as they
+ *  arrived, still encrypted: inbox number, sender, send time, encoded body and
+ *  the number of failed decryption attempts. An inbox row is deleted in the
+ *  same transaction that inserts its decrypted message, so a received
+ *  ciphertext is always in one of the two tables.
+ *
+ *  The conversation table summarizes each conversation in a row: its
+ *  contact, the message number and send time of its last
+ *  message, the number of messages received since it was last read and its
+ *  number of messages. A trigger on the message table keeps it up to date
+ *  within the transaction inserting each message.
+ *
+ *  The message_fts table is a full-text index of message bodies, an FTS4
+ *  virtual table whose docid is the message number. Triggers on the message
+ *  table add and remove its entries within the transaction inserting or
+ *  deleting each message.
  */
 final class Names
 {
@@ -46,10 +68,12 @@ final class Names
    *  MESSAGE_NO_TYPE MESSAGE_NO's type in the database. This integer auto
    *    increments, but on a database-wide level; not in the scope of a
    *    particular conversation.
-   *  CONVERSATION_ID phone number of the other individual in the conversation;
-   *    
+   *  CONVERSATION_ID phone number of the other individual in the conversation,
+   *    before version 5; only migrations use it.
    *  CONVERSATION_ID_TYPE international phone numbers are guaranteed to be 15
    *    characters or less excluding the delimiters.
+   *  CONTACT_ID contact id of the other individual in the conversation.
+   *  CONTACT_ID_TYPE integer referencing CONTACT_NO.
    *  SENDER_NAME field that answers the question: Did I send this message?
    *  SENDER_TYPE boolean type representing whether the user sent the message.
    *  RECEIPT_DATE time since the epoch that the message was sent by the
@@ -58,9 +82,49 @@ final class Names
    *    epoch.
    *  MESSAGE the actual message of an sms that was either sent or received.
    *  MESSAGE_TYPE size unlimited text blob.
+   *  CONVERSATION_INDEX index on (CONVERSATION_ID, MESSAGE_NO) before
+   *    version 5.
+   *  CONTACT_INDEX index on (CONTACT_ID, MESSAGE_NO), reading a conversation
+   *    in order.
+   *  RECEIPT_INDEX index on RECEIPT_DATE.
+   *
+   *  INBOX_TABLE_NAME the name of the table received ciphertexts wait in.
+   *  INBOX_NO the name of an inbox number; MESSAGE_NO_TYPE.
+   *  INBOX_SENDER sender's number, formatted like CONTACT_NUMBER.
+   *  INBOX_BODY ciphertext as received; MESSAGE_TYPE. Base128 encoded text
+   *    for a text sms, a blob for a data sms.
+   *  INBOX_ATTEMPTS number of times decryption has failed.
+   *  INBOX_ATTEMPTS_TYPE small integer starting at 0.
+   *
+   *  SUMMARY_TABLE_NAME the name of the table summarizing conversations.
+   *  SUMMARY_NO the name of a summary number; MESSAGE_NO_TYPE.
+   *  SUMMARY_CONV conversation's number before version 5; only migrations
+   *    use it.
+   *  SUMMARY_CONV_TYPE CONVERSATION_ID_TYPE, one row per conversation.
+   *  SUMMARY_CONTACT conversation's CONTACT_ID.
+   *  SUMMARY_CONTACT_TYPE CONTACT_ID_TYPE, one row per conversation.
+   *  SUMMARY_LAST_NO MESSAGE_NO of the conversation's last message.
+   *  SUMMARY_LAST_DATE RECEIPT_DATE of the conversation's last message.
+   *  SUMMARY_UNREAD number of messages received since the conversation was
+   *    last read.
+   *  SUMMARY_COUNT number of messages in the conversation.
+   *  SUMMARY_COUNT_TYPE integer starting at 0.
+   *  SUMMARY_RECENT_INDEX index on SUMMARY_LAST_NO, listing conversations
+   *    by recency.
+   *  SUMMARY_TRIGGER trigger updating the summary on every message insert.
+   *
+   *  CONTACT_TABLE_NAME the name of the table numbering phone numbers.
+   *  CONTACT_NO the name of a contact id; MESSAGE_NO_TYPE.
+   *  CONTACT_NUMBER phone number in canonical form.
+   *  CONTACT_NUMBER_TYPE CONVERSATION_ID_TYPE, each number once.
+   *
+   *  FTS_TABLE_NAME the name of the full-text index of MESSAGE.
+   *  FTS_DOCID FTS_TABLE_NAME's row id, the MESSAGE_NO indexed.
+   *  FTS_INSERT_TRIGGER, FTS_DELETE_TRIGGER triggers indexing every message
+   *    inserted and unindexing every message deleted.
    */
   static final String DATABASE_NAME = ".smsDb";
-  static final int VERSION = 1;
+  static final int VERSION = 6;
   static final String TAG = "SMS_DATABASE";
 
   static final String TABLE_NAME = "message";
@@ -69,10 +133,46 @@ final class Names
   static final String MESSAGE_NO_TYPE = "INTEGER PRIMARY KEY";
   static final String CONVERSATION_ID = "conv";
   static final String CONVERSATION_ID_TYPE = "char(15)";
+  static final String CONTACT_ID = "contact";
+  static final String CONTACT_ID_TYPE = "INTEGER NOT NULL";
   static final String SENDER_NAME = "sender";
   static final String SENDER_TYPE = "TINYINT";
   static final String RECEIPT_DATE = "receipt";
   static final String RECEIPT_TYPE = "INT8";
   static final String MESSAGE = "msg";
   static final String MESSAGE_TYPE = "TEXT";
+  static final String CONVERSATION_INDEX = "message_conv";
+  static final String CONTACT_INDEX = "message_contact";
+  static final String RECEIPT_INDEX = "message_receipt";
+
+  static final String INBOX_TABLE_NAME = "inbox";
+  static final String INBOX_NO = "_id";
+  static final String INBOX_SENDER = "sender";
+  static final String INBOX_BODY = "body";
+  static final String INBOX_ATTEMPTS = "attempts";
+  static final String INBOX_ATTEMPTS_TYPE = "INTEGER NOT NULL DEFAULT 0";
+
+  static final String SUMMARY_TABLE_NAME = "conversation";
+  static final String SUMMARY_NO = "_id";
+  static final String SUMMARY_CONV = "conv";
+  static final String SUMMARY_CONV_TYPE = "char(15) NOT NULL UNIQUE";
+  static final String SUMMARY_CONTACT = "contact";
+  static final String SUMMARY_CONTACT_TYPE = "INTEGER NOT NULL UNIQUE";
+  static final String SUMMARY_LAST_NO = "last_id";
+  static final String SUMMARY_LAST_DATE = "last_receipt";
+  static final String SUMMARY_UNREAD = "unread";
+  static final String SUMMARY_COUNT = "count";
+  static final String SUMMARY_COUNT_TYPE = "INTEGER NOT NULL DEFAULT 0";
+  static final String SUMMARY_RECENT_INDEX = "conversation_recent";
+  static final String SUMMARY_TRIGGER = "message_summary";
+
+  static final String CONTACT_TABLE_NAME = "contact";
+  static final String CONTACT_NO = "_id";
+  static final String CONTACT_NUMBER = "number";
+  static final String CONTACT_NUMBER_TYPE = "char(15) NOT NULL UNIQUE";
+
+  static final String FTS_TABLE_NAME = "message_fts";
+  static final String FTS_DOCID = "docid";
+  static final String FTS_INSERT_TRIGGER = "message_fts_insert";
+  static final String FTS_DELETE_TRIGGER = "message_fts_delete";
 }
@@ -0,0 +1,274 @@
+package ctxt.db;
+
+import ctxt.db.Names;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  WriteQueue class runs every write to a database on a single writer
+ *  thread, committing the writes queued together in one transaction.
+ *
+ *  Writes are submitted to a lock-free queue from any thread and complete
+ *  through the Future returned. Once it picks up a write, the writer waits
+ *  up to WINDOW_NANOS for more, then runs up to MAX_BATCH of them in one
+ *  transaction: a single commit, and a single sync of the log, for the lot.
+ *
+ *  If a write of a group throws, the group is rolled back and each of its
+ *  writes retried in a transaction of its own, so one failing write does not
+ *  fail the others. A write's Future throws its exception. Nothing a write
+ *  or its done() throws, not even an Error, stops the writer thread; at
+ *  worst the writes of that group fail.
+ *
+ *  Because only the writer thread writes, a write may use prepared
+ *  statements shared by all writes without further synchronization.
+ */
+public class WriteQueue
+{
+  /**
+   *  Class Variables.
+   *
+   *  WINDOW_NANOS nanoseconds the writer waits for writes to group with the
+   *    first.
+   *  MAX_BATCH maximum number of writes committed in one transaction.
+   */
+  static final long WINDOW_NANOS = 2000000;
+  static final int MAX_BATCH = 64;
+
+  /**
+   *  Write class is a Future of a write. Subclasses may override done(),
+   *  which is called on the writer thread once the write is committed or has
+   *  failed. Whatever done() throws is logged and ignored.
+   */
+  public static class Write<V> extends FutureTask<V>
+  {
+    private final Callable<V> task;
+    private V result;
+
+    public Write(Callable<V> task)
+    {
+      super(task);
+      this.task = task;
+    }
+
+    void call() throws Exception
+    {
+      result = task.call();
+    }
+
+    void succeed()
+    {
+      try
+      {
+        set(result);
+      }
+      catch(Throwable t)
+      {
+        Log.e(Names.TAG, "exception in done()", t);
+      }
+    }
+
+    void fail(Throwable t)
+    {
+      try
+      {
+        setException(t);
+      }
+      catch(Throwable e)
+      {
+        Log.e(Names.TAG, "exception in done()", e);
+      }
+    }
+  }
+
+  /**
+   *  Member Variables.
+   *
+   *  db SQLiteDatabase written to.
+   *  queue writes submitted and not yet picked up by the writer.
+   *  writer thread running every write.
+   *  writes, commits, retries number of writes committed, of transactions
+   *    committed, and of groups retried write by write.
+   */
+  private final SQLiteDatabase db;
+  private final ConcurrentLinkedQueue<Write<?>> queue =
+    new ConcurrentLinkedQueue<Write<?>>();
+  private final Thread writer;
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong commits = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+
+  /**
+   *  WriteQueue() given a writable database starts its writer thread.
+   *
+   *  @param db SQLiteDatabase to write to.
+   *  @param name name of the writer thread.
+   */
+  WriteQueue(SQLiteDatabase db, String name)
+  {
+    this.db = db;
+    writer = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        loop();
+      }
+    }, name);
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   *  submit() given a write queues it for the writer thread.
+   *
+   *  @param task Callable doing the write; called inside a transaction.
+   *  @return Future of the write's result.
+   */
+  public <V> Future<V> submit(Callable<V> task)
+  {
+    return submit(new Write<V>(task));
+  }
+
+  /**
+   *  submit() given a Write queues it for the writer thread.
+   *
+   *  @param write Write, possibly overriding done().
+   *  @return write.
+   */
+  public <V> Write<V> submit(Write<V> write)
+  {
+    queue.offer(write);
+    LockSupport.unpark(writer);
+    return write;
+  }
+
+  /**
+   *  getStats() returns the number of writes and transactions committed and
+   *  the number of writes waiting.
+   *
+   *  @return String describing the queue.
+   */
+  public String getStats()
+  {
+    return "WriteQueue[depth=" + queue.size() + ",writes=" + writes.get()
+      + ",commits=" + commits.get() + ",retries=" + retries.get() + "]";
+  }
+
+  /**
+   *  loop() is the writer thread: waits for a write, gathers the writes
+   *  queued within WINDOW_NANOS of it and commits them.
+   */
+  private void loop()
+  {
+    ArrayList<Write<?>> batch = new ArrayList<Write<?>>(MAX_BATCH);
+    while(true)
+    {
+      Write<?> w = queue.poll();
+      if(w == null)
+      {
+        //submit() unparks after queueing, so no write is missed
+        LockSupport.park(this);
+        continue;
+      }
+      batch.add(w);
+      long deadline = System.nanoTime() + WINDOW_NANOS;
+      while(batch.size() < MAX_BATCH)
+      {
+        w = queue.poll();
+        if(w != null)
+        {
+          batch.add(w);
+          continue;
+        }
+        long left = deadline - System.nanoTime();
+        if(left <= 0)
+        {
+          break;
+        }
+        LockSupport.parkNanos(this, left);
+      }
+      try
+      {
+        commit(batch);
+      }
+      catch(Throwable t)
+      {
+        //fail whatever commit() did not complete; keep writing
+        Log.e(Names.TAG, "exception", t);
+        for(Write<?> b : batch)
+        {
+          if(!b.isDone())
+          {
+            b.fail(t);
+          }
+        }
+      }
+      finally
+      {
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   *  commit() runs writes in one transaction and completes their Futures,
+   *  retrying them one by one should any of them fail.
+   */
+  private void commit(List<Write<?>> batch)
+  {
+    Throwable failure = null;
+    try
+    {
+      db.beginTransaction();
+      try
+      {
+        for(Write<?> w : batch)
+        {
+          w.call();
+        }
+        db.setTransactionSuccessful();
+      }
+      finally
+      {
+        db.endTransaction();
+      }
+    }
+    catch(Throwable t)
+    {
+      failure = t;
+    }
+    if(failure == null)
+    {
+      writes.addAndGet(batch.size());
+      commits.incrementAndGet();
+      for(Write<?> w : batch)
+      {
+        w.succeed();
+      }
+    }
+    else if(batch.size() == 1)
+    {
+      Log.e(Names.TAG, "exception", failure);
+      batch.get(0).fail(failure);
+    }
+    else
+    {
+      retries.incrementAndGet();
+      for(Write<?> w : batch)
+      {
+        commit(Collections.<Write<?>>singletonList(w));
+      }
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package ctxt.key;
+
+import ctxt.key.Storer;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+
+/**
+ *  CipherPool class keeps initialized Ciphers for reuse, so that the provider
+ *  lookup of Cipher.getInstance() and the key setup of init() are paid once
+ *  per key instead of once per message.
+ *
+ *  A Cipher is not safe to share between threads, so ciphers are lent out:
+ *  acquire() hands a thread a cipher of its own and release() returns it once
+ *  the thread is done. Ciphers return to the state they were initialized in
+ *  after doFinal(), so a released cipher is ready for the next message. A
+ *  cipher that threw may be part way through a message, so it is returned
+ *  with reset() instead, which initializes it again before pooling it.
+ *
+ *  At most MAX_KEYS keys are pooled, least recently used dropped first, each
+ *  with at most maxIdle idle ciphers.
+ *
+ *  Example Usage:
+ *    Cipher c = CipherPool.RSA_ENCRYPT.acquire(k);
+ *    try
+ *    {
+ *      byte[] cipherText = c.doFinal(plainText);
+ *      CipherPool.RSA_ENCRYPT.release(k, c);
+ *    }
+ *    catch(GeneralSecurityException e)
+ *    {
+ *      CipherPool.RSA_ENCRYPT.reset(k, c);
+ *    }
+ */
+public final class CipherPool
+{
+  /**
+   *  Class Variables.
+   *
+   *  MAX_KEYS maximum number of keys ciphers are kept for.
+   *  MAX_IDLE default maximum number of idle ciphers kept per key.
+   *  RSA_ENCRYPT pool of Storer.ENCRYPTION_MODE ciphers for encryption under
+   *    public keys; shared by all senders.
+   */
+  static final int MAX_KEYS = 16;
+  static final int MAX_IDLE = 4;
+  public static final CipherPool RSA_ENCRYPT =
+    new CipherPool(Storer.ENCRYPTION_MODE, Cipher.ENCRYPT_MODE);
+
+  /**
+   *  Member Variables.
+   *
+   *  transformation name passed to Cipher.getInstance().
+   *  mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
+   *  maxIdle maximum number of idle ciphers kept per key.
+   *  idle idle ciphers by key, least recently used first. Guards itself and
+   *    the counters.
+   *  hits number of acquire() calls served from the pool.
+   *  misses number of acquire() calls that built a new cipher.
+   */
+  private final String transformation;
+  private final int mode;
+  private final int maxIdle;
+  private final LinkedHashMap<Key, ArrayDeque<Cipher>> idle;
+  private int hits;
+  private int misses;
+
+  /**
+   *  CipherPool() given a transformation and mode constructs an empty pool.
+   *
+   *  @param transformation name of the transformation, e.g.
+   *    Storer.ENCRYPTION_MODE.
+   *  @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
+   */
+  public CipherPool(String transformation, int mode)
+  {
+    this(transformation, mode, MAX_IDLE);
+  }
+
+  /**
+   *  CipherPool() given a transformation, mode and the number of idle ciphers
+   *  to keep per key constructs an empty pool.
+   *
+   *  maxIdle should be about the number of threads using a key at once.
+   *
+   *  @param transformation name of the transformation.
+   *  @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
+   *  @param maxIdle maximum number of idle ciphers kept per key.
+   */
+  public CipherPool(String transformation, int mode, int maxIdle)
+  {
+    this.transformation = transformation;
+    this.mode = mode;
+    this.maxIdle = maxIdle;
+    this.idle = new LinkedHashMap<Key, ArrayDeque<Cipher>>(MAX_KEYS, 0.75f,
+      true)
+    {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<Key, ArrayDeque<Cipher>> eldest)
+      {
+        return size() > MAX_KEYS;
+      }
+    };
+  }
+
+  /**
+   *  acquire() given a key returns a cipher initialized under it for the
+   *  caller's exclusive use.
+   *
+   *  @param k key to initialize the cipher with.
+   *  @return initialized cipher.
+   */
+  public Cipher acquire(Key k) throws GeneralSecurityException
+  {
+    synchronized(idle)
+    {
+      ArrayDeque<Cipher> q = idle.get(k);
+      if(q != null && !q.isEmpty())
+      {
+        ++hits;
+        return q.pop();
+      }
+      ++misses;
+    }
+    //build outside the lock so other threads are not held up
+    Cipher c = Cipher.getInstance(transformation);
+    c.init(mode, k);
+    return c;
+  }
+
+  /**
+   *  release() given a key and a cipher acquired for it returns the cipher to
+   *  the pool.
+   *
+   *  @param k key the cipher was acquired for.
+   *  @param c cipher to return; must have completed its last doFinal().
+   */
+  public void release(Key k, Cipher c)
+  {
+    synchronized(idle)
+    {
+      ArrayDeque<Cipher> q = idle.get(k);
+      if(q == null)
+      {
+        q = new ArrayDeque<Cipher>(maxIdle);
+        idle.put(k, q);
+      }
+      if(q.size() < maxIdle)
+      {
+        q.push(c);
+      }
+    }
+  }
+
+  /**
+   *  reset() given a key and a cipher acquired for it that threw, initializes
+   *  the cipher under the key again, discarding whatever it had buffered, and
+   *  returns it to the pool. A cipher that cannot be initialized is dropped.
+   *
+   *  @param k key the cipher was acquired for.
+   *  @param c cipher to return, in any state.
+   */
+  public void reset(Key k, Cipher c)
+  {
+    try
+    {
+      c.init(mode, k);
+    }
+    catch(GeneralSecurityException e)
+    {
+      return;
+    }
+    release(k, c);
+  }
+
+  /**
+   *  evictAll() drops every idle cipher.
+   */
+  public void evictAll()
+  {
+    synchronized(idle)
+    {
+      idle.clear();
+    }
+  }
+
+  /**
+   *  toString() returns the number of pooled keys, hits, misses and hit rate.
+   */
+  @Override
+  public String toString()
+  {
+    synchronized(idle)
+    {
+      int total = hits + misses;
+      return "CipherPool[keys=" + idle.size() + ",hits=" + hits + ",misses="
+        + misses + ",hitRate=" + (total == 0 ? 0 : 100*hits/total) + "%]";
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package ctxt.key;
+
+import ctxt.key.Envelope;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import javax.crypto.BadPaddingException;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ *  Ecies class encrypts under elliptic curve public keys: an ephemeral key
+ *  pair is generated per message, ECDH with the recipient's key gives a shared
+ *  secret and the body is sealed like a hybrid Envelope under keys derived
+ *  from it.
+ *
+ *  Compared to Storer.KEYBITS bit RSA, key generation takes milliseconds
+ *  instead of seconds, a public key is a fraction of the size, and the key
+ *  encapsulation is a 33 byte compressed point instead of a 133 byte block.
+ *
+ *  Layout of a VERSION_ECIES ciphertext:
+ *    version byte
+ *    POINT_BYTES compressed ephemeral public key
+ *    AES/CTR ciphertext of the body, same length as the plaintext
+ *    Envelope.TAG_BYTES of HmacSHA256 over everything before it
+ *
+ *  Curve25519 is not available from the providers on the Android versions
+ *  this application targets, so the NIST P-256 curve is used instead.
+ */
+public final class Ecies
+{
+  /**
+   *  Class Variables.
+   *
+   *  ALGORITHM name of the key algorithm.
+   *  CURVE name of the curve keys are generated on.
+   *  AGREEMENT name of the key agreement.
+   *  VERSION_ECIES header byte of an ECIES ciphertext.
+   *  POINT_BYTES length of a compressed curve point.
+   *  OVERHEAD number of bytes a ciphertext adds to its plaintext.
+   *  ENC_KEY, MAC_KEY bytes mixed into the shared secret to derive the AES
+   *    and MAC keys.
+   */
+  public static final String ALGORITHM = "EC";
+  public static final String CURVE = "secp256r1";
+  static final String AGREEMENT = "ECDH";
+  public static final byte VERSION_ECIES = 0x04;
+  static final int POINT_BYTES = 33;
+  public static final int OVERHEAD = 1 + POINT_BYTES + Envelope.TAG_BYTES;
+  private static final byte ENC_KEY = 0x01;
+  private static final byte MAC_KEY = 0x02;
+
+  /**
+   *  Ecies() private constructor prevents instantiation; does nothing.
+   */
+  private Ecies() {}
+
+  /**
+   *  generateKeyPair() generates a new key pair on CURVE.
+   *
+   *  @return new key pair.
+   */
+  public static KeyPair generateKeyPair() throws GeneralSecurityException
+  {
+    KeyPairGenerator kgen = KeyPairGenerator.getInstance(ALGORITHM);
+    kgen.initialize(new ECGenParameterSpec(CURVE));
+    return kgen.generateKeyPair();
+  }
+
+  /**
+   *  isEcies() given a ciphertext returns whether it was produced by seal().
+   */
+  public static boolean isEcies(byte[] cipherText)
+  {
+    return cipherText.length >= OVERHEAD && cipherText[0] == VERSION_ECIES;
+  }
+
+  /**
+   *  seal() given a plaintext of any length encrypts it under an elliptic
+   *  curve public key.
+   *
+   *  @param plainText bytes to encrypt.
+   *  @param k recipient's public key.
+   *  @return ciphertext.
+   */
+  public static byte[] seal(byte[] plainText, PublicKey k) throws
+      GeneralSecurityException
+  {
+    ECParameterSpec params = ((ECPublicKey) k).getParams();
+    KeyPairGenerator kgen = KeyPairGenerator.getInstance(ALGORITHM);
+    kgen.initialize(params);
+    KeyPair ephemeral = kgen.generateKeyPair();
+
+    byte[] out = new byte[OVERHEAD+plainText.length];
+    out[0] = VERSION_ECIES;
+    compress(((ECPublicKey) ephemeral.getPublic()).getW(), out, 1);
+    Envelope.sealBody(keys(ephemeral.getPrivate(), k, out), plainText, out,
+      1+POINT_BYTES);
+    return out;
+  }
+
+  /**
+   *  open() given a ciphertext produced by seal() and the recipient's private
+   *  key returns the plaintext.
+   *
+   *  @param cipherText ciphertext to decrypt.
+   *  @param k recipient's private key.
+   *  @return plaintext.
+   *  @throws BadPaddingException if the ciphertext was not sealed for k or
+   *    was modified.
+   */
+  public static byte[] open(byte[] cipherText, PrivateKey k) throws
+      GeneralSecurityException
+  {
+    if(!isEcies(cipherText))
+    {
+      throw new BadPaddingException("Not an ECIES ciphertext.");
+    }
+    ECParameterSpec params = ((ECPrivateKey) k).getParams();
+    PublicKey ephemeral = KeyFactory.getInstance(ALGORITHM).generatePublic(
+      new ECPublicKeySpec(decompress(cipherText, 1, params), params));
+    return Envelope.openBody(keys(k, ephemeral, cipherText), cipherText,
+      1+POINT_BYTES);
+  }
+
+  /**
+   *  keys() runs ECDH and derives the AES key followed by the MAC key from
+   *  the shared secret and the compressed ephemeral key in the header.
+   */
+  private static byte[] keys(PrivateKey mine, PublicKey theirs, byte[] header)
+      throws GeneralSecurityException
+  {
+    KeyAgreement ka = KeyAgreement.getInstance(AGREEMENT);
+    ka.init(mine);
+    ka.doPhase(theirs, true);
+    byte[] shared = ka.generateSecret();
+
+    Mac m = Mac.getInstance(Envelope.MAC_ALGORITHM);
+    m.init(new SecretKeySpec(shared, Envelope.MAC_ALGORITHM));
+    byte[] keys = new byte[Envelope.KEY_BYTES+Envelope.MAC_KEY_BYTES];
+    m.update(header, 1, POINT_BYTES);
+    m.update(ENC_KEY);
+    System.arraycopy(m.doFinal(), 0, keys, 0, Envelope.KEY_BYTES);
+    m.update(header, 1, POINT_BYTES);
+    m.update(MAC_KEY);
+    System.arraycopy(m.doFinal(), 0, keys, Envelope.KEY_BYTES,
+      Envelope.MAC_KEY_BYTES);
+    return keys;
+  }
+
+  /**
+   *  compress() writes a point as the parity of y followed by x.
+   */
+  private static void compress(ECPoint w, byte[] out, int off)
+  {
+    out[off] = (byte)(w.getAffineY().testBit(0) ? 0x03 : 0x02);
+    byte[] x = w.getAffineX().toByteArray();
+    //toByteArray() may add a sign byte or drop leading zeros
+    int len = Math.min(x.length, POINT_BYTES-1);
+    System.arraycopy(x, x.length-len, out, off+POINT_BYTES-len, len);
+  }
+
+  /**
+   *  decompress() reads a point written by compress(), recovering y from the
+   *  curve equation y^2 = x^3 + ax + b.
+   *
+   *  The square root is a single exponentiation because the field prime of
+   *  CURVE is 3 mod 4.
+   */
+  private static ECPoint decompress(byte[] in, int off, ECParameterSpec params)
+      throws GeneralSecurityException
+  {
+    EllipticCurve curve = params.getCurve();
+    BigInteger p = ((ECFieldFp) curve.getField()).getP();
+    if(in[off] != 0x02 && in[off] != 0x03)
+    {
+      throw new BadPaddingException("Bad point encoding.");
+    }
+    byte[] xb = new byte[POINT_BYTES-1];
+    System.arraycopy(in, off+1, xb, 0, xb.length);
+    BigInteger x = new BigInteger(1, xb);
+    if(x.compareTo(p) >= 0)
+    {
+      throw new BadPaddingException("Point not on curve.");
+    }
+    BigInteger rhs = x.pow(3).add(curve.getA().multiply(x)).add(curve.getB())
+      .mod(p);
+    BigInteger y = rhs.modPow(p.add(BigInteger.ONE).shiftRight(2), p);
+    if(!y.multiply(y).mod(p).equals(rhs))
+    {
+      throw new BadPaddingException("Point not on curve.");
+    }
+    if(y.testBit(0) != (in[off] == 0x03))
+    {
+      y = p.subtract(y);
+    }
+    return new ECPoint(x, y);
+  }
+}
@@ -0,0 +1,218 @@
+package ctxt.key;
+
+import ctxt.key.CipherPool;
+import ctxt.key.Storer;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ *  Envelope class seals plaintexts of any length under a public key by
+ *  wrapping a fresh symmetric key with RSA and encrypting the body under that
+ *  symmetric key.
+ *
+ *  A plain RSA ciphertext, as produced by Fetcher.encrypt() for plaintexts up
+ *  to Fetcher.LEN_MAX bytes, is exactly RSA_BYTES long and has no header.
+ *  Every other ciphertext starts with a version byte telling the receiver how
+ *  to open it. Storer.decrypt() tells the two apart by their length.
+ *
+ *  Layout of a VERSION_HYBRID envelope:
+ *    version byte
+ *    RSA_BYTES of RSA ciphertext wrapping an AES key followed by a MAC key
+ *    AES/CTR ciphertext of the body, same length as the plaintext
+ *    TAG_BYTES of HmacSHA256 over everything before it
+ *
+ *  The AES and MAC keys are random and used for exactly one message, so the
+ *  counter always starts from a zero IV.
+ *
+ *  AES/GCM is not used because GCMParameterSpec is unavailable on the
+ *  Android versions this application targets; encrypt-then-MAC gives the
+ *  same guarantees.
+ */
+public final class Envelope
+{
+  /**
+   *  Class Variables.
+   *
+   *  VERSION_HYBRID header byte of an RSA wrapped AES/CTR + HmacSHA256
+   *    envelope.
+   *  RSA_BYTES length of an RSA ciphertext under a Storer.KEYBITS key.
+   *  KEY_BYTES length of the AES key.
+   *  MAC_KEY_BYTES length of the HmacSHA256 key.
+   *  TAG_BYTES length of the truncated HmacSHA256 tag.
+   *  OVERHEAD number of bytes a hybrid envelope adds to its plaintext.
+   *  SYMMETRIC_ALGORITHM, SYMMETRIC_MODE, MAC_ALGORITHM names of the
+   *    symmetric primitives.
+   *  ZERO_IV initial counter block.
+   *  random SecureRandom for generating message keys.
+   */
+  public static final byte VERSION_HYBRID = 0x01;
+  public static final int RSA_BYTES = (Storer.KEYBITS+7)/8;
+  static final int KEY_BYTES = 16;
+  static final int MAC_KEY_BYTES = 32;
+  static final int TAG_BYTES = 16;
+  public static final int OVERHEAD = 1 + RSA_BYTES + TAG_BYTES;
+  static final String SYMMETRIC_ALGORITHM = "AES";
+  static final String SYMMETRIC_MODE = "AES/CTR/NoPadding";
+  static final String MAC_ALGORITHM = "HmacSHA256";
+  private static final IvParameterSpec ZERO_IV =
+    new IvParameterSpec(new byte[16]);
+  private static final SecureRandom random = new SecureRandom();
+
+  /**
+   *  Envelope() private constructor prevents instantiation; does nothing.
+   */
+  private Envelope() {}
+
+  /**
+   *  isHybrid() given a ciphertext returns whether it is a hybrid envelope
+   *  rather than a plain RSA ciphertext.
+   *
+   *  @param cipherText ciphertext to inspect.
+   *  @return true if cipherText should be opened with open().
+   */
+  public static boolean isHybrid(byte[] cipherText)
+  {
+    return cipherText.length >= OVERHEAD && cipherText[0] == VERSION_HYBRID;
+  }
+
+  /**
+   *  seal() given a plaintext of any length encrypts it under a public key.
+   *
+   *  @param plainText bytes to encrypt.
+   *  @param k public key of the recipient.
+   *  @return hybrid envelope.
+   *  @throws GeneralSecurityException if a primitive is unavailable or k is
+   *    not an RSA key.
+   */
+  public static byte[] seal(byte[] plainText, PublicKey k) throws
+      GeneralSecurityException
+  {
+    byte[] keys = new byte[KEY_BYTES+MAC_KEY_BYTES];
+    random.nextBytes(keys);
+
+    byte[] out = new byte[OVERHEAD+plainText.length];
+    out[0] = VERSION_HYBRID;
+    Cipher wrap = CipherPool.RSA_ENCRYPT.acquire(k);
+    try
+    {
+      wrap.doFinal(keys, 0, keys.length, out, 1);
+    }
+    catch(GeneralSecurityException e)
+    {
+      CipherPool.RSA_ENCRYPT.reset(k, wrap);
+      throw e;
+    }
+    CipherPool.RSA_ENCRYPT.release(k, wrap);
+    sealBody(keys, plainText, out, 1+RSA_BYTES);
+    return out;
+  }
+
+  /**
+   *  open() given a hybrid envelope and an RSA cipher initialized for
+   *  decryption under the recipient's private key returns the plaintext.
+   *
+   *  @param envelope ciphertext produced by seal().
+   *  @param unwrap Cipher in Storer.ENCRYPTION_MODE for decryption.
+   *  @return plaintext.
+   *  @throws BadPaddingException if the envelope was not sealed for this key
+   *    or was modified.
+   */
+  public static byte[] open(byte[] envelope, Cipher unwrap) throws
+      GeneralSecurityException
+  {
+    if(!isHybrid(envelope))
+    {
+      throw new BadPaddingException("Not a hybrid envelope.");
+    }
+    byte[] keys = unwrap.doFinal(envelope, 1, RSA_BYTES);
+    if(keys.length != KEY_BYTES+MAC_KEY_BYTES)
+    {
+      throw new BadPaddingException("Bad key length.");
+    }
+    return openBody(keys, envelope, 1+RSA_BYTES);
+  }
+
+  /**
+   *  sealBody() encrypts a plaintext into out at an offset and appends a tag
+   *  over out up to the end of the ciphertext.
+   *
+   *  out must have room for the plaintext and TAG_BYTES after off.
+   *
+   *  @param keys AES key followed by the MAC key.
+   *  @param plainText bytes to encrypt.
+   *  @param out buffer holding the header; the body is written after it.
+   *  @param off index in out of the first ciphertext byte.
+   */
+  static void sealBody(byte[] keys, byte[] plainText, byte[] out, int off)
+      throws GeneralSecurityException
+  {
+    Cipher c = Cipher.getInstance(SYMMETRIC_MODE);
+    c.init(Cipher.ENCRYPT_MODE,
+      new SecretKeySpec(keys, 0, KEY_BYTES, SYMMETRIC_ALGORITHM), ZERO_IV);
+    c.doFinal(plainText, 0, plainText.length, out, off);
+
+    byte[] tag = mac(keys, out, off+plainText.length);
+    System.arraycopy(tag, 0, out, off+plainText.length, TAG_BYTES);
+  }
+
+  /**
+   *  openBody() verifies the tag at the end of in and decrypts the body that
+   *  starts at an offset.
+   *
+   *  @param keys AES key followed by the MAC key.
+   *  @param in buffer holding header, body and tag.
+   *  @param off index in in of the first ciphertext byte.
+   *  @return plaintext.
+   *  @throws BadPaddingException if the tag does not match.
+   */
+  static byte[] openBody(byte[] keys, byte[] in, int off) throws
+      GeneralSecurityException
+  {
+    int end = in.length-TAG_BYTES;
+    if(end < off)
+    {
+      throw new BadPaddingException("Truncated envelope.");
+    }
+    byte[] received = new byte[TAG_BYTES];
+    System.arraycopy(in, end, received, 0, TAG_BYTES);
+    if(!MessageDigest.isEqual(truncate(mac(keys, in, end)), received))
+    {
+      throw new BadPaddingException("Bad tag.");
+    }
+
+    Cipher c = Cipher.getInstance(SYMMETRIC_MODE);
+    c.init(Cipher.DECRYPT_MODE,
+      new SecretKeySpec(keys, 0, KEY_BYTES, SYMMETRIC_ALGORITHM), ZERO_IV);
+    return c.doFinal(in, off, end-off);
+  }
+
+  /**
+   *  mac() computes HmacSHA256 over the first len bytes of a buffer.
+   */
+  private static byte[] mac(byte[] keys, byte[] buf, int len) throws
+      GeneralSecurityException
+  {
+    Mac m = Mac.getInstance(MAC_ALGORITHM);
+    m.init(new SecretKeySpec(keys, KEY_BYTES, MAC_KEY_BYTES, MAC_ALGORITHM));
+    m.update(buf, 0, len);
+    return m.doFinal();
+  }
+
+  /**
+   *  truncate() returns the first TAG_BYTES of a full length tag.
+   */
+  private static byte[] truncate(byte[] tag)
+  {
+    byte[] t = new byte[TAG_BYTES];
+    System.arraycopy(tag, 0, t, 0, TAG_BYTES);
+    return t;
+  }
+}
@@ -2,12 +2,19 @@ package ctxt.key;
 
 import ctxt.key.NumberKeyPair;
 import ctxt.key.KeyAlreadyExistsException;
+import ctxt.key.Envelope;
+import ctxt.key.Ecies;
+import ctxt.key.KeyFormat;
+import ctxt.key.CipherPool;
+import ctxt.key.Numbers;
 
 import android.util.Log;
 import android.telephony.TelephonyManager; //For storing self public key
-import android.telephony.PhoneNumberUtils;
 import android.app.Activity;
 import android.content.Context;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.util.LruCache;
 import java.security.*;
 import java.security.spec.X509EncodedKeySpec;
 import java.security.spec.InvalidKeySpecException;
@@ -22,6 +29,8 @@ import java.io.FileNotFoundException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  *  Fetcher class provides an interface for retrieving public keys. Methods are
@@ -73,20 +82,31 @@ public class Fetcher
    *    mobile phone model, there might be no programmatic way to access the
    *    phone's phone number. The alternative means is to ask the user to enter
    *    his or her phone number and save it on disk.
-   *  LEN_MAX the maximum number of bytes that can be fit into an encrypted
-   *    plaintext message body.
+   *  LEN_MAX the maximum number of bytes that can be fit into a single RSA
+   *    block. Longer plaintexts are sealed in a hybrid Envelope instead.
+   *  MIGRATED string representing the file name whose existence records that
+   *    key files have been renamed to their canonical numbers. Earlier
+   *    installs recorded renaming to formatted numbers in ".keysMigrated",
+   *    which is ignored.
+   *  CACHE_SIZE maximum number of parsed keys kept in memory.
    */
   private static final String TAG = "FETCHER";
   private static final String NUMBER_STORE = ".myNumber";
+  private static final String MIGRATED = ".keysCanonical";
   public static final int LEN_MAX = 122;
+  static final int CACHE_SIZE = 64;
 
   /**
    *  Member Variables.
    *
    *  context Context under which the application operates. This is used for
    *    access to the filesystem: for key storage.
+   *  keyring NumberKeyPairs already read from disk by canonical number, see
+   *    Numbers. Only keys that exist are cached; newKey() drops the entry it
+   *    writes.
    */
   private Context context;
+  private LruCache<String, NumberKeyPair> keyring;
 
   /**
    *  Fetcher() given a Context, constructs a new Fetcher instance.
@@ -95,10 +115,98 @@ public class Fetcher
    *  this class's methods will have full functionality. This property requires
    *  that the user's public key has been stored on disk. A means to test for
    *  this is checking if calling shareKey() returns null.
+   *
+   *  The keyring cache is emptied whenever the system runs low on memory. Key
+   *  files of older installs are renamed to their canonical numbers, once.
    */
   Fetcher(Context context)
   {
     this.context = context;
+    this.keyring = new LruCache<String, NumberKeyPair>(CACHE_SIZE);
+    migrateKeyFiles();
+    context.getApplicationContext().registerComponentCallbacks(
+      new ComponentCallbacks2()
+      {
+        @Override
+        public void onTrimMemory(int level)
+        {
+          if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+          {
+            keyring.evictAll();
+            CipherPool.RSA_ENCRYPT.evictAll();
+          }
+          else if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+          {
+            trimKeyring(CACHE_SIZE/4);
+          }
+        }
+        @Override
+        public void onLowMemory()
+        {
+          keyring.evictAll();
+          CipherPool.RSA_ENCRYPT.evictAll();
+        }
+        @Override
+        public void onConfigurationChanged(Configuration c) { }
+      });
+  }
+
+  /**
+   *  trimKeyring() given a size drops the least recently used keys from the
+   *  keyring until at most that many are left. LruCache.trimToSize() is not
+   *  public before API 17.
+   *
+   *  @param size number of keys to keep.
+   */
+  private void trimKeyring(int size)
+  {
+    //snapshot() is ordered least recently used first
+    for(String number : keyring.snapshot().keySet())
+    {
+      if(keyring.size() <= size)
+      {
+        break;
+      }
+      keyring.remove(number);
+    }
+  }
+
+  /**
+   *  migrateKeyFiles() renames every key file stored under a number as it was
+   *  given, e.g. with a leading '+', or as PhoneNumberUtils formatted it, to
+   *  its canonical number, see keyFile(), so a person has one key however
+   *  their number was written and whatever the locale. A key already stored
+   *  under the canonical number is kept.
+   *
+   *  The renaming is done once per install; afterwards only the existence of
+   *  the MIGRATED file is checked.
+   */
+  private void migrateKeyFiles()
+  {
+    File done = new File(context.getDir(Storer.DIRECTORY, Context.MODE_PRIVATE),
+      Fetcher.MIGRATED);
+    if(done.exists())
+    {
+      return;
+    }
+    for(String given : context.fileList())
+    {
+      String name = keyFile(Numbers.canonical(given));
+      File to = context.getFileStreamPath(name);
+      if(!name.equals(given) && !to.exists() &&
+          !context.getFileStreamPath(given).renameTo(to))
+      {
+        Log.e(TAG, "Couldn't rename key of " + given);
+      }
+    }
+    try
+    {
+      done.createNewFile();
+    }
+    catch(IOException e)
+    {
+      Log.e(TAG, "Couldn't record key migration", e);
+    }
   }
 
   /**
@@ -115,6 +223,20 @@ public class Fetcher
     return context.fileList();
   }
 
+  /**
+   *  hasKey() given a phone number returns whether a public key is stored for
+   *  it, without reading or parsing the key. The keyring is not consulted, so
+   *  its hit rate only counts fetchKey().
+   *
+   *  @param number international phone number, delimiters optional.
+   *  @return whether fetchKey() would find a key for number.
+   */
+  public boolean hasKey(String number)
+  {
+    return context.getFileStreamPath(
+      keyFile(Numbers.canonical(number))).exists();
+  }
+
   /**
    *  fetchKey() given a phone number, returns a NumberKeyPair representing the
    *  given phone number and the corresponding public key.
@@ -127,7 +249,10 @@ public class Fetcher
    *  code. For example, "521-5554" would be an *invalid* input because it
    *  lacks a country code and an area code. On the other hand, "15555215554"
    *  would be a valid phone number; the delimiters are unnecessary, fetchKey()
-   *  will canonicalize the number to include familiar delimiters.
+   *  will canonicalize the number, see Numbers.
+   *
+   *  Keys are only read from disk and parsed the first time they are fetched;
+   *  after that they come from an in memory keyring.
    *
    *  @param number number to find the public key for.
    *  @return (number: number's public key) NumberKeyPair instance or null.
@@ -135,12 +260,18 @@ public class Fetcher
   public NumberKeyPair fetchKey(String number)
   {
     //unify the number to a standard format
-    String numberFormatted = PhoneNumberUtils.formatNumber(number);
+    String canonical = Numbers.canonical(number);
+    NumberKeyPair cached = keyring.get(canonical);
+    if(cached != null)
+    {
+      return cached;
+    }
+    String fileName = keyFile(canonical);
     FileInputStream f = null;
     //read the public key from disk
     try
     {
-      f = context.openFileInput(numberFormatted);
+      f = context.openFileInput(fileName);
       ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
       int nRead;
@@ -150,11 +281,12 @@ public class Fetcher
       {
         buffer.write(data, 0, nRead);
       }
-      //decode the public key
-      PublicKey k = (KeyFactory.getInstance(Storer.ALGORITHM)).generatePublic(
-        new X509EncodedKeySpec((buffer.toByteArray())));
+      //decode the public key, RSA or elliptic curve
+      PublicKey k = KeyFormat.decodePublic(buffer.toByteArray());
       f.close();
-      return new NumberKeyPair(numberFormatted, k);
+      NumberKeyPair nkp = new NumberKeyPair(fileName, k);
+      keyring.put(canonical, nkp);
+      return nkp;
     }
     catch(IOException e)
     {
@@ -168,10 +300,39 @@ public class Fetcher
     {
       Log.e(TAG, "Problem decoding key; might have been modified.", e);
     }
+    catch(GeneralSecurityException e)
+    {
+      Log.e(TAG, "Problem decoding key.", e);
+    }
     //failure to find/read/decode public key
     return null;
   }
 
+  /**
+   *  keyFile() given a canonical phone number, see Numbers, returns the name
+   *  its key is stored under: the canonical number itself, which unlike
+   *  PhoneNumberUtils.formatNumber() does not depend on the locale.
+   *
+   *  @param canonical canonical phone number.
+   *  @return name of the number's key file.
+   */
+  private static String keyFile(String canonical)
+  {
+    return canonical;
+  }
+
+  /**
+   *  getCacheStats() returns a summary of the keyring cache and the pool of
+   *  encryption ciphers: their sizes, hits, misses and hit rates.
+   *
+   *  @return String describing the caches.
+   */
+  public String getCacheStats()
+  {
+    return keyring.toString() + "[size=" + keyring.size() + "] "
+      + CipherPool.RSA_ENCRYPT.toString();
+  }
+
   /**
    *  shareKey() fetches the user's public key.
    *
@@ -230,18 +391,24 @@ public class Fetcher
       throw new KeyAlreadyExistsException();
     }
     //unify the number to a standard format
-    String numberFormatted = PhoneNumberUtils.formatNumber(number);
+    String canonical = Numbers.canonical(number);
+    String fileName = keyFile(canonical);
     FileOutputStream f = null;
+    keyring.remove(canonical);
     try
     {
-      f = context.openFileOutput(numberFormatted, Context.MODE_PRIVATE);
-      f.write(new X509EncodedKeySpec(key.getEncoded()).getEncoded());
+      f = context.openFileOutput(fileName, Context.MODE_PRIVATE);
+      f.write(KeyFormat.encodePublic(key));
       f.close();
     }
     catch(IOException e)
     {
       Log.e(TAG, "Strange io exception", e);
     }
+    catch(InvalidKeySpecException e)
+    {
+      Log.e(TAG, "Unsupported key type.", e);
+    }
   }
 
   /**
@@ -258,7 +425,7 @@ public class Fetcher
   void storeSelfKey(String number, PublicKey key) throws
     KeyAlreadyExistsException
   {
-    //store the key like normal; newKey will properly format the number
+    //store the key like normal; newKey will canonicalize the number
     this.newKey(number, key);
     //write phone number to file
     try
@@ -281,34 +448,104 @@ public class Fetcher
    *  encrypt() given a plaintext, produces the corresponding ciphertext
    *  encrypted under a given public key.
    *
-   *  null is returned if the encryption was unsuccessful. However, an
-   *  unchecked exception is probably raised if the given plaintext byte array
-   *  exceeds the amount of data the encryption algorithm can accept.
+   *  Elliptic curve keys always use Ecies. Under RSA keys, plaintexts of at
+   *  most LEN_MAX bytes are encrypted directly so that they fit into a single
+   *  sms. Longer plaintexts are sealed in a hybrid Envelope: RSA wraps a fresh
+   *  symmetric key that encrypts the body, so the cost is still one RSA
+   *  operation per message. Storer.decrypt() accepts all of them.
+   *
+   *  null is returned if the encryption was unsuccessful.
    *
-   *  @throws ArrayIndexOutOfBoundsException if plaintext greater than LEN_MAX.
    *  @param plaintext plaintext byte array to encrypt.
    *  @param k public key to encrypt under.
    *  @return ciphertext of plaintext encrypted under public key k or null.
    */
   public static byte[] encrypt(byte[] plaintext, PublicKey k)
   {
+    if(Ecies.ALGORITHM.equals(k.getAlgorithm()) || plaintext.length > LEN_MAX)
+    {
+      try
+      {
+        return Ecies.ALGORITHM.equals(k.getAlgorithm())
+          ? Ecies.seal(plaintext, k) : Envelope.seal(plaintext, k);
+      }
+      catch(GeneralSecurityException e)
+      {
+        Log.e(Fetcher.TAG, "exception", e);
+        return null;
+      }
+    }
     try
     {
-      Cipher c = Cipher.getInstance(Storer.ENCRYPTION_MODE);
-      c.init(Cipher.ENCRYPT_MODE, k);
-
-      byte[] cipherText = c.doFinal(plaintext);
-      Log.d(TAG, "len:"+cipherText.length);
-      return cipherText;
+      Cipher c = CipherPool.RSA_ENCRYPT.acquire(k);
+      try
+      {
+        byte[] cipherText = c.doFinal(plaintext);
+        CipherPool.RSA_ENCRYPT.release(k, c);
+        return cipherText;
+      }
+      catch(GeneralSecurityException e)
+      {
+        CipherPool.RSA_ENCRYPT.reset(k, c);
+        throw e;
+      }
     }
-    catch(InvalidKeyException e) {Log.e(Fetcher.TAG, "exception", e); }
-    catch(NoSuchAlgorithmException e) {Log.e(Fetcher.TAG, "exception", e); }
-    catch(javax.crypto.NoSuchPaddingException e)
-    {Log.e(Fetcher.TAG, "exception", e); }
-    catch(javax.crypto.IllegalBlockSizeException e)
-    {Log.e(Fetcher.TAG, "exception", e); }
-    catch(javax.crypto.BadPaddingException e)
-    {Log.e(Fetcher.TAG, "exception", e); }
+    catch(GeneralSecurityException e) {Log.e(Fetcher.TAG, "exception", e); }
     return null;
   }
+
+  /**
+   *  encrypt() given many plaintexts and the public keys to encrypt each of
+   *  them under, produces their ciphertexts in one call.
+   *
+   *  Each ciphertext is the same as encrypt() would give for its plaintext,
+   *  but a single RSA cipher per distinct key is taken from the pool for the
+   *  whole batch. A plaintext that could not be encrypted gets a null
+   *  ciphertext; the rest of the batch is unaffected.
+   *
+   *  @param plaintexts plaintexts to encrypt.
+   *  @param keys keys[i] is the key for plaintexts[i]; a single key is used
+   *    for every plaintext.
+   *  @return ciphertexts[i] of plaintexts[i] or null.
+   */
+  public static byte[][] encrypt(byte[][] plaintexts, PublicKey[] keys)
+  {
+    byte[][] cipherTexts = new byte[plaintexts.length][];
+    HashMap<PublicKey, Cipher> held = new HashMap<PublicKey, Cipher>();
+    for(int i = 0; i < plaintexts.length; i++)
+    {
+      PublicKey k = keys[keys.length == 1 ? 0 : i];
+      if(Ecies.ALGORITHM.equals(k.getAlgorithm())
+        || plaintexts[i].length > LEN_MAX)
+      {
+        cipherTexts[i] = encrypt(plaintexts[i], k);
+        continue;
+      }
+      Cipher c = held.get(k);
+      try
+      {
+        if(c == null)
+        {
+          c = CipherPool.RSA_ENCRYPT.acquire(k);
+          held.put(k, c);
+        }
+        cipherTexts[i] = c.doFinal(plaintexts[i]);
+      }
+      catch(GeneralSecurityException e)
+      {
+        //a cipher that threw is reset, both for the batch and the pool
+        if(c != null)
+        {
+          held.remove(k);
+          CipherPool.RSA_ENCRYPT.reset(k, c);
+        }
+        Log.e(Fetcher.TAG, "exception", e);
+      }
+    }
+    for(Map.Entry<PublicKey, Cipher> e : held.entrySet())
+    {
+      CipherPool.RSA_ENCRYPT.release(e.getKey(), e.getValue());
+    }
+    return cipherTexts;
+  }
 }
@@ -2,11 +2,13 @@ package ctxt.key;
 
 import ctxt.key.Storer;
 import ctxt.key.Fetcher;
+import ctxt.key.Sessions;
 
 import android.content.Context; //Needed for constructing Storer and Fetcher
 
 /**
- *  Key class for keeping static instances of Storer and Fetcher; a singleton.
+ *  Key class for keeping static instances of Storer, Fetcher and Sessions; a
+ *  singleton.
  *
  *  There does not appear to be much use in keeping separate instances of
  *  both Fetcher and Storer when their purpose focuses on providing an
@@ -18,7 +20,8 @@ import android.content.Context; //Needed for constructing Storer and Fetcher
  *  Call getFetcher() and getStorer() passing in a Context as a parameter to
  *  get Fetcher and Storer instances respectively.
  *
- *  The instances are lazily loaded upon first need.
+ *  The instances are lazily loaded upon first need. Loading is synchronized
+ *  so that threads decrypting in the background share the same instances.
  */
 public class Key
 {
@@ -27,9 +30,11 @@ public class Key
    *
    *  FETCHER static reference to a Fetcher instance.
    *  STORER static reference to a Storer instance.
+   *  SESSIONS static reference to a Sessions instance.
    */
   static Fetcher _FETCHER = null;
   static Storer _STORER = null;
+  static Sessions _SESSIONS = null;
 
   /**
    *  Key() private constructor does not permit any construction and also does
@@ -44,7 +49,7 @@ public class Key
    *  @param Context that the Fetcher instance will be constructed.
    *  @return static Fetcher reference.
    */
-  public static Fetcher getFetcher(Context context)
+  public static synchronized Fetcher getFetcher(Context context)
   {
     if(_FETCHER == null)
     {
@@ -60,7 +65,7 @@ public class Key
    *  @param Context that the Storer instance will be constructed.
    *  @return static Storer reference.
    */
-  public static Storer getStorer(Context context)
+  public static synchronized Storer getStorer(Context context)
   {
     if(_STORER == null)
     {
@@ -68,4 +73,19 @@ public class Key
     }
     return _STORER;
   }
+
+  /**
+   *  getSessions() returns a static reference to a Sessions instance.
+   *
+   *  @param Context that the Sessions instance will be constructed.
+   *  @return static Sessions reference.
+   */
+  public static synchronized Sessions getSessions(Context context)
+  {
+    if(_SESSIONS == null)
+    {
+      _SESSIONS = new Sessions(context);
+    }
+    return _SESSIONS;
+  }
 }
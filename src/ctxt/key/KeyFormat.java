@@ -0,0 +1,154 @@
+package ctxt.key;
+
+import ctxt.key.Storer;
+import ctxt.key.Ecies;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ *  KeyFormat class encodes keys for storage on disk together with a tag
+ *  naming their type, so RSA and elliptic curve keys can be stored side by
+ *  side.
+ *
+ *  A stored key is a type byte followed by the X.509 encoding of a public key
+ *  or the PKCS#8 encoding of a private key. Keys stored before types were
+ *  introduced have no type byte; they are RSA keys and their encoding starts
+ *  with a DER sequence tag, which no type byte equals.
+ */
+final class KeyFormat
+{
+  /**
+   *  Class Variables.
+   *
+   *  TYPE_RSA type byte of a Storer.ALGORITHM key.
+   *  TYPE_EC type byte of an Ecies.ALGORITHM key.
+   *  DER_SEQUENCE first byte of an untagged key.
+   */
+  static final byte TYPE_RSA = 0x01;
+  static final byte TYPE_EC = 0x02;
+  private static final byte DER_SEQUENCE = 0x30;
+
+  /**
+   *  KeyFormat() private constructor prevents instantiation; does nothing.
+   */
+  private KeyFormat() {}
+
+  /**
+   *  typeOf() returns the type byte of a key.
+   *
+   *  @param k key to classify.
+   *  @return TYPE_RSA or TYPE_EC.
+   *  @throws InvalidKeySpecException if k is of neither type.
+   */
+  static byte typeOf(java.security.Key k) throws InvalidKeySpecException
+  {
+    if(Storer.ALGORITHM.equals(k.getAlgorithm()))
+    {
+      return TYPE_RSA;
+    }
+    if(Ecies.ALGORITHM.equals(k.getAlgorithm()))
+    {
+      return TYPE_EC;
+    }
+    throw new InvalidKeySpecException("Unknown key type " + k.getAlgorithm());
+  }
+
+  /**
+   *  algorithm() given a type byte returns the name of the algorithm to get a
+   *  KeyFactory for.
+   */
+  static String algorithm(byte type) throws InvalidKeySpecException
+  {
+    switch(type)
+    {
+      case TYPE_RSA: return Storer.ALGORITHM;
+      case TYPE_EC: return Ecies.ALGORITHM;
+    }
+    throw new InvalidKeySpecException("Unknown key type " + type);
+  }
+
+  /**
+   *  encodePublic() returns the tagged encoding of a public key.
+   */
+  static byte[] encodePublic(PublicKey k) throws InvalidKeySpecException
+  {
+    return tag(typeOf(k), new X509EncodedKeySpec(k.getEncoded()).getEncoded());
+  }
+
+  /**
+   *  encodePrivate() returns the tagged encoding of a private key.
+   */
+  static byte[] encodePrivate(PrivateKey k) throws InvalidKeySpecException
+  {
+    return tag(typeOf(k),
+      new PKCS8EncodedKeySpec(k.getEncoded()).getEncoded());
+  }
+
+  /**
+   *  decodePublic() given a stored, possibly untagged, public key decodes it.
+   *
+   *  @throws InvalidKeySpecException if b is too short to hold a key.
+   */
+  static PublicKey decodePublic(byte[] b) throws GeneralSecurityException
+  {
+    checkLength(b);
+    if(b[0] == DER_SEQUENCE)
+    {
+      return KeyFactory.getInstance(Storer.ALGORITHM).generatePublic(
+        new X509EncodedKeySpec(b));
+    }
+    return KeyFactory.getInstance(algorithm(b[0])).generatePublic(
+      new X509EncodedKeySpec(untag(b)));
+  }
+
+  /**
+   *  decodePrivate() given a stored, possibly untagged, private key decodes
+   *  it.
+   *
+   *  @throws InvalidKeySpecException if b is too short to hold a key.
+   */
+  static PrivateKey decodePrivate(byte[] b) throws GeneralSecurityException
+  {
+    checkLength(b);
+    if(b[0] == DER_SEQUENCE)
+    {
+      return KeyFactory.getInstance(Storer.ALGORITHM).generatePrivate(
+        new PKCS8EncodedKeySpec(b));
+    }
+    return KeyFactory.getInstance(algorithm(b[0])).generatePrivate(
+      new PKCS8EncodedKeySpec(untag(b)));
+  }
+
+  private static byte[] tag(byte type, byte[] encoded)
+  {
+    byte[] b = new byte[encoded.length+1];
+    b[0] = type;
+    System.arraycopy(encoded, 0, b, 1, encoded.length);
+    return b;
+  }
+
+  /**
+   *  checkLength() rejects stored keys too short to hold a type byte and an
+   *  encoding, e.g. an empty file.
+   */
+  private static void checkLength(byte[] b) throws InvalidKeySpecException
+  {
+    if(b.length < 2)
+    {
+      throw new InvalidKeySpecException("Truncated key.");
+    }
+  }
+
+  private static byte[] untag(byte[] b) throws InvalidKeySpecException
+  {
+    byte[] encoded = new byte[b.length-1];
+    System.arraycopy(b, 1, encoded, 0, encoded.length);
+    return encoded;
+  }
+}
@@ -1,6 +1,7 @@
 package ctxt.key;
 
 import ctxt.key.Storer;
+import ctxt.key.KeyFormat;
 
 import android.util.Log;
 
@@ -81,6 +82,7 @@ public class NumberKeyPair implements Serializable
    *
    *  The order in which data is serialized:
    *  Phone number as a UTF-8 string.
+   *  Key type byte, see KeyFormat.
    *  Int representing the length of the encoded public key in bytes.
    *  The encoded public key as a byte array.
    *
@@ -91,6 +93,14 @@ public class NumberKeyPair implements Serializable
   {
     //write the phone number
     out.writeUTF(this.number);
+    try
+    {
+      out.writeByte(KeyFormat.typeOf(key));
+    }
+    catch(InvalidKeySpecException e)
+    {
+      throw new IOException("Unsupported key type " + key.getAlgorithm());
+    }
     byte[] buffer = (new X509EncodedKeySpec(key.getEncoded()).getEncoded());
     out.writeInt(buffer.length);
     out.write(buffer, 0, buffer.length);
@@ -101,7 +111,11 @@ public class NumberKeyPair implements Serializable
    *
    *  The order in which data is deserialized:
    *  Phone number read as a UTF-8 string.
+   *  Key type byte, see KeyFormat.
    *  Int representing the length of the encoded public key in bytes.
+   *  Pairs written before key types were introduced have no type byte and
+   *  hold an RSA key. Their length is at most a few hundred bytes, so its
+   *  first byte is 0, which no type byte equals.
    *  Allocate a byte array this length.
    *  Read the public key from the stream into the byte array.
    *  Decode the public key from the byte array.
@@ -114,15 +128,26 @@ public class NumberKeyPair implements Serializable
   {
     //read back the phone number
     this.number = in.readUTF();
+    byte type = in.readByte();
     //read the length of the public key
-    int len = in.readInt();
+    int len;
+    if(type == 0)
+    {
+      //no type byte; that was the first byte of the length
+      type = KeyFormat.TYPE_RSA;
+      len = (in.readUnsignedByte()<<16) | in.readUnsignedShort();
+    }
+    else
+    {
+      len = in.readInt();
+    }
     byte[] buffer = new byte[len];
     //read the public key and decode it
-    in.read(buffer, 0, len);
+    in.readFully(buffer, 0, len);
     try
     {
-      this.key = (KeyFactory.getInstance(Storer.ALGORITHM)).generatePublic(
-        new X509EncodedKeySpec((buffer)));
+      this.key = (KeyFactory.getInstance(KeyFormat.algorithm(type)))
+        .generatePublic(new X509EncodedKeySpec((buffer)));
     }
     catch(NoSuchAlgorithmException e)
     {
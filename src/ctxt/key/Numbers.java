@@ -0,0 +1,65 @@
+package ctxt.key;
+
+import android.telephony.PhoneNumberUtils;
+
+/**
+ *  Numbers class turns the phone numbers the user types, the system reports
+ *  and keys are shared under into a single canonical form, so that a person
+ *  is one conversation, one key and one session however their number was
+ *  written.
+ *
+ *  The canonical form is the international number, E.164 style, without the
+ *  leading '+' or any delimiters: "+1 (555) 521-5554" and "15555215554" are
+ *  both "15555215554". Addresses without any digits, e.g. those of some
+ *  services, are kept as they are.
+ */
+public final class Numbers
+{
+  /**
+   *  Numbers() private constructor prevents instantiation; does nothing.
+   */
+  private Numbers() {}
+
+  /**
+   *  canonical() given a phone number returns its canonical form.
+   *
+   *  A number that is already canonical, as most are once stored, is
+   *  returned as it is without copying.
+   *
+   *  @param number international phone number, delimiters and '+' optional.
+   *  @return number without delimiters or '+'.
+   */
+  public static String canonical(String number)
+  {
+    int i = 0;
+    while(i < number.length() && isKept(number.charAt(i)))
+    {
+      i++;
+    }
+    if(i == number.length())
+    {
+      return number;
+    }
+    StringBuilder stripped = new StringBuilder(number.length());
+    stripped.append(number, 0, i);
+    for(; i < number.length(); i++)
+    {
+      char c = number.charAt(i);
+      if(isKept(c))
+      {
+        stripped.append(c);
+      }
+    }
+    return stripped.length() == 0 ? number : stripped.toString();
+  }
+
+  /**
+   *  isKept() given a character of a phone number returns whether it is part
+   *  of the canonical form: not a delimiter, see PhoneNumberUtils, nor '+'.
+   */
+  private static boolean isKept(char c)
+  {
+    return (c >= '0' && c <= '9') ||
+      (c != '+' && PhoneNumberUtils.isNonSeparator(c));
+  }
+}
@@ -0,0 +1,281 @@
+package ctxt.key;
+
+import ctxt.key.Envelope;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ *  Session class is one direction of a symmetric hash ratchet between the
+ *  user and another individual.
+ *
+ *  A session starts from a random root that is exchanged once under RSA. The
+ *  root is the first chain key; every message advances the chain:
+ *    seed(n) = HMAC(chain(n), 0x01)
+ *    chain(n+1) = HMAC(chain(n), 0x02)
+ *  and the message's AES and MAC keys are derived from seed(n). Chain keys
+ *  and seeds are overwritten as soon as they have been used, so a copy of the
+ *  session state taken later cannot decrypt messages that were already read.
+ *
+ *  Messages can arrive out of order. When a message skips ahead, the seeds of
+ *  the messages it skipped are kept, at most MAX_SKIPPED of them, oldest
+ *  dropped first.
+ *
+ *  The seed of a message received is held until release() is called, once
+ *  its plaintext is safely stored; until then the message can be opened
+ *  again, and write() saves the seed as if the message had been skipped.
+ *
+ *  Sessions are not thread safe; Sessions synchronizes access to them.
+ */
+class Session
+{
+  /**
+   *  Class Variables.
+   *
+   *  ROOT_BYTES length of a root, chain key and seed.
+   *  MAX_SKIP the furthest a single message may jump ahead of the chain.
+   *  MAX_SKIPPED maximum number of seeds kept for skipped messages.
+   *  SEED byte mixed into the chain key to derive a seed.
+   *  CHAIN byte mixed into the chain key to advance the chain.
+   *  ENC_KEY byte mixed into a seed to derive the AES key.
+   *  MAC_KEY byte mixed into a seed to derive the MAC key.
+   */
+  static final int ROOT_BYTES = 32;
+  static final int MAX_SKIP = 256;
+  static final int MAX_SKIPPED = 64;
+  private static final byte SEED = 0x01;
+  private static final byte CHAIN = 0x02;
+  private static final byte ENC_KEY = 0x01;
+  private static final byte MAC_KEY = 0x02;
+
+  /**
+   *  Member Variables.
+   *
+   *  id int chosen by the sender to tell its sessions apart.
+   *  counter number of the next message on the chain.
+   *  chain current chain key.
+   *  skipped seeds of skipped messages by message number, oldest first.
+   *  held seeds of received messages not yet released by message number.
+   */
+  final int id;
+  private int counter;
+  private byte[] chain;
+  private LinkedHashMap<Integer, byte[]> skipped;
+  private LinkedHashMap<Integer, byte[]> held;
+
+  /**
+   *  Session() given an id and root constructs a new session at message 0.
+   *
+   *  @param id session id.
+   *  @param root ROOT_BYTES of shared secret.
+   */
+  Session(int id, byte[] root)
+  {
+    this(id, 0, root.clone(), new LinkedHashMap<Integer, byte[]>(),
+      new LinkedHashMap<Integer, byte[]>());
+  }
+
+  private Session(int id, int counter, byte[] chain,
+      LinkedHashMap<Integer, byte[]> skipped,
+      LinkedHashMap<Integer, byte[]> held)
+  {
+    this.id = id;
+    this.counter = counter;
+    this.chain = chain;
+    this.skipped = skipped;
+    this.held = held;
+  }
+
+  /**
+   *  copy() returns an independent copy of this session.
+   *
+   *  Receiving on a copy and only keeping it once the message authenticates
+   *  stops forged messages from advancing the chain.
+   *
+   *  @return copy of this session.
+   */
+  Session copy()
+  {
+    return new Session(id, counter, chain.clone(),
+      new LinkedHashMap<Integer, byte[]>(skipped),
+      new LinkedHashMap<Integer, byte[]>(held));
+  }
+
+  /**
+   *  getCounter() returns the number of the next message on the chain.
+   *
+   *  @return next message number.
+   */
+  int getCounter()
+  {
+    return this.counter;
+  }
+
+  /**
+   *  send() returns the keys for the next message and advances the chain.
+   *
+   *  @return AES key followed by MAC key, as taken by Envelope.sealBody().
+   */
+  byte[] send() throws GeneralSecurityException
+  {
+    return keys(step());
+  }
+
+  /**
+   *  receive() given a message number returns the keys for that message.
+   *
+   *  Messages ahead of the chain advance it, remembering the seeds of those
+   *  skipped; messages behind it must have been skipped before. The seed of
+   *  n is held, so n yields its keys again until it is released, and never
+   *  after.
+   *
+   *  @param n message number.
+   *  @return AES key followed by MAC key, as taken by Envelope.openBody().
+   *  @throws BadPaddingException if n was already released, has been
+   *    forgotten or is too far ahead.
+   */
+  byte[] receive(int n) throws GeneralSecurityException
+  {
+    byte[] seed = held.get(n);
+    if(seed != null)
+    {
+      return keys(seed);
+    }
+    if(n < counter)
+    {
+      seed = skipped.remove(n);
+      if(seed == null)
+      {
+        throw new BadPaddingException("Message key already used.");
+      }
+      held.put(n, seed);
+      return keys(seed);
+    }
+    if(n-counter > MAX_SKIP)
+    {
+      throw new BadPaddingException("Message too far ahead.");
+    }
+    while(counter < n)
+    {
+      skipped.put(counter, step());
+      //forget the oldest skipped message
+      if(skipped.size() > MAX_SKIPPED)
+      {
+        Iterator<Integer> i = skipped.keySet().iterator();
+        i.next();
+        i.remove();
+      }
+    }
+    seed = step();
+    held.put(n, seed);
+    return keys(seed);
+  }
+
+  /**
+   *  release() given the number of a received message forgets its seed, so
+   *  the message cannot be opened again.
+   *
+   *  @param n message number.
+   */
+  void release(int n)
+  {
+    held.remove(n);
+  }
+
+  /**
+   *  step() returns the seed for message counter and advances the chain.
+   */
+  private byte[] step() throws GeneralSecurityException
+  {
+    byte[] seed = hmac(chain, SEED);
+    chain = hmac(chain, CHAIN);
+    ++counter;
+    return seed;
+  }
+
+  /**
+   *  keys() derives the AES and MAC keys of a message from its seed.
+   */
+  private static byte[] keys(byte[] seed) throws GeneralSecurityException
+  {
+    byte[] keys = new byte[Envelope.KEY_BYTES+Envelope.MAC_KEY_BYTES];
+    System.arraycopy(hmac(seed, ENC_KEY), 0, keys, 0, Envelope.KEY_BYTES);
+    System.arraycopy(hmac(seed, MAC_KEY), 0, keys, Envelope.KEY_BYTES,
+      Envelope.MAC_KEY_BYTES);
+    return keys;
+  }
+
+  /**
+   *  hmac() returns HmacSHA256 of a single byte under a key.
+   */
+  private static byte[] hmac(byte[] key, byte b) throws
+      GeneralSecurityException
+  {
+    Mac m = Mac.getInstance(Envelope.MAC_ALGORITHM);
+    m.init(new SecretKeySpec(key, Envelope.MAC_ALGORITHM));
+    m.update(b);
+    return m.doFinal();
+  }
+
+  /**
+   *  write() serializes this session.
+   *
+   *  The order in which data is serialized:
+   *  Session id, next message number and chain key.
+   *  Number of skipped messages followed by each message number and seed.
+   *  Held seeds are written as skipped ones, after them.
+   *
+   *  @param out DataOutputStream to write to.
+   */
+  void write(DataOutputStream out) throws IOException
+  {
+    out.writeInt(id);
+    out.writeInt(counter);
+    out.write(chain);
+    out.writeInt(skipped.size()+held.size());
+    for(Map.Entry<Integer, byte[]> e : skipped.entrySet())
+    {
+      out.writeInt(e.getKey());
+      out.write(e.getValue());
+    }
+    for(Map.Entry<Integer, byte[]> e : held.entrySet())
+    {
+      out.writeInt(e.getKey());
+      out.write(e.getValue());
+    }
+  }
+
+  /**
+   *  read() deserializes a session written by write().
+   *
+   *  @param in DataInputStream to read from.
+   *  @return session read.
+   */
+  static Session read(DataInputStream in) throws IOException
+  {
+    int id = in.readInt();
+    int counter = in.readInt();
+    byte[] chain = new byte[ROOT_BYTES];
+    in.readFully(chain);
+    int n = in.readInt();
+    LinkedHashMap<Integer, byte[]> skipped =
+      new LinkedHashMap<Integer, byte[]>();
+    for(int i = 0; i < n; i++)
+    {
+      int k = in.readInt();
+      byte[] seed = new byte[ROOT_BYTES];
+      in.readFully(seed);
+      skipped.put(k, seed);
+    }
+    return new Session(id, counter, chain, skipped,
+      new LinkedHashMap<Integer, byte[]>());
+  }
+}
@@ -0,0 +1,633 @@
+package ctxt.key;
+
+import ctxt.key.CipherPool;
+import ctxt.key.Session;
+import ctxt.key.Envelope;
+import ctxt.key.Ecies;
+import ctxt.key.NumberKeyPair;
+import ctxt.key.Numbers;
+
+import android.util.Log;
+import android.content.Context;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+
+/**
+ *  Sessions class keeps a symmetric Session per conversation so that only the
+ *  first message of a session costs a public key operation on either end.
+ *
+ *  Each direction of a conversation has its own sessions: the user's outgoing
+ *  session to a number, and the incoming sessions the other individual
+ *  started. An outgoing session is replaced by a new one after
+ *  SESSION_LENGTH messages, which bounds how many messages are lost if the
+ *  message starting it never arrives. The last RETAINED_SESSIONS incoming
+ *  sessions per number are kept so late messages of a replaced session can
+ *  still be read.
+ *
+ *  Message layouts, all ending in a tag over everything before it:
+ *    VERSION_SESSION_START, RSA ciphertext of root and session id, message
+ *      number, AES/CTR body.
+ *    VERSION_SESSION_START_EC, Ecies ciphertext of root and session id,
+ *      message number, AES/CTR body.
+ *    VERSION_SESSION, session id, message number, AES/CTR body.
+ *  A plain RSA ciphertext has no version byte: any ciphertext exactly
+ *  Envelope.RSA_BYTES long is one. A message of any of the layouts above
+ *  that would be that long is sent as VERSION_PADDED followed by the
+ *  message instead.
+ *  Ciphertexts of any other kind are passed on to Storer.decrypt().
+ *
+ *  Outgoing session state is written to disk after every message so it
+ *  survives the application being killed. If the message starting a session
+ *  is not sent, restart() drops the session so that later messages are not
+ *  sent on a session the recipient never learns of. Incoming session state
+ *  is only written once the caller has stored the plaintexts and passes what
+ *  decrypt() returned to commit(); until then the keys of those messages are
+ *  held, so a message whose plaintext was lost, by a crash or a rolled back
+ *  transaction, can be decrypted again. Get the static instance via
+ *  Key.getSessions().
+ *  All public methods are thread safe. Session state is only touched while
+ *  holding the Sessions lock; public key decryption runs outside of it, so
+ *  several messages can be decrypted by Storer at once. The lock is also
+ *  taken to write session files, so call encrypt(), restart() and commit()
+ *  off the main thread.
+ */
+public class Sessions
+{
+  /**
+   *  Class Variables.
+   *
+   *  TAG constant string representing the tag to use when logging exceptions
+   *    and debug statements that originate from calls to Sessions methods.
+   *  DIRECTORY subdirectory in which session state is stored.
+   *  OUTGOING, INCOMING file name prefixes for each direction.
+   *  VERSION_SESSION_START header byte of the first message of a session to
+   *    an RSA key.
+   *  VERSION_SESSION_START_EC header byte of the first message of a session
+   *    to an elliptic curve key.
+   *  VERSION_SESSION header byte of every other message of a session.
+   *  VERSION_PADDED header byte put before a message that would otherwise be
+   *    as long as a plain RSA ciphertext.
+   *  SESSION_LENGTH number of messages sent before starting a new session.
+   *  RETAINED_SESSIONS number of incoming sessions kept per number.
+   *  ID_BYTES, COUNTER_BYTES lengths of the session id and message number.
+   *  EC_WRAPPED length of a root and id encrypted by Ecies.
+   *  START_HEADER, EC_START_HEADER, HEADER lengths of the headers before the
+   *    body.
+   *  random SecureRandom for generating roots and session ids.
+   */
+  private static final String TAG = "SESSIONS";
+  private static final String DIRECTORY = "sessions";
+  private static final String OUTGOING = "out";
+  private static final String INCOMING = "in";
+  public static final byte VERSION_SESSION_START = 0x02;
+  public static final byte VERSION_SESSION = 0x03;
+  public static final byte VERSION_SESSION_START_EC = 0x05;
+  public static final byte VERSION_PADDED = 0x07;
+  static final int SESSION_LENGTH = 128;
+  static final int RETAINED_SESSIONS = 2;
+  private static final int ID_BYTES = 4;
+  private static final int COUNTER_BYTES = 4;
+  static final int START_HEADER = 1 + Envelope.RSA_BYTES + COUNTER_BYTES;
+  static final int EC_WRAPPED = Ecies.OVERHEAD + Session.ROOT_BYTES + ID_BYTES;
+  static final int EC_START_HEADER = 1 + EC_WRAPPED + COUNTER_BYTES;
+  static final int HEADER = 1 + ID_BYTES + COUNTER_BYTES;
+  private static final SecureRandom random = new SecureRandom();
+
+  /**
+   *  Received class is a plaintext returned by decrypt(), together with the
+   *  message on a session it was decrypted from: the sender's number, null
+   *  if it was not on a session, the session id and the message number.
+   *  Pass it to commit() once the plaintext is stored.
+   */
+  public static final class Received
+  {
+    public final byte[] plainText;
+    final String number;
+    final int id;
+    final int n;
+
+    Received(byte[] plainText, String number, int id, int n)
+    {
+      this.plainText = plainText;
+      this.number = number;
+      this.id = id;
+      this.n = n;
+    }
+  }
+
+  /**
+   *  Member Variables.
+   *
+   *  context Context under which the application operates; used for access
+   *    to the filesystem.
+   *  outgoing user's current session by number.
+   *  incoming other individuals' sessions by number, newest first.
+   */
+  private Context context;
+  private HashMap<String, Session> outgoing;
+  private HashMap<String, LinkedList<Session>> incoming;
+
+  /**
+   *  Sessions() given a Context constructs a new Sessions instance. Sessions
+   *  are loaded from disk when first needed.
+   */
+  Sessions(Context context)
+  {
+    this.context = context;
+    this.outgoing = new HashMap<String, Session>();
+    this.incoming = new HashMap<String, LinkedList<Session>>();
+  }
+
+  /**
+   *  encrypt() given the recipient's NumberKeyPair and a plaintext produces a
+   *  ciphertext on the user's session with that recipient.
+   *
+   *  If there is no session yet, or the current one is used up, a new one is
+   *  started and its root is encrypted under the recipient's public key.
+   *
+   *  @param recipient recipient's number and public key.
+   *  @param plainText bytes to encrypt.
+   *  @return ciphertext or null if encryption was unsuccessful.
+   */
+  public synchronized byte[] encrypt(NumberKeyPair recipient,
+      byte[] plainText)
+  {
+    String number = Numbers.canonical(recipient.getNumber());
+    try
+    {
+      Session s = getOutgoing(number);
+      byte[] header;
+      if(s == null || s.getCounter() >= SESSION_LENGTH)
+      {
+        //start a new session, announcing its root under the public key
+        byte[] root = new byte[Session.ROOT_BYTES];
+        random.nextBytes(root);
+        s = new Session(random.nextInt(), root);
+        byte[] start = new byte[Session.ROOT_BYTES+ID_BYTES];
+        System.arraycopy(root, 0, start, 0, Session.ROOT_BYTES);
+        putInt(start, Session.ROOT_BYTES, s.id);
+
+        byte version;
+        byte[] wrapped;
+        if(Ecies.ALGORITHM.equals(recipient.getKey().getAlgorithm()))
+        {
+          version = VERSION_SESSION_START_EC;
+          wrapped = Ecies.seal(start, recipient.getKey());
+        }
+        else
+        {
+          Cipher wrap = CipherPool.RSA_ENCRYPT.acquire(recipient.getKey());
+          version = VERSION_SESSION_START;
+          try
+          {
+            wrapped = wrap.doFinal(start);
+          }
+          catch(GeneralSecurityException e)
+          {
+            CipherPool.RSA_ENCRYPT.reset(recipient.getKey(), wrap);
+            throw e;
+          }
+          CipherPool.RSA_ENCRYPT.release(recipient.getKey(), wrap);
+        }
+
+        header = new byte[1+wrapped.length];
+        header[0] = version;
+        System.arraycopy(wrapped, 0, header, 1, wrapped.length);
+      }
+      else
+      {
+        header = new byte[HEADER-COUNTER_BYTES];
+        header[0] = VERSION_SESSION;
+        putInt(header, 1, s.id);
+      }
+      byte[] out = seal(s, header, plainText);
+      outgoing.put(number, s);
+      store(OUTGOING, number, s);
+      return out;
+    }
+    catch(GeneralSecurityException e) {Log.e(TAG, "exception", e); }
+    return null;
+  }
+
+  /**
+   *  startsSession() given a ciphertext returned by encrypt() returns whether
+   *  it is the first message of a session, which every later message of the
+   *  session depends on.
+   *
+   *  @param cipherText ciphertext returned by encrypt().
+   *  @return whether cipherText starts a session.
+   */
+  public static boolean startsSession(byte[] cipherText)
+  {
+    int i = (cipherText.length == minimumLength(VERSION_PADDED) &&
+      cipherText[0] == VERSION_PADDED) ? 1 : 0;
+    return cipherText[i] == VERSION_SESSION_START ||
+      cipherText[i] == VERSION_SESSION_START_EC;
+  }
+
+  /**
+   *  restart() given a recipient's number forgets the user's session with
+   *  them, so that the next message encrypt() produces starts a new one.
+   *
+   *  Call it when a message starting a session could not be sent; otherwise
+   *  the recipient cannot decrypt any other message of that session.
+   *
+   *  @param number recipient's phone number.
+   */
+  public synchronized void restart(String number)
+  {
+    number = Numbers.canonical(number);
+    outgoing.put(number, null);
+    store(OUTGOING, number);
+  }
+
+  /**
+   *  seal() given a session, the header of a message up to its message number
+   *  and a plaintext returns the message: header, message number, body and
+   *  tag, padded if need be. The session is advanced past the message.
+   *
+   *  @param s session to send on.
+   *  @param header version byte followed by the session id or wrapped root.
+   *  @param plainText bytes to encrypt.
+   *  @return ciphertext to send.
+   */
+  static byte[] seal(Session s, byte[] header, byte[] plainText)
+      throws GeneralSecurityException
+  {
+    int off = header.length+COUNTER_BYTES;
+    byte[] out = new byte[off+plainText.length+Envelope.TAG_BYTES];
+    System.arraycopy(header, 0, out, 0, header.length);
+    putInt(out, header.length, s.getCounter());
+    Envelope.sealBody(s.send(), plainText, out, off);
+    return pad(out);
+  }
+
+  /**
+   *  pad() given a message returns it prefixed by VERSION_PADDED if it is as
+   *  long as a plain RSA ciphertext, so that it is not taken for one, or the
+   *  message itself otherwise.
+   *
+   *  @param message ciphertext of one of the session layouts.
+   *  @return ciphertext to send.
+   */
+  static byte[] pad(byte[] message)
+  {
+    if(message.length != Envelope.RSA_BYTES)
+    {
+      return message;
+    }
+    byte[] padded = new byte[message.length+1];
+    padded[0] = VERSION_PADDED;
+    System.arraycopy(message, 0, padded, 1, message.length);
+    return padded;
+  }
+
+  /**
+   *  route() given a ciphertext, with any VERSION_PADDED removed, returns
+   *  the version byte of its session layout, or -1 if it is for
+   *  Storer.decrypt(). A ciphertext exactly Envelope.RSA_BYTES long is a
+   *  plain RSA ciphertext, whatever its first byte, unless it was padded.
+   *
+   *  @param cipherText ciphertext to inspect, at least one byte long.
+   *  @param padded whether cipherText was received with VERSION_PADDED.
+   *  @return VERSION_SESSION_START, VERSION_SESSION_START_EC,
+   *    VERSION_SESSION or -1.
+   */
+  static int route(byte[] cipherText, boolean padded)
+  {
+    if(cipherText.length == Envelope.RSA_BYTES && !padded)
+    {
+      return -1;
+    }
+    byte version = cipherText[0];
+    switch(version)
+    {
+      case VERSION_SESSION_START:
+      case VERSION_SESSION_START_EC:
+      case VERSION_SESSION:
+        return (cipherText.length >= minimumLength(version)) ? version : -1;
+    }
+    return -1;
+  }
+
+  /**
+   *  minimumLength() given the first byte of a ciphertext returns the length
+   *  below which decrypt() cannot accept it. A plain RSA ciphertext has no
+   *  version byte and is exactly Envelope.RSA_BYTES long whatever its first
+   *  byte.
+   *
+   *  @param version first byte of a ciphertext.
+   *  @return minimum length, or -1 if version is not a known version byte.
+   */
+  public static int minimumLength(byte version)
+  {
+    switch(version)
+    {
+      case Envelope.VERSION_HYBRID: return Envelope.OVERHEAD;
+      case VERSION_SESSION_START: return START_HEADER+Envelope.TAG_BYTES;
+      case VERSION_SESSION: return HEADER+Envelope.TAG_BYTES;
+      case Ecies.VERSION_ECIES: return Ecies.OVERHEAD;
+      case VERSION_SESSION_START_EC: return EC_START_HEADER+Envelope.TAG_BYTES;
+      case VERSION_PADDED: return Envelope.RSA_BYTES+1;
+    }
+    return -1;
+  }
+
+  /**
+   *  decrypt() given the sender's number and a ciphertext returns its
+   *  plaintext.
+   *
+   *  Ciphertexts that are not on a session are decrypted by Storer.
+   *
+   *  The key of a message on a session is held, and the advanced session is
+   *  not saved, until the Received returned is passed to commit().
+   *
+   *  @param number phone number the ciphertext was received from.
+   *  @param cipherText bytes to decrypt.
+   *  @return plaintext or null if the ciphertext cannot be decrypted.
+   */
+  public Received decrypt(String number, byte[] cipherText)
+  {
+    if(cipherText == null || cipherText.length == 0)
+    {
+      return null;
+    }
+    number = Numbers.canonical(number);
+    boolean padded = (cipherText[0] == VERSION_PADDED &&
+      cipherText.length == minimumLength(VERSION_PADDED));
+    if(padded)
+    {
+      cipherText = Arrays.copyOfRange(cipherText, 1, cipherText.length);
+    }
+    try
+    {
+      switch(route(cipherText, padded))
+      {
+        case VERSION_SESSION_START:
+          return decryptStart(number, cipherText, Envelope.RSA_BYTES);
+        case VERSION_SESSION_START_EC:
+          return decryptStart(number, cipherText, EC_WRAPPED);
+        case VERSION_SESSION:
+          return decryptSession(number, cipherText);
+      }
+    }
+    catch(GeneralSecurityException e)
+    {
+      Log.e(TAG, "Could not decrypt session message.", e);
+      return null;
+    }
+    byte[] plainText = (Key.getStorer(context)).decrypt(cipherText);
+    return (plainText == null) ? null
+      : new Received(plainText, null, 0, 0);
+  }
+
+  /**
+   *  commit() given plaintexts returned by decrypt() that have been stored
+   *  forgets the keys of their messages and saves the sessions they were on.
+   *  Each number's sessions are written once.
+   *
+   *  @param received plaintexts whose messages cannot be decrypted again.
+   */
+  public synchronized void commit(Iterable<Received> received)
+  {
+    HashSet<String> numbers = new HashSet<String>();
+    for(Received r : received)
+    {
+      if(r.number == null)
+      {
+        continue;
+      }
+      //the session may since have been replaced by a later copy of itself
+      for(Session s : getIncoming(r.number))
+      {
+        if(s.id == r.id)
+        {
+          s.release(r.n);
+        }
+      }
+      numbers.add(r.number);
+    }
+    for(String number : numbers)
+    {
+      LinkedList<Session> sessions = getIncoming(number);
+      store(INCOMING, number, sessions.toArray(new Session[sessions.size()]));
+    }
+  }
+
+  /**
+   *  decryptStart() decrypts the first message of a new incoming session and
+   *  keeps the session. The session root is unwrapped before taking the lock.
+   *
+   *  @param wrapped length of the encrypted root and id after the version.
+   */
+  private Received decryptStart(String number, byte[] cipherText,
+      int wrapped)
+      throws GeneralSecurityException
+  {
+    byte[] block = new byte[wrapped];
+    System.arraycopy(cipherText, 1, block, 0, wrapped);
+    byte[] start = (Key.getStorer(context)).decrypt(block);
+    if(start == null || start.length != Session.ROOT_BYTES+ID_BYTES)
+    {
+      throw new BadPaddingException("Bad session start.");
+    }
+    byte[] root = new byte[Session.ROOT_BYTES];
+    System.arraycopy(start, 0, root, 0, Session.ROOT_BYTES);
+    Session s = new Session(getInt(start, Session.ROOT_BYTES), root);
+
+    synchronized(this)
+    {
+      LinkedList<Session> sessions = getIncoming(number);
+      //the same start may be received twice
+      for(Session old : sessions)
+      {
+        if(old.id == s.id)
+        {
+          s = old;
+        }
+      }
+      return open(number, sessions, s, cipherText, 1+wrapped+COUNTER_BYTES);
+    }
+  }
+
+  /**
+   *  decryptSession() decrypts a message on a known incoming session.
+   */
+  private synchronized Received decryptSession(String number,
+      byte[] cipherText) throws GeneralSecurityException
+  {
+    int id = getInt(cipherText, 1);
+    LinkedList<Session> sessions = getIncoming(number);
+    for(Session s : sessions)
+    {
+      if(s.id == id)
+      {
+        return open(number, sessions, s, cipherText, HEADER);
+      }
+    }
+    throw new BadPaddingException("Unknown session.");
+  }
+
+  /**
+   *  open() authenticates and decrypts a message on session s and, only if it
+   *  is authentic, keeps the advanced session as the newest one for number.
+   *  It is saved by commit().
+   */
+  private Received open(String number, LinkedList<Session> sessions,
+      Session s, byte[] cipherText, int off) throws GeneralSecurityException
+  {
+    Session trial = s.copy();
+    byte[] plainText = openBody(trial, cipherText, off);
+
+    sessions.remove(s);
+    sessions.addFirst(trial);
+    while(sessions.size() > RETAINED_SESSIONS)
+    {
+      sessions.removeLast();
+    }
+    return new Received(plainText, number, trial.id,
+      getInt(cipherText, off-COUNTER_BYTES));
+  }
+
+  /**
+   *  openBody() given a session and a message on it whose body starts at an
+   *  offset authenticates and decrypts the message, advancing the session.
+   *
+   *  @param s session the message was sent on.
+   *  @param cipherText message, without VERSION_PADDED.
+   *  @param off index of the body; the message number is just before it.
+   *  @return plaintext.
+   *  @throws BadPaddingException if the message is not authentic or its
+   *    keys were already used.
+   */
+  static byte[] openBody(Session s, byte[] cipherText, int off)
+      throws GeneralSecurityException
+  {
+    return Envelope.openBody(s.receive(getInt(cipherText, off-COUNTER_BYTES)),
+      cipherText, off);
+  }
+
+  /**
+   *  getOutgoing() returns the user's session to number, loading it from disk
+   *  if needed, or null if there is none.
+   */
+  private Session getOutgoing(String number)
+  {
+    if(!outgoing.containsKey(number))
+    {
+      Session[] s = load(OUTGOING, number);
+      outgoing.put(number, (s.length > 0) ? s[0] : null);
+    }
+    return outgoing.get(number);
+  }
+
+  /**
+   *  getIncoming() returns the sessions number started with the user, newest
+   *  first, loading them from disk if needed.
+   */
+  private LinkedList<Session> getIncoming(String number)
+  {
+    LinkedList<Session> sessions = incoming.get(number);
+    if(sessions == null)
+    {
+      sessions = new LinkedList<Session>();
+      for(Session s : load(INCOMING, number))
+      {
+        sessions.add(s);
+      }
+      incoming.put(number, sessions);
+    }
+    return sessions;
+  }
+
+  /**
+   *  load() reads the sessions stored for a direction and number.
+   *
+   *  @return sessions stored, possibly none.
+   */
+  private Session[] load(String direction, String number)
+  {
+    File f = new File(context.getDir(DIRECTORY, Context.MODE_PRIVATE),
+      direction + number);
+    DataInputStream in = null;
+    try
+    {
+      in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(f)));
+      Session[] s = new Session[in.readInt()];
+      for(int i = 0; i < s.length; i++)
+      {
+        s[i] = Session.read(in);
+      }
+      return s;
+    }
+    catch(FileNotFoundException e) { }
+    catch(IOException e) {Log.e(TAG, "Corrupt session file.", e); }
+    finally
+    {
+      try
+      {
+        if(in != null) { in.close(); }
+      }
+      catch(IOException e) { }
+    }
+    return new Session[0];
+  }
+
+  /**
+   *  store() writes the sessions for a direction and number, replacing what
+   *  was stored before.
+   */
+  private void store(String direction, String number, Session... s)
+  {
+    File dir = context.getDir(DIRECTORY, Context.MODE_PRIVATE);
+    File tmp = new File(dir, direction + number + ".tmp");
+    try
+    {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp)));
+      out.writeInt(s.length);
+      for(Session i : s)
+      {
+        i.write(out);
+      }
+      out.close();
+      //swap in the new state in one step
+      if(!tmp.renameTo(new File(dir, direction + number)))
+      {
+        Log.e(TAG, "Couldn't save session for " + number);
+      }
+    }
+    catch(IOException e) {Log.e(TAG, "Couldn't save session.", e); }
+  }
+
+  private static void putInt(byte[] b, int off, int v)
+  {
+    b[off] = (byte)(v>>>24);
+    b[off+1] = (byte)(v>>>16);
+    b[off+2] = (byte)(v>>>8);
+    b[off+3] = (byte)v;
+  }
+
+  private static int getInt(byte[] b, int off)
+  {
+    return ((b[off]&0xff)<<24) | ((b[off+1]&0xff)<<16) |
+      ((b[off+2]&0xff)<<8) | (b[off+3]&0xff);
+  }
+}
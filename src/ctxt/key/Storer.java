@@ -2,11 +2,14 @@ package ctxt.key;
 
 import ctxt.key.Key;
 import ctxt.key.KeyAlreadyExistsException;
+import ctxt.key.Envelope;
+import ctxt.key.Ecies;
+import ctxt.key.KeyFormat;
+import ctxt.key.CipherPool;
 import android.util.Log;
 import android.app.Activity;
 import android.content.Context;
 import java.security.*;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.RSAKeyGenParameterSpec;
 import java.security.spec.AlgorithmParameterSpec;
 import javax.crypto.Cipher;
@@ -45,6 +48,10 @@ import java.io.FileOutputStream;
  *  disk. To check if the private portion of the key pair has been stored on
  *  disk, check the status of isKeyAvailable().
  *
+ *  decrypt() may be called from several threads at once; each call borrows
+ *  its own Cipher from a pool, so bursts of incoming messages can be
+ *  decrypted on every core.
+ *
  *  The private key managed by Storer never leaves Storer. This prevents
  *  accidental exfiltration of the private key and decreases the size of the
  *  TCB. However, the private key is simply stored in a regular file on disk.
@@ -58,11 +65,11 @@ public class Storer
   /**
    *  Class Variables.
    *
-   *  KEYBITS constant int representing the size of keys to use. 1064 is
+   *  KEYBITS constant int representing the size of RSA keys to use. 1064 is
    *    selected because this is the maximum number of bytes that can fit into
    *    an sms.
-   *  ALGORITHM constant string representing which public key algorithm to use
-   *    for key generation and storage.
+   *  ALGORITHM constant string representing the RSA public key algorithm.
+   *    Elliptic curve keys use Ecies.ALGORITHM instead.
    *  ENCRYPTION_MODE constant string representing how the public and private
    *    keys are used for encryption and decryption.
    *  DIRECTORY constant string representing the subdirectory in which the
@@ -75,7 +82,7 @@ public class Storer
    */
   public static final int KEYBITS = 1064;
   public static final String ALGORITHM = "RSA";
-  static final String ENCRYPTION_MODE = "RSA/ECB/PKCS1Padding";
+  public static final String ENCRYPTION_MODE = "RSA/ECB/PKCS1Padding";
   static final String DIRECTORY = "me";
   private static final String KEYSTORENAME = ".privKey";
   private static final String TAG = "STORER";
@@ -84,26 +91,29 @@ public class Storer
    *  Member Variables.
    *
    *  k user's PrivateKey for decryption. The algorithm used is represented by
-   *    Storer.ALGORITHM.
-   *  c Cipher object initialized using Storer.ENCRYPTON_MODE and k. This
-   *    object exists so that a new cipher does not need to be instantiated each
-   *    time decrypt() is called.
+   *    Storer.ALGORITHM or Ecies.ALGORITHM.
+   *  ciphers pool of Cipher objects initialized using Storer.ENCRYPTION_MODE
+   *    and k. The pool exists so that a new cipher does not need to be
+   *    instantiated each time decrypt() is called, while concurrent calls
+   *    never share a cipher. Unused if k is an elliptic curve key.
    *  context Context under which the application operates. This is used for
    *    access to the filesystem: for key storage.
    *  keyGenerated boolean indicating whether the user's private key is
-   *    available.
+   *    available. Written after k, so a thread that sees it set sees k.
    */
 
-  private PrivateKey k;
-  protected Cipher c;
+  private volatile PrivateKey k;
+  private final CipherPool ciphers = new CipherPool(Storer.ENCRYPTION_MODE,
+    Cipher.DECRYPT_MODE, Runtime.getRuntime().availableProcessors());
   private Context context;
-  private boolean keyGenerated;
+  private volatile boolean keyGenerated;
 
   /**
    *  Storer() constructs a new storer instance.
    *
    *  If a private key is present on disk, read it from disk and store in
-   *  member variable k, then initialize c for decryption and set keyGenerated.
+   *  member variable k, then initialize a cipher for decryption and set
+   *  keyGenerated.
    *  If no private key can be found on disk, i.e. one has not been generated,
    *  mark keyGenerated as false and do nothing extra. In this case, the next
    *  step would be to call generateKeyPair() because attempting to call other
@@ -131,12 +141,11 @@ public class Storer
       {
         buffer.write(data, 0, nRead);
       }
-      //decode the private key
-      k = (KeyFactory.getInstance(Storer.ALGORITHM)).generatePrivate(new
-        PKCS8EncodedKeySpec((buffer.toByteArray())));
+      //decode the private key, RSA or elliptic curve
+      k = KeyFormat.decodePrivate(buffer.toByteArray());
       f.close();
       this.keyGenerated = true;
-      //initialize Cipher c for decrypt()
+      //initialize a Cipher for decrypt()
       initializeCipher();
     }
     catch(FileNotFoundException e)
@@ -148,10 +157,12 @@ public class Storer
     catch(NoSuchAlgorithmException e) {Log.e(Storer.TAG, "no algorithm?", e); }
     catch(java.security.spec.InvalidKeySpecException e)
     {Log.e(Storer.TAG, "bad key spec", e); }
+    catch(GeneralSecurityException e) {Log.e(Storer.TAG, "bad key", e); }
   }
 
   /**
-   *  initializeCipher() will initialize Cipher c to preform decryption.
+   *  initializeCipher() will initialize a first Cipher from the pool to
+   *  preform decryption, so that the first decrypt() does not pay for it.
    *
    *  The caller of this method must ensure that member varialbe k actually has
    *  a meaning value, i.e. generateKeyPair() has been called before in the
@@ -160,6 +171,8 @@ public class Storer
    *  The caller of this method must also ensure that this method is called
    *  prior to any called to decrypt().
    *
+   *  Elliptic curve keys need no Cipher; nothing is done for them.
+   *
    *  @throws IllegalStateException is a private key is not available.
    */
   protected void initializeCipher() throws IllegalStateException
@@ -168,15 +181,15 @@ public class Storer
     {
       throw new IllegalStateException("No private key to init cipher with.");
     }
+    if(Ecies.ALGORITHM.equals(k.getAlgorithm()))
+    {
+      return;
+    }
     try
     {
-      this.c = Cipher.getInstance(Storer.ENCRYPTION_MODE);
-      this.c.init(Cipher.DECRYPT_MODE, k);
+      ciphers.release(k, ciphers.acquire(k));
     }
-    catch(InvalidKeyException e) {Log.e(Storer.TAG, "exception", e); }
-    catch(NoSuchAlgorithmException e) {Log.e(Storer.TAG, "exception", e); }
-    catch(javax.crypto.NoSuchPaddingException e)
-    {Log.e(Storer.TAG, "exception", e); }
+    catch(GeneralSecurityException e) {Log.e(Storer.TAG, "exception", e); }
   }
 
   /**
@@ -207,24 +220,52 @@ public class Storer
    *  would be a valid phone number; the delimiters are unnecessary, Fetcher
    *  will canonicalize the number to include familiar delimiters.
    *
+   *  New key pairs are elliptic curve keys, see Ecies; generating one takes
+   *  milliseconds where an RSA key pair takes seconds. Existing RSA key pairs
+   *  keep working.
+   *
    *  @param number String representation of the user's phone number.
    */
   public void generateKeyPair(String number)
+  {
+    generateKeyPair(number, Ecies.ALGORITHM);
+  }
+
+  /**
+   *  generateKeyPair() given the user's phone number and a key algorithm,
+   *  either Storer.ALGORITHM or Ecies.ALGORITHM, will generate the user's
+   *  public+private key pair for the first time.
+   *
+   *  @param number String representation of the user's phone number.
+   *  @param algorithm name of the key algorithm.
+   */
+  public void generateKeyPair(String number, String algorithm)
   {
     //do nothing if a key pair has already been generated.
     if(keyGenerated)
     {
       return;
     }
-    KeyPairGenerator kgen = null;
+    KeyPair keyPair = null;
     try
     {
-      kgen = KeyPairGenerator.getInstance(Storer.ALGORITHM);
-      kgen.initialize(
-        KEYBITS);
+      if(Ecies.ALGORITHM.equals(algorithm))
+      {
+        keyPair = Ecies.generateKeyPair();
+      }
+      else
+      {
+        KeyPairGenerator kgen = KeyPairGenerator.getInstance(Storer.ALGORITHM);
+        kgen.initialize(
+          KEYBITS);
+        keyPair = kgen.generateKeyPair();
+      }
+    }
+    catch(GeneralSecurityException e1)
+    {
+      Log.e(Storer.TAG, "exception", e1);
+      return;
     }
-    catch(NoSuchAlgorithmException e1) { Log.e(Storer.TAG, "exception", e1);}
-    KeyPair keyPair = kgen.generateKeyPair();
     this.k = keyPair.getPrivate();
 
     //store public key onto disk via Fetcher
@@ -243,11 +284,13 @@ public class Storer
           context.getDir(
             Storer.DIRECTORY, Context.MODE_PRIVATE),
           Storer.KEYSTORENAME));
-      f.write((new PKCS8EncodedKeySpec(k.getEncoded())).getEncoded());
+      f.write(KeyFormat.encodePrivate(k));
       f.close();
     }
     catch(IOException e1) {Log.e(Storer.TAG, "exception", e1); }
-    //initialize Cipher c for decrypt()
+    catch(java.security.spec.InvalidKeySpecException e1)
+    {Log.e(Storer.TAG, "exception", e1); }
+    //initialize a Cipher for decrypt()
     this.keyGenerated = true;
     initializeCipher();
   }
@@ -277,13 +320,20 @@ public class Storer
    *  callers of this method are likely not in this package.
    *
    *  Ensure that generateKeyPair() has been called at any time before(to
-   *  initialize k), and that initializeCipher() has been called after
-   *  instantiation of a new Storer. Calling initializeCipher() should only
-   *  concern the internal methods of Storer.
+   *  initialize k). Calling initializeCipher() should only concern the
+   *  internal methods of Storer.
+   *
+   *  decrypt() is thread safe. A cipher that fails to decrypt is
+   *  re-initialized before it is returned to the pool, so a bad ciphertext
+   *  never affects another call.
    *
    *  If no private key has been generated yet, decrypt() automatically returns
    *  null.
    *
+   *  cipherText is either a plain RSA ciphertext or a hybrid Envelope as
+   *  produced by Fetcher.encrypt(); the two are told apart by Envelope. If the
+   *  user's key is an elliptic curve key, cipherText must come from Ecies.
+   *
    *  @param cipherText byte array containing ciphertext to decrypt.
    *  @return plaintext of given cipherText using the private key.
    *  @return null if decryption is unsuccessful (e.g. bad padding).
@@ -298,13 +348,57 @@ public class Storer
     try
     {
       Log.d(TAG, "len:"+cipherText.length);
-      return this.c.doFinal(cipherText);
+      return decrypt(cipherText, this.k, ciphers);
     }
     catch(javax.crypto.IllegalBlockSizeException e)
     {Log.e(Storer.TAG, "exception", e); }
     catch(javax.crypto.BadPaddingException e)
     {Log.e(Storer.TAG, "Bad padding: Probably a plaintext.", e); }
+    catch(GeneralSecurityException e) {Log.e(Storer.TAG, "exception", e); }
     catch(NullPointerException e) {Log.e(Storer.TAG, "null ciphertext", e);}
     return null; //could not decrypt
   }
+
+  /**
+   *  decrypt() given a ciphertext, a private key and a pool of ciphers to
+   *  borrow from decrypts it as the instance method does, but throws instead
+   *  of logging. It touches no file and no android class, so it can be used
+   *  off the device.
+   *
+   *  @param cipherText byte array containing ciphertext to decrypt.
+   *  @param k private key, Storer.ALGORITHM or Ecies.ALGORITHM.
+   *  @param ciphers pool of Storer.ENCRYPTION_MODE ciphers for decryption;
+   *    unused for elliptic curve keys.
+   *  @return plaintext of given cipherText.
+   *  @throws GeneralSecurityException if cipherText cannot be decrypted.
+   */
+  public static byte[] decrypt(byte[] cipherText, PrivateKey k,
+      CipherPool ciphers) throws GeneralSecurityException
+  {
+    if(Ecies.ALGORITHM.equals(k.getAlgorithm()))
+    {
+      return Ecies.open(cipherText, k);
+    }
+    Cipher c = ciphers.acquire(k);
+    byte[] plainText;
+    try
+    {
+      if(cipherText.length != Envelope.RSA_BYTES &&
+          Envelope.isHybrid(cipherText))
+      {
+        plainText = Envelope.open(cipherText, c);
+      }
+      else
+      {
+        plainText = c.doFinal(cipherText);
+      }
+    }
+    catch(GeneralSecurityException e)
+    {
+      ciphers.reset(k, c);
+      throw e;
+    }
+    ciphers.release(k, c);
+    return plainText;
+  }
 }
@@ -0,0 +1,202 @@
+package ctxt.db;
+
+import ctxt.db.Base128;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ *  Base128Test checks that every way of encoding round trips, that the word
+ *  at a time bulk methods agree with a septet at a time reference, and that
+ *  encodeInto() and decodeInto() allocate nothing.
+ */
+public class Base128Test
+{
+  /**
+   *  Class Variables.
+   *
+   *  MAX_LENGTH longest input tried; covers several whole 7 byte groups and
+   *    every tail length.
+   *  ALLOCATION_CALLS number of calls whose allocations are measured.
+   *  ALLOCATION_SLACK bytes the measurement itself may allocate.
+   */
+  private static final int MAX_LENGTH = 64;
+  private static final int ALLOCATION_CALLS = 100000;
+  private static final long ALLOCATION_SLACK = 4096;
+
+  private final Random random = new Random(128);
+
+  @Test
+  public void roundTripsEveryLength()
+  {
+    for(int len = 0; len <= MAX_LENGTH; len++)
+    {
+      byte[] b = randomBytes(len);
+      String s = Base128.encode(b);
+      assertEquals(Base128.encodedLength(len), s.length());
+      assertTrue(Base128.isEncoded(s));
+      assertArrayEquals("length " + len, b, Base128.decode(s));
+    }
+  }
+
+  @Test
+  public void roundTripsExtremeBytes()
+  {
+    for(byte v : new byte[] {0, -1, 0x7f, (byte) 0x80})
+    {
+      byte[] b = new byte[MAX_LENGTH];
+      Arrays.fill(b, v);
+      assertArrayEquals(b, Base128.decode(Base128.encode(b)));
+    }
+  }
+
+  @Test
+  public void encodeIntoMatchesReference()
+  {
+    for(int len = 0; len <= MAX_LENGTH; len++)
+    {
+      byte[] b = randomBytes(len);
+      assertEquals("length " + len, reference(b), Base128.encode(b));
+    }
+  }
+
+  @Test
+  public void bulkMethodsRespectOffsets()
+  {
+    for(int len = 0; len <= MAX_LENGTH; len++)
+    {
+      int off = random.nextInt(8);
+      int dstOff = random.nextInt(8);
+      byte[] src = randomBytes(off+len+3);
+      char[] chars = new char[dstOff+Base128.encodedLength(len)+3];
+      Arrays.fill(chars, '#');
+
+      int written = Base128.encodeInto(src, off, len, chars, dstOff);
+      assertEquals(Base128.encodedLength(len), written);
+      assertEquals('#', (dstOff > 0) ? chars[dstOff-1] : '#');
+      assertEquals('#', chars[dstOff+written]);
+
+      byte[] bytes = new byte[dstOff+len+3];
+      int read = Base128.decodeInto(CharBuffer.wrap(chars), dstOff, written,
+        bytes, dstOff);
+      assertEquals(len, read);
+      assertArrayEquals(Arrays.copyOfRange(src, off, off+len),
+        Arrays.copyOfRange(bytes, dstOff, dstOff+len));
+      assertEquals(0, bytes[dstOff+len]);
+    }
+  }
+
+  @Test
+  public void streamingMatchesBulk()
+  {
+    for(int len = 0; len <= MAX_LENGTH; len++)
+    {
+      byte[] b = randomBytes(len);
+      Base128.Encoder encoder = new Base128.Encoder();
+      CharBuffer chars = CharBuffer.allocate(Base128.encodedLength(len));
+      //feed the encoder a few bytes at a time
+      for(int i = 0; i < len; i += 3)
+      {
+        encoder.encode(ByteBuffer.wrap(b, i, Math.min(3, len-i)), chars);
+      }
+      assertTrue(encoder.finish(chars));
+      chars.flip();
+      assertEquals(Base128.encode(b), chars.toString());
+
+      Base128.Decoder decoder = new Base128.Decoder();
+      ByteBuffer bytes = ByteBuffer.allocate(len);
+      decoder.decode(chars, bytes);
+      assertArrayEquals(b, bytes.array());
+    }
+  }
+
+  @Test
+  public void bulkMethodsDoNotAllocate()
+  {
+    com.sun.management.ThreadMXBean threads = threadBean();
+    byte[] b = randomBytes(Fragments.SMS_BYTES);
+    char[] chars = new char[Base128.encodedLength(b.length)];
+    CharBuffer encoded = CharBuffer.wrap(chars);
+    byte[] decoded = new byte[b.length];
+    //warm up so the measured calls run compiled
+    for(int i = 0; i < ALLOCATION_CALLS; i++)
+    {
+      Base128.encodeInto(b, 0, b.length, chars, 0);
+      Base128.decodeInto(encoded, 0, chars.length, decoded, 0);
+    }
+
+    long tid = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(tid);
+    for(int i = 0; i < ALLOCATION_CALLS; i++)
+    {
+      Base128.encodeInto(b, 0, b.length, chars, 0);
+    }
+    long encodeBytes = threads.getThreadAllocatedBytes(tid) - before;
+
+    before = threads.getThreadAllocatedBytes(tid);
+    for(int i = 0; i < ALLOCATION_CALLS; i++)
+    {
+      Base128.decodeInto(encoded, 0, chars.length, decoded, 0);
+    }
+    long decodeBytes = threads.getThreadAllocatedBytes(tid) - before;
+
+    assertArrayEquals(b, decoded);
+    assertTrue("encodeInto() allocated " + encodeBytes + " bytes",
+      encodeBytes < ALLOCATION_SLACK);
+    assertTrue("decodeInto() allocated " + decodeBytes + " bytes",
+      decodeBytes < ALLOCATION_SLACK);
+  }
+
+  /**
+   *  threadBean() returns the JVM's ThreadMXBean with allocation counting on,
+   *  skipping the test on JVMs that cannot count.
+   */
+  private static com.sun.management.ThreadMXBean threadBean()
+  {
+    assumeTrue(ManagementFactory.getThreadMXBean()
+      instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+    return threads;
+  }
+
+  /**
+   *  reference() encodes a septet at a time: bit i of the output is bit i of
+   *  the input, the last septet padded with zeros.
+   */
+  private static String reference(byte[] b)
+  {
+    StringBuilder s = new StringBuilder();
+    int bits = b.length*8;
+    for(int i = 0; i < bits; i += 7)
+    {
+      int septet = 0;
+      for(int j = i; j < i+7; j++)
+      {
+        int bit = (j < bits) ? (b[j>>3]>>(7-(j&7)))&1 : 0;
+        septet = (septet<<1) | bit;
+      }
+      s.append(Base128.map[septet]);
+    }
+    return s.toString();
+  }
+
+  private byte[] randomBytes(int len)
+  {
+    byte[] b = new byte[len];
+    random.nextBytes(b);
+    return b;
+  }
+}
@@ -0,0 +1,186 @@
+package ctxt.db;
+
+import ctxt.db.Fragments;
+import ctxt.key.Envelope;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ *  FragmentsTest checks that split ciphertexts reassemble, in any order, that
+ *  no fragment can be confused with a plain RSA ciphertext and that every
+ *  text sms body fits into the 160 septets of one gsm sms. The Reassembler
+ *  must report duplicate and dropped fragments.
+ */
+public class FragmentsTest
+{
+  /**
+   *  Class Variables.
+   *
+   *  SENDER phone number fragments are reassembled under.
+   *  MAX_LENGTH longest ciphertext tried.
+   */
+  private static final String SENDER = "15555215554";
+  private static final int MAX_LENGTH = 1024;
+
+  private final Random random = new Random(14);
+
+  @Test
+  public void splitsReassembleOutOfOrder()
+  {
+    for(int smsBytes : new int[] {Fragments.SMS_BYTES,
+        Fragments.DATA_SMS_BYTES})
+    {
+      Fragments.Reassembler r = new Fragments.Reassembler();
+      for(int length = 1; length <= MAX_LENGTH; length++)
+      {
+        byte[] cipherText = randomBytes(length);
+        byte[][] fragments = Fragments.split(cipherText, smsBytes);
+        if(fragments.length == 1)
+        {
+          assertTrue(length <= smsBytes);
+          assertArrayEquals(cipherText, fragments[0]);
+          continue;
+        }
+        Fragments.Complete whole = null;
+        for(int i = fragments.length-1; i >= 0; i--)
+        {
+          assertTrue(fragments[i].length <= smsBytes);
+          assertTrue(Fragments.isFragment(fragments[i]));
+          assertNull(whole);
+          whole = r.add(SENDER, fragments[i], i, 0);
+        }
+        assertNotNull(whole);
+        assertArrayEquals("length " + length, cipherText, whole.cipherText);
+        assertEquals(fragments.length, whole.tags.length);
+      }
+    }
+  }
+
+  @Test
+  public void noFragmentIsAsLongAsRsaCiphertext()
+  {
+    for(int smsBytes : new int[] {Fragments.SMS_BYTES,
+        Fragments.DATA_SMS_BYTES})
+    {
+      for(int length = smsBytes+1; length <= MAX_LENGTH; length++)
+      {
+        for(byte[] f : Fragments.split(new byte[length], smsBytes))
+        {
+          assertTrue("length " + length,
+            f.length != Envelope.RSA_BYTES);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void textBodiesFitIntoOneSms()
+  {
+    //ciphertexts whose encodings are all '|', the worst case, and random
+    byte[] escapes = Base128.decode(
+      new String(new char[2*MAX_LENGTH]).replace('\0', '|'));
+    Fragments.Reassembler r = new Fragments.Reassembler();
+    for(int length = 1; length <= MAX_LENGTH; length++)
+    {
+      for(byte[] cipherText : new byte[][] {
+          Arrays.copyOf(escapes, length), randomBytes(length)})
+      {
+        String[] bodies = Fragments.split(cipherText);
+        for(String body : bodies)
+        {
+          assertTrue("length " + length,
+            gsmSeptets(body) <= Fragments.SMS_SEPTETS);
+          assertTrue(Base128.isEncoded(body));
+        }
+        if(bodies.length == 1 &&
+            Arrays.equals(cipherText, Base128.decode(bodies[0])))
+        {
+          continue;
+        }
+        Fragments.Complete whole = null;
+        for(int i = 0; i < bodies.length; i++)
+        {
+          byte[] body = Base128.decode(bodies[i]);
+          assertTrue(Fragments.isFragment(body));
+          assertNull(whole);
+          whole = r.add(SENDER, body, i, 0);
+        }
+        assertNotNull(whole);
+        assertArrayEquals("length " + length, cipherText, whole.cipherText);
+      }
+    }
+  }
+
+  @Test
+  public void duplicatesAreReported()
+  {
+    byte[][] fragments = Fragments.split(randomBytes(MAX_LENGTH),
+      Fragments.DATA_SMS_BYTES);
+    Fragments.Reassembler r = new Fragments.Reassembler();
+    assertNull(r.add(SENDER, fragments[0], 0, 0));
+    //the same sms again, e.g. by a later drain, is still waiting
+    assertNull(r.add(SENDER, fragments[0], 0, 0));
+    assertSame(Fragments.Reassembler.DUPLICATE,
+      r.add(SENDER, fragments[0], 100, 0));
+    assertEquals(0, r.takeDropped().length);
+  }
+
+  @Test
+  public void droppedFragmentsAreReported()
+  {
+    Fragments.Reassembler r = new Fragments.Reassembler();
+    for(int i = 0; i <= Fragments.Reassembler.MAX_PENDING; i++)
+    {
+      byte[][] fragments = Fragments.split(randomBytes(MAX_LENGTH),
+        Fragments.DATA_SMS_BYTES);
+      assertNull(r.add(SENDER, fragments[0], i, 0));
+    }
+    //the oldest is dropped to stay within bounds
+    assertArrayEquals(new long[] {0}, r.takeDropped());
+    assertEquals(0, r.takeDropped().length);
+
+    r.expire(Fragments.Reassembler.TIMEOUT);
+    assertEquals(0, r.size());
+    assertEquals(Fragments.Reassembler.MAX_PENDING, r.takeDropped().length);
+  }
+
+  @Test
+  public void rsaCiphertextIsNotFragment()
+  {
+    byte[] cipherText = randomBytes(Envelope.RSA_BYTES);
+    cipherText[0] = Fragments.VERSION_FRAGMENT;
+    assertFalse(Fragments.isFragment(cipherText));
+  }
+
+  /**
+   *  gsmSeptets() returns the number of septets a string takes in a gsm 7-bit
+   *  sms: two for each character of the extension table, one for any other.
+   */
+  private static int gsmSeptets(String body)
+  {
+    int septets = 0;
+    for(int i = 0; i < body.length(); i++)
+    {
+      septets += ("^{}\\[~]|\u20ac\f".indexOf(body.charAt(i)) >= 0) ? 2 : 1;
+    }
+    return septets;
+  }
+
+  private byte[] randomBytes(int len)
+  {
+    byte[] b = new byte[len];
+    random.nextBytes(b);
+    return b;
+  }
+}
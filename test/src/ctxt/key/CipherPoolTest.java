@@ -0,0 +1,110 @@
+package ctxt.key;
+
+import ctxt.key.CipherPool;
+import ctxt.key.Fetcher;
+import ctxt.key.Storer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Random;
+import javax.crypto.Cipher;
+
+/**
+ *  CipherPoolTest checks that a cipher returned to the pool after it threw,
+ *  or after a message was abandoned part way, is handed to the next user
+ *  ready for a fresh message.
+ */
+public class CipherPoolTest
+{
+  /**
+   *  Class Variables.
+   *
+   *  keys RSA key pair ciphers are initialized under.
+   */
+  private static KeyPair keys;
+
+  private final Random random = new Random(9);
+
+  @BeforeClass
+  public static void generateKeys() throws Exception
+  {
+    KeyPairGenerator kgen = KeyPairGenerator.getInstance(Storer.ALGORITHM);
+    kgen.initialize(Storer.KEYBITS);
+    keys = kgen.generateKeyPair();
+  }
+
+  @Test
+  public void resetAfterFailedDoFinal() throws Exception
+  {
+    CipherPool pool = new CipherPool(Storer.ENCRYPTION_MODE,
+      Cipher.DECRYPT_MODE);
+    Cipher c = pool.acquire(keys.getPrivate());
+    try
+    {
+      c.doFinal(randomBytes(Envelope.RSA_BYTES));
+      fail("decrypted random bytes");
+    }
+    catch(GeneralSecurityException e)
+    {
+      pool.reset(keys.getPrivate(), c);
+    }
+    assertDecrypts(pool, c);
+  }
+
+  @Test
+  public void resetAfterAbandonedMessage() throws Exception
+  {
+    CipherPool pool = new CipherPool(Storer.ENCRYPTION_MODE,
+      Cipher.DECRYPT_MODE);
+    Cipher c = pool.acquire(keys.getPrivate());
+    //buffered input that would otherwise be prepended to the next message
+    c.update(randomBytes(Envelope.RSA_BYTES/2));
+    pool.reset(keys.getPrivate(), c);
+    assertDecrypts(pool, c);
+  }
+
+  @Test
+  public void storerResetsAfterBadCiphertext() throws Exception
+  {
+    CipherPool pool = new CipherPool(Storer.ENCRYPTION_MODE,
+      Cipher.DECRYPT_MODE, 1);
+    Cipher c = pool.acquire(keys.getPrivate());
+    pool.release(keys.getPrivate(), c);
+    try
+    {
+      Storer.decrypt(randomBytes(Envelope.RSA_BYTES), keys.getPrivate(),
+        pool);
+      fail("decrypted random bytes");
+    }
+    catch(GeneralSecurityException e) { }
+    assertDecrypts(pool, c);
+  }
+
+  /**
+   *  assertDecrypts() given a pool and the cipher last returned to it checks
+   *  that the next acquire() hands out the same cipher and that it decrypts.
+   */
+  private void assertDecrypts(CipherPool pool, Cipher c) throws Exception
+  {
+    byte[] plainText = randomBytes(Fetcher.LEN_MAX);
+    byte[] cipherText = Fetcher.encrypt(plainText, keys.getPublic());
+    Cipher next = pool.acquire(keys.getPrivate());
+    assertSame(c, next);
+    assertArrayEquals(plainText, next.doFinal(cipherText));
+  }
+
+  private byte[] randomBytes(int len)
+  {
+    byte[] b = new byte[len];
+    random.nextBytes(b);
+    return b;
+  }
+}
@@ -0,0 +1,153 @@
+package ctxt.key;
+
+import ctxt.key.Ecies;
+import ctxt.key.KeyFormat;
+import ctxt.key.NumberKeyPair;
+import ctxt.key.Storer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.InvalidKeySpecException;
+
+/**
+ *  KeyFormatTest checks that stored and shared keys of either type decode,
+ *  including those written before key types were introduced, and that
+ *  truncated input is rejected with InvalidKeySpecException.
+ */
+public class KeyFormatTest
+{
+  /**
+   *  Class Variables.
+   *
+   *  NUMBER phone number keys are shared under.
+   *  TC_BLOCKDATA serialization tag of a short block of primitive data.
+   *  rsa, ec key pairs of either type.
+   */
+  private static final String NUMBER = "15555215554";
+  private static final byte TC_BLOCKDATA = 0x77;
+  private static KeyPair rsa;
+  private static KeyPair ec;
+
+  @BeforeClass
+  public static void generateKeys() throws Exception
+  {
+    KeyPairGenerator kgen = KeyPairGenerator.getInstance(Storer.ALGORITHM);
+    kgen.initialize(Storer.KEYBITS);
+    rsa = kgen.generateKeyPair();
+    ec = Ecies.generateKeyPair();
+  }
+
+  @Test
+  public void storedKeysRoundTrip() throws Exception
+  {
+    for(KeyPair k : new KeyPair[] {rsa, ec})
+    {
+      assertEquals(k.getPublic(),
+        KeyFormat.decodePublic(KeyFormat.encodePublic(k.getPublic())));
+      assertEquals(k.getPrivate(),
+        KeyFormat.decodePrivate(KeyFormat.encodePrivate(k.getPrivate())));
+    }
+  }
+
+  @Test
+  public void untaggedKeysAreRsa() throws Exception
+  {
+    assertEquals(rsa.getPublic(),
+      KeyFormat.decodePublic(rsa.getPublic().getEncoded()));
+    assertEquals(rsa.getPrivate(),
+      KeyFormat.decodePrivate(rsa.getPrivate().getEncoded()));
+  }
+
+  @Test
+  public void truncatedKeysAreRejected() throws Exception
+  {
+    for(byte[] b : new byte[][] {new byte[0], {KeyFormat.TYPE_RSA},
+        {KeyFormat.TYPE_EC}, {0x30}})
+    {
+      try
+      {
+        KeyFormat.decodePublic(b);
+        fail("decoded public key of " + b.length + " bytes");
+      }
+      catch(InvalidKeySpecException e) { }
+      try
+      {
+        KeyFormat.decodePrivate(b);
+        fail("decoded private key of " + b.length + " bytes");
+      }
+      catch(InvalidKeySpecException e) { }
+    }
+  }
+
+  @Test
+  public void sharedKeysRoundTrip() throws Exception
+  {
+    for(KeyPair k : new KeyPair[] {rsa, ec})
+    {
+      NumberKeyPair nkp = read(write(new NumberKeyPair(NUMBER,
+        k.getPublic())));
+      assertEquals(NUMBER, nkp.getNumber());
+      assertEquals(k.getPublic(), nkp.getKey());
+    }
+  }
+
+  @Test
+  public void sharedKeysWithoutTypeAreRsa() throws Exception
+  {
+    byte[] typed = write(new NumberKeyPair(NUMBER, rsa.getPublic()));
+    NumberKeyPair nkp = read(untype(typed));
+    assertEquals(NUMBER, nkp.getNumber());
+    assertEquals(rsa.getPublic(), nkp.getKey());
+  }
+
+  private static byte[] write(NumberKeyPair nkp) throws Exception
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(nkp);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static NumberKeyPair read(byte[] b) throws Exception
+  {
+    ObjectInputStream in = new ObjectInputStream(
+      new ByteArrayInputStream(b));
+    return (NumberKeyPair) in.readObject();
+  }
+
+  /**
+   *  untype() given a serialized NumberKeyPair returns it as written before
+   *  key types: the type byte after the phone number removed from its block
+   *  of data, and the block one byte shorter.
+   */
+  private static byte[] untype(byte[] b)
+  {
+    byte[] number = NUMBER.getBytes();
+    for(int i = 0; i+4+number.length < b.length; i++)
+    {
+      if(b[i] == TC_BLOCKDATA && b[i+2] == 0 && b[i+3] == number.length &&
+          b[i+4] == number[0])
+      {
+        int type = i+4+number.length;
+        assertEquals(KeyFormat.TYPE_RSA, b[type]);
+        byte[] untyped = new byte[b.length-1];
+        System.arraycopy(b, 0, untyped, 0, type);
+        System.arraycopy(b, type+1, untyped, type, b.length-type-1);
+        --untyped[i+1];
+        return untyped;
+      }
+    }
+    throw new AssertionError("no block of data");
+  }
+}
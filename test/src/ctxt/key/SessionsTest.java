@@ -0,0 +1,192 @@
+package ctxt.key;
+
+import ctxt.key.Envelope;
+import ctxt.key.Session;
+import ctxt.key.Sessions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.BadPaddingException;
+
+/**
+ *  SessionsTest checks that no message on a session is ever as long as a
+ *  plain RSA ciphertext, which has no version byte and is told apart by its
+ *  length alone, and that padded messages still open. It also checks that a
+ *  received message can be opened again, even from saved state, until its
+ *  key is released, and that the first message of a session is told apart
+ *  from the others.
+ */
+public class SessionsTest
+{
+  /**
+   *  Class Variables.
+   *
+   *  ID session id of the sessions tested.
+   *  MAX_LENGTH longest plaintext tried.
+   */
+  private static final int ID = 0x0badcafe;
+  private static final int MAX_LENGTH = 256;
+
+  private final Random random = new Random(6);
+
+  @Test
+  public void messageAsLongAsRsaCiphertextIsPadded() throws Exception
+  {
+    //9 byte header + plaintext + 16 byte tag == Envelope.RSA_BYTES
+    int length = Envelope.RSA_BYTES - Sessions.HEADER - Envelope.TAG_BYTES;
+    byte[] root = randomBytes(Session.ROOT_BYTES);
+    Session sender = new Session(ID, root);
+    Session receiver = new Session(ID, root);
+    byte[] plainText = randomBytes(length);
+
+    byte[] sent = Sessions.seal(sender, header(), plainText);
+    assertEquals(Envelope.RSA_BYTES+1, sent.length);
+    assertEquals(Sessions.VERSION_PADDED, sent[0]);
+    assertEquals(Sessions.minimumLength(Sessions.VERSION_PADDED),
+      sent.length);
+
+    byte[] message = Arrays.copyOfRange(sent, 1, sent.length);
+    assertEquals(Sessions.VERSION_SESSION, Sessions.route(message, true));
+    assertArrayEquals(plainText,
+      Sessions.openBody(receiver, message, Sessions.HEADER));
+  }
+
+  @Test
+  public void unpaddedRsaLengthGoesToStorer()
+  {
+    byte[] cipherText = randomBytes(Envelope.RSA_BYTES);
+    for(byte version : new byte[] {Sessions.VERSION_SESSION,
+        Sessions.VERSION_SESSION_START, Sessions.VERSION_SESSION_START_EC})
+    {
+      cipherText[0] = version;
+      assertEquals(-1, Sessions.route(cipherText, false));
+    }
+  }
+
+  @Test
+  public void noSessionMessageIsAsLongAsRsaCiphertext() throws Exception
+  {
+    byte[] root = randomBytes(Session.ROOT_BYTES);
+    Session sender = new Session(ID, root);
+    Session receiver = new Session(ID, root);
+    for(int length = 0; length <= MAX_LENGTH; length++)
+    {
+      byte[] plainText = randomBytes(length);
+      byte[] sent = Sessions.seal(sender, header(), plainText);
+      assertTrue("length " + length, sent.length != Envelope.RSA_BYTES);
+
+      boolean padded = (sent[0] == Sessions.VERSION_PADDED);
+      byte[] message = padded ? Arrays.copyOfRange(sent, 1, sent.length)
+        : sent;
+      assertEquals(Sessions.VERSION_SESSION, Sessions.route(message, padded));
+      assertArrayEquals(plainText,
+        Sessions.openBody(receiver, message, Sessions.HEADER));
+    }
+  }
+
+  @Test
+  public void noSessionStartIsAsLongAsRsaCiphertext() throws Exception
+  {
+    //an elliptic curve start with a 26 byte plaintext would be 133 bytes
+    byte[] header = randomBytes(1+Sessions.EC_WRAPPED);
+    header[0] = Sessions.VERSION_SESSION_START_EC;
+    Session sender = new Session(ID, randomBytes(Session.ROOT_BYTES));
+    for(int length = 0; length <= MAX_LENGTH; length++)
+    {
+      byte[] sent = Sessions.seal(sender, header, randomBytes(length));
+      assertTrue("length " + length, sent.length != Envelope.RSA_BYTES);
+    }
+  }
+
+  @Test
+  public void onlySessionStartsStartSessions() throws Exception
+  {
+    byte[] start = randomBytes(1+Sessions.EC_WRAPPED);
+    start[0] = Sessions.VERSION_SESSION_START_EC;
+    Session sender = new Session(ID, randomBytes(Session.ROOT_BYTES));
+    for(int length = 0; length <= MAX_LENGTH; length++)
+    {
+      byte[] plainText = randomBytes(length);
+      assertTrue("length " + length, Sessions.startsSession(
+        Sessions.seal(sender, start, plainText)));
+      assertFalse("length " + length, Sessions.startsSession(
+        Sessions.seal(sender, header(), plainText)));
+    }
+  }
+
+  @Test
+  public void messageOpensAgainUntilReleased() throws Exception
+  {
+    byte[] root = randomBytes(Session.ROOT_BYTES);
+    Session sender = new Session(ID, root);
+    Session receiver = new Session(ID, root);
+    byte[] plainText = randomBytes(MAX_LENGTH);
+    byte[] sent = Sessions.seal(sender, header(), plainText);
+
+    assertArrayEquals(plainText,
+      Sessions.openBody(receiver, sent, Sessions.HEADER));
+    //as after a crash before the plaintext was stored
+    Session saved = saved(receiver);
+    assertArrayEquals(plainText,
+      Sessions.openBody(receiver, sent, Sessions.HEADER));
+    assertArrayEquals(plainText,
+      Sessions.openBody(saved, sent, Sessions.HEADER));
+
+    receiver.release(0);
+    try
+    {
+      Sessions.openBody(receiver, sent, Sessions.HEADER);
+      fail("opened a released message");
+    }
+    catch(BadPaddingException e) { }
+    assertEquals(1, receiver.getCounter());
+    try
+    {
+      Sessions.openBody(saved(receiver), sent, Sessions.HEADER);
+      fail("opened a released message from saved state");
+    }
+    catch(BadPaddingException e) { }
+  }
+
+  /**
+   *  saved() returns a session as it is read back after being written.
+   */
+  private static Session saved(Session s) throws Exception
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    s.write(out);
+    out.close();
+    return Session.read(new DataInputStream(
+      new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  /**
+   *  header() returns the header of a message on session ID, up to its
+   *  message number.
+   */
+  private static byte[] header()
+  {
+    return new byte[] {Sessions.VERSION_SESSION, (byte)(ID>>>24),
+      (byte)(ID>>>16), (byte)(ID>>>8), (byte) ID};
+  }
+
+  private byte[] randomBytes(int len)
+  {
+    byte[] b = new byte[len];
+    random.nextBytes(b);
+    return b;
+  }
+}
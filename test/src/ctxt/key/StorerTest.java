@@ -0,0 +1,123 @@
+package ctxt.key;
+
+import ctxt.key.CipherPool;
+import ctxt.key.Envelope;
+import ctxt.key.Fetcher;
+import ctxt.key.Storer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+
+/**
+ *  StorerTest decrypts a mix of plain RSA and hybrid ciphertexts, some of
+ *  them corrupted, on several threads sharing one pool of ciphers, and checks
+ *  that every good ciphertext decrypts to its plaintext and every bad one
+ *  throws, whatever the threads before it did with their ciphers.
+ */
+public class StorerTest
+{
+  /**
+   *  Class Variables.
+   *
+   *  THREADS number of threads decrypting at once.
+   *  MESSAGES number of ciphertexts each thread decrypts.
+   *  BAD_EVERY one ciphertext in this many is corrupted.
+   *  keys RSA key pair the ciphertexts are encrypted under.
+   */
+  private static final int THREADS = 8;
+  private static final int MESSAGES = 64;
+  private static final int BAD_EVERY = 3;
+  private static KeyPair keys;
+
+  @BeforeClass
+  public static void generateKeys() throws Exception
+  {
+    KeyPairGenerator kgen = KeyPairGenerator.getInstance(Storer.ALGORITHM);
+    kgen.initialize(Storer.KEYBITS);
+    keys = kgen.generateKeyPair();
+  }
+
+  @Test
+  public void decryptsOnManyThreads() throws Exception
+  {
+    //fewer idle ciphers than threads, so ciphers are built and dropped too
+    final CipherPool pool = new CipherPool(Storer.ENCRYPTION_MODE,
+      Cipher.DECRYPT_MODE, THREADS/2);
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+    List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+    for(int t = 0; t < THREADS; t++)
+    {
+      final Random random = new Random(t);
+      results.add(threads.submit(new Callable<Integer>()
+      {
+        @Override
+        public Integer call() throws Exception
+        {
+          start.await();
+          int decrypted = 0;
+          for(int i = 0; i < MESSAGES; i++)
+          {
+            //both sides of LEN_MAX: plain RSA and hybrid envelopes
+            byte[] plainText = new byte[random.nextInt(2*Fetcher.LEN_MAX)];
+            random.nextBytes(plainText);
+            byte[] cipherText = Fetcher.encrypt(plainText, keys.getPublic());
+            if(random.nextInt(BAD_EVERY) == 0)
+            {
+              corrupt(cipherText, random);
+              try
+              {
+                Storer.decrypt(cipherText, keys.getPrivate(), pool);
+                fail("decrypted a corrupted ciphertext");
+              }
+              catch(GeneralSecurityException e) { }
+              continue;
+            }
+            assertArrayEquals(plainText,
+              Storer.decrypt(cipherText, keys.getPrivate(), pool));
+            ++decrypted;
+          }
+          return decrypted;
+        }
+      }));
+    }
+    start.countDown();
+    int decrypted = 0;
+    for(Future<Integer> f : results)
+    {
+      decrypted += f.get(60, TimeUnit.SECONDS);
+    }
+    threads.shutdown();
+    //the seeds are fixed, so some of each kind are always tried
+    assertTrue(decrypted > 0 && decrypted < THREADS*MESSAGES);
+  }
+
+  /**
+   *  corrupt() given a ciphertext flips a bit in its RSA block, so that the
+   *  block fails its padding check.
+   */
+  private static void corrupt(byte[] cipherText, Random random)
+  {
+    int off = (cipherText.length == Envelope.RSA_BYTES) ? 0 : 1;
+    cipherText[off+random.nextInt(Envelope.RSA_BYTES)] ^=
+      (byte)(1<<random.nextInt(8));
+  }
+}